@@ -0,0 +1,41 @@
+package pl.szczurmys.nodemcu.benchmark;
+
+import jssc.SerialPortException;
+import jssc.SerialPortTimeoutException;
+import pl.szczurmys.nodemcu.DetectedException;
+import pl.szczurmys.nodemcu.NodeMcuInterpreter;
+import pl.szczurmys.nodemcu.emulator.NodeMcuEmulator;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Common setup of benchmarks.
+ *
+ * @author szczurmys
+ */
+final class Benchmarks {
+	private Benchmarks() {
+	}
+
+	/**
+	 * Interpreter prints every command, it would dominate measured time.
+	 */
+	static void silenceOutput() {
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+	}
+
+	static NodeMcuInterpreter connect(int baudRate, int latency) throws SerialPortException, DetectedException, SerialPortTimeoutException {
+		NodeMcuEmulator emulator = new NodeMcuEmulator(NodeMcuEmulator.DEFAULT_NAME, baudRate > 0, latency);
+		return new NodeMcuInterpreter(emulator, "\n",
+				baudRate > 0 ? baudRate : NodeMcuInterpreter.DEFAULT_BAUD_RATE, NodeMcuInterpreter.DEFAULT_TIMEOUT);
+	}
+}
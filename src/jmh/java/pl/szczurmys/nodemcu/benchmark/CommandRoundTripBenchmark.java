@@ -0,0 +1,71 @@
+package pl.szczurmys.nodemcu.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.szczurmys.nodemcu.CommandBatch;
+import pl.szczurmys.nodemcu.NodeMcuInterpreter;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command echo round trip (writeAndReadRepeatedCommand through deleteFile) and batched commands
+ * on emulated device. baudRate 0 - emulator without pacing.
+ *
+ * @author szczurmys
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandRoundTripBenchmark {
+
+	@Param({"0", "9600", "115200"})
+	public int baudRate;
+
+	@Param({"0", "5"})
+	public int latency;
+
+	private NodeMcuInterpreter interpreter;
+	private CommandBatch batch;
+
+	@Setup
+	public void setup() throws Exception {
+		Benchmarks.silenceOutput();
+		interpreter = Benchmarks.connect(baudRate, latency);
+		batch = new CommandBatch();
+		for (int i = 0; i < 10; i++) {
+			batch.remove("file" + i + ".lua");
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		interpreter.close();
+	}
+
+	@Benchmark
+	public void deleteFile() throws Exception {
+		interpreter.deleteFile("file.lua");
+	}
+
+	/**
+	 * The same work as 10 x deleteFile.
+	 */
+	@Benchmark
+	public List<CommandBatch.Result> batchDelete10() throws Exception {
+		return interpreter.executeBatch(batch);
+	}
+}
@@ -0,0 +1,72 @@
+package pl.szczurmys.nodemcu.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import pl.szczurmys.nodemcu.LineQueue;
+import pl.szczurmys.nodemcu.event.ReadLinesEventListener;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting of received data into lines by {@link ReadLinesEventListener}.
+ * One operation is one receive event of chunkSize bytes.
+ *
+ * @author szczurmys
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LineFramingBenchmark {
+
+	@Param({"16", "256", "4096"})
+	public int chunkSize;
+
+	@Param({"40"})
+	public int lineLength;
+
+	private LineQueue lineQueue;
+	private ReadLinesEventListener listener;
+	private final List<byte[]> chunks = new ArrayList<>();
+	private int index = 0;
+
+	@Setup
+	public void setup() {
+		lineQueue = new LineQueue();
+		listener = new ReadLinesEventListener(lineQueue);
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < chunkSize * 64; i++) {
+			StringBuilder line = new StringBuilder("> line ").append(i).append(' ');
+			while (line.length() < lineLength - 2) {
+				line.append('x');
+			}
+			sb.append(line).append("\r\n");
+		}
+		byte[] data = sb.toString().getBytes(StandardCharsets.US_ASCII);
+		for (int offset = 0; offset + chunkSize <= data.length; offset += chunkSize) {
+			byte[] chunk = new byte[chunkSize];
+			System.arraycopy(data, offset, chunk, 0, chunkSize);
+			chunks.add(chunk);
+		}
+	}
+
+	@Benchmark
+	public void frame(Blackhole blackhole) {
+		listener.dataReceived(chunks.get(index));
+		index = (index + 1) % chunks.size();
+		String line;
+		while ((line = lineQueue.getLine()) != null) {
+			blackhole.consume(line);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package pl.szczurmys.nodemcu.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import pl.szczurmys.nodemcu.LineQueue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Hand-off of lines from receive thread to command thread through {@link LineQueue}.
+ * Producer and consumer run in one group, score of consumer is hand-off time.
+ *
+ * @author szczurmys
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LineQueueBenchmark {
+	private static final int WAIT_TIMEOUT = 10;
+
+	private final LineQueue lineQueue = new LineQueue();
+
+	@Benchmark
+	@Group("handOff")
+	@GroupThreads(1)
+	public void produce() {
+		lineQueue.addLine("> ACK\r\n");
+	}
+
+	@Benchmark
+	@Group("handOff")
+	@GroupThreads(1)
+	public String consume() {
+		try {
+			return lineQueue.waitForLine(WAIT_TIMEOUT);
+		} catch (TimeoutException e) {
+			// producer already finished iteration
+			return null;
+		}
+	}
+}
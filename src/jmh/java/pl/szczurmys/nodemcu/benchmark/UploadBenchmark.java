@@ -0,0 +1,68 @@
+package pl.szczurmys.nodemcu.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.szczurmys.nodemcu.NodeMcuInterpreter;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload of whole file by saveFile (uartSendBlock for each block, or windowed upload) to emulated device.
+ * baudRate 0 - emulator without pacing, only protocol and host overhead is measured.
+ *
+ * @author szczurmys
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadBenchmark {
+
+	@Param({"1024", "65536", "1048576"})
+	public int fileSize;
+
+	@Param({"0", "115200", "921600"})
+	public int baudRate;
+
+	@Param({"0", "2"})
+	public int latency;
+
+	@Param({"0", "4"})
+	public int windowSize;
+
+	private NodeMcuInterpreter interpreter;
+	private byte[] content;
+
+	@Setup
+	public void setup() throws Exception {
+		Benchmarks.silenceOutput();
+		interpreter = Benchmarks.connect(baudRate, latency);
+		interpreter.setWindowSize(windowSize);
+		content = new byte[fileSize];
+		new Random(fileSize).nextBytes(content);
+	}
+
+	@TearDown
+	public void tearDown() {
+		interpreter.close();
+	}
+
+	@Benchmark
+	public void saveFile() throws Exception {
+		interpreter.saveFile("bench.bin", new ByteArrayInputStream(content), content.length);
+	}
+}
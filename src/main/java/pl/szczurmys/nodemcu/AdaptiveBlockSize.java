@@ -0,0 +1,125 @@
+package pl.szczurmys.nodemcu;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Size of next upload block, tuned by ACK latency and errors of previous blocks.
+ * Starts with {@link #START_SIZE}, doubles after {@link #GROW_AFTER} blocks without error while throughput grows,
+ * returns to previous size when throughput drops and halves after each error.
+ * Max size is bounded by free heap of device, see {@link #maxSize(int)}.
+ *
+ * @author szczurmys
+ */
+public class AdaptiveBlockSize {
+	public static final int MIN_SIZE = 16;
+	public static final int START_SIZE = 64;
+	public static final int GROW_AFTER = 4;
+	/**
+	 * Heap kept free for code running on device.
+	 */
+	public static final int HEAP_RESERVE = 4096;
+	/**
+	 * Heap used for each byte of block: received string, its copies in handler and buffer of file.
+	 */
+	public static final int HEAP_PER_BYTE = 8;
+
+	private static class Stats {
+		long blocks;
+		long bytes;
+		long nanos;
+		long errors;
+
+		double getBytesPerSecond() {
+			return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+		}
+	}
+
+	private final int maxSize;
+	private final Map<Integer, Stats> stats = new TreeMap<>();
+	private int size;
+	private int previousSize;
+	/**
+	 * Size which was slower than smaller one, not tried again.
+	 */
+	private int ceiling;
+	private int successes;
+
+	public AdaptiveBlockSize(int maxSize) {
+		this.maxSize = Math.max(MIN_SIZE, maxSize);
+		this.ceiling = Integer.MAX_VALUE;
+		this.size = Math.min(START_SIZE, this.maxSize);
+	}
+
+	/**
+	 * @param heap free heap of device, result of node.heap()
+	 * @return max block which device can receive without running out of memory, not greater than
+	 * {@link NodeMcuInterpreter#BLOCK_SIZE}
+	 */
+	public static int maxSize(int heap) {
+		return Math.max(MIN_SIZE, Math.min(NodeMcuInterpreter.BLOCK_SIZE, (heap - HEAP_RESERVE) / HEAP_PER_BYTE));
+	}
+
+	public synchronized int get() {
+		return size;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param nanos time from command of block to its ACK, with resends
+	 */
+	public synchronized void acknowledged(int blockSize, long nanos) {
+		Stats s = stats(blockSize);
+		s.blocks++;
+		s.bytes += blockSize;
+		s.nanos += nanos;
+		if (blockSize != size || ++successes < GROW_AFTER) {
+			return;
+		}
+		successes = 0;
+		Stats previous = stats.get(previousSize);
+		if (previousSize > 0 && previousSize < size && s.getBytesPerSecond() < previous.getBytesPerSecond()) {
+			ceiling = size;
+			size = previousSize;
+			previousSize = 0;
+			return;
+		}
+		int next = Math.min(maxSize, size * 2);
+		if (next > size && next < ceiling) {
+			previousSize = size;
+			size = next;
+		}
+	}
+
+	/**
+	 * Block was not received correctly and is sent again.
+	 */
+	public synchronized void failed(int blockSize) {
+		stats(blockSize).errors++;
+		successes = 0;
+		previousSize = 0;
+		size = Math.max(MIN_SIZE, Math.min(size, blockSize) / 2);
+	}
+
+	private Stats stats(int blockSize) {
+		return stats.computeIfAbsent(blockSize, k -> new Stats());
+	}
+
+	/**
+	 * @return used sizes with count of blocks, errors and throughput, e.g. "64 B: 4 blocks, 0 errors, 310.2 B/s"
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Integer, Stats> e : stats.entrySet()) {
+			Stats s = e.getValue();
+			sb.append(sb.length() > 0 ? "; " : "").append(String.format(Locale.ROOT, "%d B: %d blocks, %d errors, %.1f B/s",
+					e.getKey(), s.blocks, s.errors, s.getBytesPerSecond()));
+		}
+		return String.format("current %d B, max %d B (%s)", size, maxSize, sb);
+	}
+}
@@ -0,0 +1,222 @@
+package pl.szczurmys.nodemcu;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Blocks of file for upload, read ahead by producer thread into pool of reusable buffers,
+ * so disk is read while previous blocks are sent to device.
+ * Every block is full except the last one.
+ * <p>
+ * Blocks are taken by one thread: {@link #take()}, send, {@link #release(Block)}.
+ *
+ * @author szczurmys
+ */
+public class BlockSource implements Closeable {
+	/**
+	 * Number of buffers in pool, how many blocks can be read ahead.
+	 */
+	public static final int READ_AHEAD_BLOCKS = 16;
+	/**
+	 * Files from this size are memory mapped instead of read.
+	 */
+	public static final long MAP_THRESHOLD = 1024 * 1024;
+
+	public static class Block {
+		private final byte[] data;
+		private int length;
+
+		private Block(int blockSize) {
+			this.data = new byte[blockSize];
+		}
+
+		/**
+		 * @return reused buffer, only first {@link #getLength()} bytes are valid
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		public int getLength() {
+			return length;
+		}
+	}
+
+	private static final Block END = new Block(0);
+
+	private final String name;
+	private final long length;
+	private final int blockSize;
+	private final ReadableByteChannel channel;
+	private final ByteBuffer content;
+
+	private final BlockingQueue<Block> free = new ArrayBlockingQueue<>(READ_AHEAD_BLOCKS);
+	private final BlockingQueue<Block> ready = new ArrayBlockingQueue<>(READ_AHEAD_BLOCKS + 1);
+	private volatile IOException error;
+	private boolean finished = false;
+	private Thread producer;
+
+	private BlockSource(String name, long length, int blockSize, ReadableByteChannel channel, ByteBuffer content) {
+		this.name = name;
+		this.length = length;
+		this.blockSize = blockSize;
+		this.channel = channel;
+		this.content = content;
+	}
+
+	/**
+	 * Read file by {@link FileChannel}, file bigger than {@link #MAP_THRESHOLD} is memory mapped.
+	 */
+	public static BlockSource open(File file, int blockSize) throws IOException {
+		return open(file, blockSize, 0);
+	}
+
+	/**
+	 * @param offset first byte of file to read, e.g. to continue interrupted upload
+	 */
+	public static BlockSource open(File file, int blockSize, long offset) throws IOException {
+		FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = Math.max(0, fileChannel.size() - offset);
+			if (size >= MAP_THRESHOLD) {
+				ByteBuffer mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+				fileChannel.close();
+				return new BlockSource(file.getName(), size, blockSize, null, mapped).start();
+			}
+			fileChannel.position(offset);
+			return new BlockSource(file.getName(), size, blockSize, fileChannel, null).start();
+		} catch (IOException | RuntimeException e) {
+			fileChannel.close();
+			throw e;
+		}
+	}
+
+	public static BlockSource of(byte[] content, int blockSize) {
+		return of(content, blockSize, 0);
+	}
+
+	public static BlockSource of(byte[] content, int blockSize, int offset) {
+		int size = Math.max(0, content.length - offset);
+		return new BlockSource("content", size, blockSize, null, ByteBuffer.wrap(content, Math.min(offset, content.length), size)).start();
+	}
+
+	/**
+	 * @param length size of data in inputStream, -1 if unknown
+	 */
+	public static BlockSource of(InputStream inputStream, long length, int blockSize) {
+		return new BlockSource("stream", length, blockSize, Channels.newChannel(inputStream), null).start();
+	}
+
+	/**
+	 * @return size of data, -1 if unknown
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Wait for next block.
+	 *
+	 * @return next block, null after last block
+	 * @throws IOException when block cannot be read
+	 */
+	public Block take() throws IOException {
+		if (finished) {
+			return null;
+		}
+		Block block;
+		try {
+			block = ready.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Reading of " + name + " interrupted");
+		}
+		if (block == END) {
+			finished = true;
+			if (nonNull(error)) {
+				throw error;
+			}
+			return null;
+		}
+		return block;
+	}
+
+	/**
+	 * Return buffer of sent block to pool.
+	 */
+	public void release(Block block) {
+		free.offer(block);
+	}
+
+	@Override
+	public void close() throws IOException {
+		producer.interrupt();
+		try {
+			producer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (nonNull(channel)) {
+			channel.close();
+		}
+	}
+
+	private BlockSource start() {
+		for (int i = 0; i < READ_AHEAD_BLOCKS; i++) {
+			free.add(new Block(blockSize));
+		}
+		producer = new Thread(this::produce, "block-source-" + name);
+		producer.setDaemon(true);
+		producer.start();
+		return this;
+	}
+
+	private void produce() {
+		try {
+			while (true) {
+				Block block = free.take();
+				block.length = isNull(content) ? readFromChannel(block.data) : readFromContent(block.data);
+				if (block.length > 0) {
+					ready.put(block);
+				}
+				if (block.length < blockSize) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed by consumer
+			return;
+		} catch (IOException e) {
+			error = e;
+		}
+		ready.offer(END);
+	}
+
+	private int readFromChannel(byte[] data) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				break;
+			}
+		}
+		return buffer.position();
+	}
+
+	private int readFromContent(byte[] data) {
+		int size = Math.min(data.length, content.remaining());
+		content.get(data, 0, size);
+		return size;
+	}
+}
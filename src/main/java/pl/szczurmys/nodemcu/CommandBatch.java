@@ -0,0 +1,132 @@
+package pl.szczurmys.nodemcu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Operations on device files which are sent together by {@link NodeMcuInterpreter#executeBatch(CommandBatch)}.
+ *
+ * @author szczurmys
+ */
+public class CommandBatch {
+	public enum OperationType {
+		REMOVE,
+		COMPILE,
+		RENAME,
+		/**
+		 * Free memory left by previous operations, e.g. between compiles.
+		 */
+		COLLECT_GARBAGE
+	}
+
+	public static class Operation {
+		private final OperationType type;
+		private final String file;
+		private final String target;
+
+		private Operation(OperationType type, String file, String target) {
+			this.type = type;
+			this.file = file;
+			this.target = target;
+		}
+
+		public OperationType getType() {
+			return type;
+		}
+
+		public String getFile() {
+			return file;
+		}
+
+		public String getTarget() {
+			return target;
+		}
+
+		/**
+		 * Lua expression which returns 1 when operation succeeded, otherwise 0.
+		 */
+		String toLua() {
+			switch (type) {
+				case REMOVE:
+					return String.format("_q(file.remove,\"%s\")", file);
+				case COMPILE:
+					return String.format("_q(node.compile,\"%s\")", file);
+				case RENAME:
+					return String.format("_q(file.rename,\"%s\",\"%s\")", file, target);
+				case COLLECT_GARBAGE:
+					return "_q(collectgarbage)";
+				default:
+					throw new IllegalStateException("Unknown operation: " + type);
+			}
+		}
+
+		@Override
+		public String toString() {
+			if (type == OperationType.RENAME) {
+				return type + " " + file + " -> " + target;
+			}
+			if (type == OperationType.COLLECT_GARBAGE) {
+				return type.toString();
+			}
+			return type + " " + file;
+		}
+	}
+
+	public static class Result {
+		private final Operation operation;
+		private final boolean success;
+
+		Result(Operation operation, boolean success) {
+			this.operation = operation;
+			this.success = success;
+		}
+
+		public Operation getOperation() {
+			return operation;
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+
+		@Override
+		public String toString() {
+			return operation + ": " + (success ? "OK" : "FAILED");
+		}
+	}
+
+	private final List<Operation> operations = new ArrayList<>();
+
+	public CommandBatch remove(String file) {
+		operations.add(new Operation(OperationType.REMOVE, file, null));
+		return this;
+	}
+
+	public CommandBatch compile(String file) {
+		operations.add(new Operation(OperationType.COMPILE, file, null));
+		return this;
+	}
+
+	public CommandBatch rename(String file, String target) {
+		operations.add(new Operation(OperationType.RENAME, file, target));
+		return this;
+	}
+
+	public CommandBatch collectGarbage() {
+		operations.add(new Operation(OperationType.COLLECT_GARBAGE, null, null));
+		return this;
+	}
+
+	public List<Operation> getOperations() {
+		return Collections.unmodifiableList(operations);
+	}
+
+	public boolean isEmpty() {
+		return operations.isEmpty();
+	}
+
+	public int size() {
+		return operations.size();
+	}
+}
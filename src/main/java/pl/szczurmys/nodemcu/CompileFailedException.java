@@ -0,0 +1,14 @@
+package pl.szczurmys.nodemcu;
+
+import java.io.IOException;
+
+/**
+ * Some files were not compiled on device, other files were deployed and main file was run.
+ *
+ * @author szczurmys
+ */
+public class CompileFailedException extends IOException {
+	public CompileFailedException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,47 @@
+package pl.szczurmys.nodemcu;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Files prepared on host (minified, compiled, ...) stored by key, usually hash of source.
+ *
+ * @author szczurmys
+ */
+public class ContentCache {
+	private final File directory;
+
+	public ContentCache(File directory) {
+		this.directory = directory;
+	}
+
+	public static ContentCache named(String name) {
+		return new ContentCache(new File(DeviceManifest.DEFAULT_DIRECTORY, name));
+	}
+
+	/**
+	 * @return cached content or null when not exists
+	 */
+	public byte[] get(String key) throws IOException {
+		File file = new File(directory, key);
+		if (!file.isFile()) {
+			return null;
+		}
+		return Files.readAllBytes(file.toPath());
+	}
+
+	public void put(String key, byte[] content) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory '" + directory.getAbsolutePath() + "'");
+		}
+		File temp = File.createTempFile(key, ".tmp", directory);
+		Files.write(temp.toPath(), content);
+		Files.move(temp.toPath(), new File(directory, key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+}
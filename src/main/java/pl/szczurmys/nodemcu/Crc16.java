@@ -0,0 +1,31 @@
+package pl.szczurmys.nodemcu;
+
+/**
+ * CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF), the same as computed on device
+ * by Lua routine installed by {@link NodeMcuInterpreter} with checksum enabled.
+ *
+ * @author szczurmys
+ */
+public class Crc16 {
+	public static final int INITIAL = 0xFFFF;
+
+	public static int ccitt(byte[] data, int offset, int length) {
+		return ccitt(INITIAL, data, offset, length);
+	}
+
+	/**
+	 * Continue CRC of previous data, e.g. of file read in chunks.
+	 *
+	 * @param crc CRC of previous data or {@link #INITIAL}
+	 */
+	public static int ccitt(int crc, byte[] data, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			crc ^= (data[i] & 0xFF) << 8;
+			for (int j = 0; j < 8; j++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+				crc &= 0xFFFF;
+			}
+		}
+		return crc;
+	}
+}
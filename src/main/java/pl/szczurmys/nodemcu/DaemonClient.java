@@ -0,0 +1,112 @@
+package pl.szczurmys.nodemcu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Send arguments to {@link DaemonServer}, print its output and forward console input to it.
+ *
+ * @author szczurmys
+ */
+class DaemonClient {
+	static final String OPTION = "-remote";
+
+	/**
+	 * Options with path, resolved here because daemon has other working directory.
+	 */
+	private static final String[] PATH_OPTIONS = {"-d=", "-M=", "-L="};
+
+	/**
+	 * @param optionIndex index of -remote option in args
+	 * @return exit code of job
+	 */
+	static int run(String[] args, int optionIndex) {
+		int tcpPort = DaemonServer.tcpPort(args[optionIndex], OPTION);
+		List<String> jobArgs = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (i != optionIndex) {
+				jobArgs.add(i == args.length - 1 ? new File(args[i]).getAbsolutePath() : absolutePaths(args[i]));
+			}
+		}
+
+		File tokenFile = DaemonServer.tokenFile(tcpPort);
+		String token;
+		try {
+			token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII);
+		} catch (IOException e) {
+			System.err.println("Cannot read token of daemon " + tokenFile.getAbsolutePath() + ". Start daemon by: java -jar interpreter.jar "
+					+ DaemonServer.OPTION + ". Message: " + e.getMessage());
+			return ErrorCode.DAEMON_CONNECTION_FAILED.code();
+		}
+
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), tcpPort)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeUTF(token);
+			out.writeInt(jobArgs.size());
+			for (String arg : jobArgs) {
+				out.writeUTF(arg);
+			}
+			out.flush();
+
+			Thread inputPump = new Thread(() -> pumpInput(socket), "remote-input");
+			inputPump.setDaemon(true);
+			inputPump.start();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			while (true) {
+				byte type = in.readByte();
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				if (type == DaemonServer.FRAME_EXIT) {
+					return ByteBuffer.wrap(data).getInt();
+				}
+				PrintStream target = type == DaemonServer.FRAME_ERR ? System.err : System.out;
+				target.write(data, 0, data.length);
+				target.flush();
+			}
+		} catch (ConnectException e) {
+			System.err.println("Daemon not running on port " + tcpPort + ". Start it by: java -jar interpreter.jar " + DaemonServer.OPTION);
+			return ErrorCode.DAEMON_CONNECTION_FAILED.code();
+		} catch (IOException e) {
+			System.err.println("Connection to daemon failed. Message: " + e.getMessage());
+			return ErrorCode.DAEMON_CONNECTION_FAILED.code();
+		}
+	}
+
+	private static String absolutePaths(String arg) {
+		for (String option : PATH_OPTIONS) {
+			if (arg.startsWith(option)) {
+				return option + new File(arg.substring(option.length())).getAbsolutePath();
+			}
+		}
+		return arg;
+	}
+
+	private static void pumpInput(Socket socket) {
+		byte[] buffer = new byte[256];
+		try {
+			OutputStream out = socket.getOutputStream();
+			int size;
+			while ((size = System.in.read(buffer)) > 0) {
+				out.write(buffer, 0, size);
+				out.flush();
+			}
+		} catch (IOException ignore) {
+			// job finished
+		}
+	}
+}
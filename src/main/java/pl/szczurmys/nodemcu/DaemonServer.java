@@ -0,0 +1,355 @@
+package pl.szczurmys.nodemcu;
+
+import jssc.SerialPortException;
+import jssc.SerialPortTimeoutException;
+import pl.szczurmys.nodemcu.transport.Transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Keep connections to devices open between runs and execute jobs sent by {@link DaemonClient}
+ * on local socket. Jobs are executed one by one, System.out, System.err and System.in of job
+ * are redirected to client.
+ * <p>
+ * Job: token (UTF), int count of arguments, arguments (UTF), next raw input of client.
+ * Response: frames - byte type, int length, data; last frame is {@link #FRAME_EXIT} with int exit code.
+ * <p>
+ * Token is random and written to file readable only by owner, see {@link #tokenFile(int)}, so only user
+ * who started daemon can send jobs. Jobs cannot run programs on host and write files only in their parent directory,
+ * see {@link #checkJob(DeployOptions)}.
+ *
+ * @author szczurmys
+ */
+class DaemonServer {
+	static final String OPTION = "-daemon";
+	static final int DEFAULT_TCP_PORT = 7600;
+
+	static final byte FRAME_OUT = 1;
+	static final byte FRAME_ERR = 2;
+	static final byte FRAME_EXIT = 3;
+
+	/**
+	 * Time for client to send token.
+	 */
+	private static final int TOKEN_TIMEOUT = 5000;
+	private static final int TOKEN_SIZE = 32;
+
+	private final Map<String, NodeMcuInterpreter> interpreters = new HashMap<>();
+	/**
+	 * Connection settings of each interpreter, connection is opened again when settings changed.
+	 */
+	private final Map<String, String> settings = new HashMap<>();
+	private final byte[] token;
+
+	DaemonServer(byte[] token) {
+		this.token = token;
+	}
+
+	/**
+	 * Run daemon until process is killed.
+	 *
+	 * @param option -daemon or -daemon=TCP_PORT
+	 */
+	static ErrorCode run(String option) {
+		int tcpPort = tcpPort(option, OPTION);
+		File tokenFile = tokenFile(tcpPort);
+		try (ServerSocket serverSocket = new ServerSocket(tcpPort, 50, InetAddress.getLoopbackAddress())) {
+			DaemonServer server = new DaemonServer(writeToken(tokenFile));
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				server.closeAll();
+				tokenFile.delete();
+			}));
+			System.out.println("Daemon listen on " + serverSocket.getLocalSocketAddress());
+			System.out.println("Token of jobs: " + tokenFile.getAbsolutePath());
+			while (true) {
+				try (Socket socket = serverSocket.accept()) {
+					server.handle(socket);
+				} catch (IOException e) {
+					System.err.println("Job failed. Message: " + e.getMessage());
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot start daemon on port " + tcpPort + ". Message: " + e.getMessage());
+			return ErrorCode.IO_EXCEPTION;
+		}
+	}
+
+	/**
+	 * @return TCP port from OPTION=TCP_PORT, default port when not set
+	 */
+	static int tcpPort(String option, String name) {
+		if (option.startsWith(name + "=")) {
+			return Integer.parseInt(option.substring(name.length() + 1));
+		}
+		return DEFAULT_TCP_PORT;
+	}
+
+	/**
+	 * @return file with token of daemon listening on TCP port
+	 */
+	static File tokenFile(int tcpPort) {
+		return new File(DeviceManifest.DEFAULT_DIRECTORY, "daemon-" + tcpPort + ".token");
+	}
+
+	/**
+	 * Write new random token to file readable and writable only by owner.
+	 */
+	private static byte[] writeToken(File tokenFile) throws IOException {
+		byte[] token = new byte[TOKEN_SIZE];
+		new SecureRandom().nextBytes(token);
+		byte[] hex = FileHelper.toHex(token).getBytes(StandardCharsets.US_ASCII);
+
+		Files.createDirectories(tokenFile.getParentFile().toPath());
+		Files.deleteIfExists(tokenFile.toPath());
+		try {
+			Files.createFile(tokenFile.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// not POSIX file system, e.g. Windows
+			Files.createFile(tokenFile.toPath());
+			if (!tokenFile.setReadable(false, false) || !tokenFile.setReadable(true, true)
+					|| !tokenFile.setWritable(false, false) || !tokenFile.setWritable(true, true)) {
+				Files.delete(tokenFile.toPath());
+				throw new IOException("Cannot limit access to token file " + tokenFile.getAbsolutePath() + " to owner");
+			}
+		} catch (FileAlreadyExistsException e) {
+			throw new IOException("Token file " + tokenFile.getAbsolutePath() + " was created by other process");
+		}
+		Files.write(tokenFile.toPath(), hex);
+		return hex;
+	}
+
+	/**
+	 * Job is executed with rights of daemon, so it cannot run programs on host (luac.cross)
+	 * and writes log and metrics only in its parent directory.
+	 *
+	 * @return null when job is allowed, otherwise reason
+	 */
+	static String checkJob(DeployOptions options) throws IOException {
+		if (nonNull(options.hostCompiler)) {
+			return "Option -lc is not allowed in job of daemon, compile on host without -remote.";
+		}
+		String parent = options.parentDirectory.getCanonicalPath() + File.separator;
+		if (nonNull(options.outputLog) && !options.outputLog.getCanonicalPath().startsWith(parent)) {
+			return "Log file of job of daemon must be in parent directory: " + options.parentDirectory.getAbsolutePath();
+		}
+		if (nonNull(options.metricsFile) && !options.metricsFile.getCanonicalPath().startsWith(parent)) {
+			return "Metrics file of job of daemon must be in parent directory: " + options.parentDirectory.getAbsolutePath();
+		}
+		return null;
+	}
+
+	/**
+	 * Deploy by connection kept from previous jobs, connection is closed after serial error.
+	 * Metrics of kept connection are reset, so each job writes only its own.
+	 */
+	ErrorCode runJob(DeployOptions options, String name, Supplier<Transport> transport, String endCommand, int timeout,
+					 CompletableFuture<Map<String, String>> hashes) {
+		List<TransferMetrics> metrics = new ArrayList<>();
+		try {
+			NodeMcuInterpreter interpreter = acquire(name, transport, endCommand, options, timeout);
+			metrics.add(interpreter.getMetrics());
+			Interpreter.deploy(options, interpreter, hashes, null);
+		} catch (SerialPortException | SerialPortTimeoutException | DetectedException e) {
+			System.err.println(e.getMessage());
+			close(name);
+			return Interpreter.errorCode(e);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			return Interpreter.errorCode(e);
+		} finally {
+			Interpreter.writeMetrics(options, metrics);
+		}
+		return ErrorCode.SUCCESS;
+	}
+
+	/**
+	 * Close kept connections, e.g. before other code opens these ports.
+	 */
+	void close(Collection<String> names) {
+		for (String name : names) {
+			close(name);
+		}
+	}
+
+	private NodeMcuInterpreter acquire(String name, Supplier<Transport> transport, String endCommand, DeployOptions options, int timeout)
+			throws SerialPortException, SerialPortTimeoutException, DetectedException {
+		String key = endCommand + "|" + options.baudRate + "|" + timeout;
+		NodeMcuInterpreter interpreter = interpreters.get(name);
+		if (nonNull(interpreter) && (interpreter.isClosed() || options.freshDetection
+				|| !key.equals(settings.get(name)) || !responds(interpreter))) {
+			close(name);
+			interpreter = null;
+		}
+		if (isNull(interpreter)) {
+			interpreter = new NodeMcuInterpreter(transport.get(), endCommand, options.baudRate, timeout,
+					Interpreter.fingerprints(options));
+			interpreters.put(name, interpreter);
+			settings.put(name, key);
+		} else {
+			System.out.println("Use open connection to " + name + ", chip id: " + interpreter.getChipId());
+			// metrics of job, not of connection
+			interpreter.getMetrics().reset();
+		}
+		return interpreter;
+	}
+
+	/**
+	 * Device could be reset or disconnected since previous job.
+	 */
+	private static boolean responds(NodeMcuInterpreter interpreter) {
+		try {
+			return "1".equals(interpreter.evaluate("1"));
+		} catch (SerialPortException | SerialPortTimeoutException e) {
+			System.out.println("Device " + interpreter.getPort() + " not respond, connect again.");
+			return false;
+		}
+	}
+
+	private void close(String name) {
+		NodeMcuInterpreter interpreter = interpreters.remove(name);
+		settings.remove(name);
+		if (nonNull(interpreter) && !interpreter.isClosed()) {
+			interpreter.close();
+		}
+	}
+
+	private synchronized void closeAll() {
+		close(new ArrayList<>(interpreters.keySet()));
+	}
+
+	synchronized void handle(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		socket.setSoTimeout(TOKEN_TIMEOUT);
+		if (!MessageDigest.isEqual(token, in.readUTF().getBytes(StandardCharsets.US_ASCII))) {
+			System.err.println("Job rejected, wrong token from " + socket.getRemoteSocketAddress());
+			writeExit(out, ErrorCode.DAEMON_JOB_REJECTED);
+			return;
+		}
+		socket.setSoTimeout(0);
+		String[] args = new String[in.readInt()];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = in.readUTF();
+		}
+
+		PrintStream systemOut = System.out;
+		PrintStream systemErr = System.err;
+		InputStream systemIn = System.in;
+		PipedInputStream jobIn = new PipedInputStream();
+		PipedOutputStream jobInWriter = new PipedOutputStream(jobIn);
+		Thread inputPump = new Thread(() -> pumpInput(in, jobInWriter), "daemon-input");
+		inputPump.setDaemon(true);
+		inputPump.start();
+
+		ErrorCode errorCode;
+		try {
+			System.setOut(new PrintStream(new FrameOutputStream(out, FRAME_OUT), true));
+			System.setErr(new PrintStream(new FrameOutputStream(out, FRAME_ERR), true));
+			System.setIn(jobIn);
+			systemOut.println("Job: " + String.join(" ", args));
+			errorCode = Interpreter.execute(args, this);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			errorCode = ErrorCode.IO_EXCEPTION;
+		} finally {
+			System.out.flush();
+			System.err.flush();
+			System.setOut(systemOut);
+			System.setErr(systemErr);
+			System.setIn(systemIn);
+		}
+		writeExit(out, errorCode);
+		systemOut.println("Job finished: " + errorCode);
+	}
+
+	private static void writeExit(DataOutputStream out, ErrorCode errorCode) throws IOException {
+		synchronized (out) {
+			out.writeByte(FRAME_EXIT);
+			out.writeInt(4);
+			out.writeInt(errorCode.code());
+			out.flush();
+		}
+	}
+
+	/**
+	 * Input of client for job, end of input (client closed) works as enter, so waiting for output ends.
+	 */
+	private static void pumpInput(InputStream in, OutputStream jobIn) {
+		byte[] buffer = new byte[256];
+		try {
+			int size;
+			while ((size = in.read(buffer)) > 0) {
+				jobIn.write(buffer, 0, size);
+				jobIn.flush();
+			}
+		} catch (IOException ignore) {
+			// socket closed
+		}
+		try {
+			jobIn.write('\n');
+			jobIn.close();
+		} catch (IOException ignore) {
+			// job already finished
+		}
+	}
+
+	private static class FrameOutputStream extends OutputStream {
+		private final DataOutputStream out;
+		private final byte type;
+
+		FrameOutputStream(DataOutputStream out, byte type) {
+			this.out = out;
+			this.type = type;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (out) {
+				out.writeByte(type);
+				out.writeInt(len);
+				out.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (out) {
+				out.flush();
+			}
+		}
+	}
+}
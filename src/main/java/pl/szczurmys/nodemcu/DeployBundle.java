@@ -0,0 +1,82 @@
+package pl.szczurmys.nodemcu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Many files packed into one stream, which is unpacked on device while it arrives,
+ * see {@link NodeMcuInterpreter#saveBundle(DeployBundle)}.
+ * <p>
+ * Each file is: length of name (1 byte), name, size (4 bytes, big endian), content.
+ * Stream ends with 0 byte and is padded with zeros to full blocks, so device receives it by one handler.
+ *
+ * @author szczurmys
+ */
+public class DeployBundle {
+	public static final int MAX_NAME_LENGTH = 255;
+
+	private final Map<String, byte[]> files = new LinkedHashMap<>();
+	private long length = 1;
+
+	public void add(String path, byte[] content) throws IOException {
+		byte[] name = path.getBytes(NodeMcuInterpreter.CHARSET);
+		if (name.length == 0 || name.length > MAX_NAME_LENGTH) {
+			throw new IOException("Name of file '" + path + "' cannot be packed, length must be from 1 to " + MAX_NAME_LENGTH);
+		}
+		if (files.containsKey(path)) {
+			throw new IOException("File '" + path + "' is already packed");
+		}
+		files.put(path, content);
+		length += 1 + name.length + 4 + content.length;
+	}
+
+	public boolean isEmpty() {
+		return files.isEmpty();
+	}
+
+	public int getFileCount() {
+		return files.size();
+	}
+
+	/**
+	 * @return expected sizes of files on device after unpack
+	 */
+	public Map<String, Integer> getSizes() {
+		Map<String, Integer> sizes = new LinkedHashMap<>();
+		for (Map.Entry<String, byte[]> e : files.entrySet()) {
+			sizes.put(e.getKey(), e.getValue().length);
+		}
+		return Collections.unmodifiableMap(sizes);
+	}
+
+	/**
+	 * @return length of stream without padding
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public byte[] toBytes(int blockSize) {
+		long padded = (length + blockSize - 1) / blockSize * blockSize;
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) padded);
+		for (Map.Entry<String, byte[]> e : files.entrySet()) {
+			byte[] name = e.getKey().getBytes(NodeMcuInterpreter.CHARSET);
+			byte[] content = e.getValue();
+			out.write(name.length);
+			out.write(name, 0, name.length);
+			out.write(content.length >>> 24);
+			out.write(content.length >>> 16);
+			out.write(content.length >>> 8);
+			out.write(content.length);
+			out.write(content, 0, content.length);
+		}
+		while (out.size() < padded) {
+			// end of stream and padding
+			out.write(0);
+		}
+		return out.toByteArray();
+	}
+}
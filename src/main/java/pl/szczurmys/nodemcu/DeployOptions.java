@@ -0,0 +1,44 @@
+package pl.szczurmys.nodemcu;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * Settings of one deploy, parsed from command line by {@link Interpreter}.
+ *
+ * @author szczurmys
+ */
+class DeployOptions {
+	File fileToRun;
+	String fileToRunRelative;
+	File parentDirectory;
+	boolean sendOnlyOne;
+	boolean notRunOnlySave;
+	boolean onlyRemoveFiles;
+	boolean ignoreDirectories;
+	boolean waitForOutput;
+	Set<String> excludeFiles;
+	Set<String> ignoreCompileFiles;
+	boolean compile;
+	boolean removeSourceAfterCompile;
+	boolean incremental;
+	boolean delta;
+	int windowSize;
+	boolean checksum;
+	boolean adaptive;
+	boolean resumable;
+	boolean bundle;
+	boolean restartForCompile;
+	int transferBaudRate;
+	int baudRate;
+	boolean minify;
+	File hostCompiler;
+	File metricsFile;
+	boolean freshDetection;
+	/**
+	 * Debounce of watch mode [ms], 0 - watch mode off.
+	 */
+	int watchDebounce;
+	File outputLog;
+	long outputLogSize;
+}
@@ -0,0 +1,200 @@
+package pl.szczurmys.nodemcu;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Operations of one deploy, checked against free space of device before anything is sent.
+ * Sizes on flash and transfer time are estimates.
+ *
+ * @author szczurmys
+ */
+public class DeployPlan {
+	/**
+	 * SPIFFS page, each page has small header and each file has also index page.
+	 */
+	public static final int PAGE_SIZE = 256;
+	public static final int PAGE_HEADER = 5;
+
+	/**
+	 * Approximate length of commands sent for each file and for each block, see NodeMcuInterpreter.saveFile.
+	 */
+	private static final int FILE_COMMANDS_LENGTH = 50;
+	private static final int BLOCK_COMMAND_LENGTH = 110;
+	private static final int WINDOW_COMMAND_LENGTH = 170;
+	private static final int ACK_LENGTH = 9;
+	private static final int PROMPT_LENGTH = 4;
+	/**
+	 * Time of device to answer one command or block [ms].
+	 */
+	private static final int DEVICE_TURNAROUND = 5;
+
+	private final DeviceStorage storage;
+	private final int baudRate;
+	private final int windowSize;
+	private final int blockSize;
+
+	private final Set<String> removed = new LinkedHashSet<>();
+	/**
+	 * Files overwritten by upload, their space is freed without remove.
+	 */
+	private final Set<String> replaced = new LinkedHashSet<>();
+	private final Map<String, Long> uploads = new LinkedHashMap<>();
+	private final Map<String, Long> patches = new LinkedHashMap<>();
+	private final List<String> compiles = new ArrayList<>();
+	private long requiredBytes = 0;
+	private long wireBytes = 0;
+	private long roundTrips = 0;
+
+	/**
+	 * @param baudRate   baud rate of transfer
+	 * @param windowSize window of pipelined upload, 0 - stop-and-wait
+	 */
+	public DeployPlan(DeviceStorage storage, int baudRate, int windowSize, int blockSize) {
+		this.storage = storage;
+		this.baudRate = baudRate;
+		this.windowSize = windowSize;
+		this.blockSize = blockSize;
+	}
+
+	public DeployPlan remove(String path) {
+		removed.add(path);
+		return this;
+	}
+
+	/**
+	 * Existing file is overwritten by upload, no remove command is sent.
+	 */
+	public DeployPlan replace(String path) {
+		replaced.add(path);
+		return this;
+	}
+
+	public DeployPlan upload(String path, long size) {
+		uploads.put(path, size);
+		requiredBytes += spaceOnFlash(size);
+		wireBytes += 2 * FILE_COMMANDS_LENGTH;
+		roundTrips += 2;
+		transfer(size);
+		return this;
+	}
+
+	/**
+	 * Rewrite changed regions of file which stays on device, only growth of file needs space.
+	 */
+	public DeployPlan patch(String path, long previousSize, long size, List<FileDelta.Region> regions) {
+		long changedBytes = 0;
+		for (FileDelta.Region region : regions) {
+			changedBytes += region.getLength();
+			wireBytes += FILE_COMMANDS_LENGTH;
+			roundTrips += 1;
+			transfer(region.getLength());
+		}
+		patches.put(path, changedBytes);
+		requiredBytes += spaceOnFlash(size) - spaceOnFlash(previousSize);
+		wireBytes += 2 * FILE_COMMANDS_LENGTH;
+		roundTrips += 2;
+		return this;
+	}
+
+	private void transfer(long size) {
+		long fullBlocks = size / blockSize;
+		boolean partialBlock = size % blockSize > 0;
+		wireBytes += size;
+		if (windowSize > 0) {
+			if (fullBlocks > 0) {
+				wireBytes += 2 * WINDOW_COMMAND_LENGTH + fullBlocks * ACK_LENGTH;
+				roundTrips += 1 + (fullBlocks + windowSize - 1) / windowSize;
+			}
+			fullBlocks = 0;
+		}
+		long stopAndWaitBlocks = fullBlocks + (partialBlock ? 1 : 0);
+		wireBytes += stopAndWaitBlocks * (2 * BLOCK_COMMAND_LENGTH + PROMPT_LENGTH + ACK_LENGTH);
+		roundTrips += stopAndWaitBlocks * 2;
+	}
+
+	/**
+	 * Compile on device, bytecode is assumed as big as source and source is still on flash after compile.
+	 */
+	public DeployPlan compile(String compiledPath, long sourceSize) {
+		compiles.add(compiledPath);
+		requiredBytes += spaceOnFlash(sourceSize);
+		return this;
+	}
+
+	/**
+	 * @return bytes needed on flash by new files
+	 */
+	public long getRequiredBytes() {
+		return requiredBytes;
+	}
+
+	/**
+	 * @return bytes of files which are removed or overwritten
+	 */
+	public long getFreedBytes() {
+		Set<String> freedFiles = new LinkedHashSet<>(removed);
+		freedFiles.addAll(replaced);
+		long freed = 0;
+		for (String path : freedFiles) {
+			Integer size = storage.getFiles().get(path);
+			if (nonNull(size)) {
+				freed += spaceOnFlash(size);
+			}
+		}
+		return freed;
+	}
+
+	public long getAvailableBytes() {
+		return storage.getRemaining() + getFreedBytes();
+	}
+
+	public boolean fits() {
+		return getRequiredBytes() <= getAvailableBytes();
+	}
+
+	public long getUploadBytes() {
+		long bytes = 0;
+		for (long size : uploads.values()) {
+			bytes += size;
+		}
+		return bytes;
+	}
+
+	public long getPatchBytes() {
+		long bytes = 0;
+		for (long size : patches.values()) {
+			bytes += size;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return estimated time of upload [s], 10 bits per byte on serial line
+	 */
+	public double getEstimatedSeconds() {
+		return wireBytes * 10.0 / baudRate + roundTrips * DEVICE_TURNAROUND / 1000.0;
+	}
+
+	static long spaceOnFlash(long size) {
+		long pages = (size + PAGE_SIZE - PAGE_HEADER - 1) / (PAGE_SIZE - PAGE_HEADER);
+		return (pages + 1) * PAGE_SIZE;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "Plan: remove %d, upload %d (%d bytes), patch %d (%d bytes), compile %d files.%n" +
+						"Flash estimate: required %d bytes, available %d bytes (free %d + removed %d), total %d.%n" +
+						"Estimated transfer time: %.1f s at %d baud.",
+				removed.size(), uploads.size(), getUploadBytes(), patches.size(), getPatchBytes(), compiles.size(),
+				getRequiredBytes(), getAvailableBytes(), storage.getRemaining(), getFreedBytes(), storage.getTotal(),
+				getEstimatedSeconds(), baudRate);
+	}
+}
@@ -0,0 +1,114 @@
+package pl.szczurmys.nodemcu;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Devices last detected on each port: chip id, flash id and firmware version.
+ * Known device is verified by one query of chip id and flash id instead of node.info().
+ *
+ * @author szczurmys
+ */
+public class DeviceFingerprints {
+	public static final File DEFAULT_FILE = new File(DeviceManifest.DEFAULT_DIRECTORY, "fingerprints.properties");
+
+	public static class Fingerprint {
+		private final String chipId;
+		private final String flashId;
+		private final String firmwareVersion;
+
+		public Fingerprint(String chipId, String flashId, String firmwareVersion) {
+			this.chipId = chipId;
+			this.flashId = flashId;
+			this.firmwareVersion = firmwareVersion;
+		}
+
+		public String getChipId() {
+			return chipId;
+		}
+
+		public String getFlashId() {
+			return flashId;
+		}
+
+		public String getFirmwareVersion() {
+			return firmwareVersion;
+		}
+
+		/**
+		 * @return chip id and flash id, as printed by device for verification
+		 */
+		public String getId() {
+			return chipId + ":" + flashId;
+		}
+	}
+
+	private final File file;
+
+	public DeviceFingerprints(File file) {
+		this.file = file;
+	}
+
+	public static DeviceFingerprints getDefault() {
+		return new DeviceFingerprints(DEFAULT_FILE);
+	}
+
+	/**
+	 * @return fingerprint of device last detected on port, null if unknown
+	 */
+	public Fingerprint get(String port) {
+		String value;
+		synchronized (DeviceFingerprints.class) {
+			value = load().getProperty(port);
+		}
+		if (isNull(value)) {
+			return null;
+		}
+		String[] parts = value.split(" ", 3);
+		if (parts.length != 3) {
+			return null;
+		}
+		return new Fingerprint(parts[0], parts[1], parts[2]);
+	}
+
+	/**
+	 * Save fingerprint, other ports are read again, so many devices can be detected at once.
+	 */
+	public void put(String port, Fingerprint fingerprint) throws IOException {
+		synchronized (DeviceFingerprints.class) {
+			Properties entries = load();
+			entries.setProperty(port, fingerprint.chipId + " " + fingerprint.flashId + " " + fingerprint.firmwareVersion);
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (nonNull(parent) && !parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Cannot create directory '" + parent.getAbsolutePath() + "'");
+			}
+			File temp = new File(parent, file.getName() + ".tmp");
+			try (OutputStream outputStream = new FileOutputStream(temp)) {
+				entries.store(outputStream, "node-mcu-interpreter device fingerprints");
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private Properties load() {
+		Properties entries = new Properties();
+		if (file.isFile()) {
+			try (InputStream inputStream = new FileInputStream(file)) {
+				entries.load(inputStream);
+			} catch (IOException e) {
+				System.err.println("Cannot read fingerprints '" + file.getAbsolutePath() + "'. Message: " + e.getMessage());
+			}
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,125 @@
+package pl.szczurmys.nodemcu;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Local record of files which was sent to one device.
+ * Key is relative path of source file, value is content hash and how file was stored on device.
+ * Block hashes of files for delta upload are kept in second file, see {@link FileDelta}.
+ *
+ * @author szczurmys
+ */
+public class DeviceManifest {
+	public static final File DEFAULT_DIRECTORY = new File(System.getProperty("user.home"), ".node-mcu-interpreter");
+
+	public static final String MODE_RAW = "raw";
+	public static final String MODE_COMPILED = "compiled";
+	public static final String MODE_COMPILED_WITH_SOURCE = "compiled+source";
+	public static final String MODE_HOST_COMPILED = "host-compiled";
+	public static final String MODE_MINIFIED_SUFFIX = "+minified";
+
+	private final File file;
+	private final File blocksFile;
+	private final Properties entries = new Properties();
+	private final Properties blocks = new Properties();
+
+	public DeviceManifest(File file) {
+		this.file = file;
+		this.blocksFile = new File(file.getParentFile(), file.getName().replaceFirst("\\.properties$", "") + ".blocks.properties");
+	}
+
+	public static DeviceManifest forDevice(String deviceId) throws IOException {
+		File manifestFile = new File(DEFAULT_DIRECTORY, "manifest-" + deviceId.replaceAll("[^A-Za-z0-9._-]", "_") + ".properties");
+		DeviceManifest manifest = new DeviceManifest(manifestFile);
+		manifest.load();
+		return manifest;
+	}
+
+	/**
+	 * Hash all files in parallel. Can be started before serial port is opened.
+	 */
+	public static CompletableFuture<Map<String, String>> hashFilesAsync(File directory, Collection<File> files) {
+		return CompletableFuture.supplyAsync(() -> {
+			Map<String, String> hashes = new ConcurrentHashMap<>();
+			files.parallelStream().forEach(f -> {
+				try {
+					hashes.put(FileHelper.getUnixRelativePath(directory, f), FileHelper.hash(f));
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			});
+			return hashes;
+		});
+	}
+
+	public synchronized void load() throws IOException {
+		load(file, entries);
+		load(blocksFile, blocks);
+	}
+
+	private static void load(File file, Properties properties) throws IOException {
+		properties.clear();
+		if (!file.isFile()) {
+			return;
+		}
+		try (InputStream inputStream = new FileInputStream(file)) {
+			properties.load(inputStream);
+		}
+	}
+
+	public synchronized void save() throws IOException {
+		File parent = file.getParentFile();
+		if (nonNull(parent) && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Cannot create directory '" + parent.getAbsolutePath() + "'");
+		}
+		try (OutputStream outputStream = new FileOutputStream(file)) {
+			entries.store(outputStream, "node-mcu-interpreter device manifest");
+		}
+		if (!blocks.isEmpty() || blocksFile.isFile()) {
+			try (OutputStream outputStream = new FileOutputStream(blocksFile)) {
+				blocks.store(outputStream, "node-mcu-interpreter block hashes");
+			}
+		}
+	}
+
+	public synchronized boolean isUnchanged(String relativePath, String hash, String mode) {
+		return (hash + " " + mode).equals(entries.getProperty(relativePath));
+	}
+
+	public synchronized void put(String relativePath, String hash, String mode) {
+		entries.setProperty(relativePath, hash + " " + mode);
+	}
+
+	/**
+	 * @return block hashes of file on device, null if unknown
+	 */
+	public synchronized String getBlockHashes(String relativePath) {
+		return blocks.getProperty(relativePath);
+	}
+
+	public synchronized void putBlockHashes(String relativePath, String blockHashes) {
+		blocks.setProperty(relativePath, blockHashes);
+	}
+
+	public synchronized void remove(String relativePath) {
+		entries.remove(relativePath);
+		blocks.remove(relativePath);
+	}
+
+	public File getFile() {
+		return file;
+	}
+}
@@ -0,0 +1,45 @@
+package pl.szczurmys.nodemcu;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Files on device and state of file system (file.fsinfo()), read in one round trip.
+ *
+ * @author szczurmys
+ */
+public class DeviceStorage {
+	private final Map<String, Integer> files;
+	private final long remaining;
+	private final long used;
+	private final long total;
+
+	public DeviceStorage(Map<String, Integer> files, long remaining, long used, long total) {
+		this.files = Collections.unmodifiableMap(files);
+		this.remaining = remaining;
+		this.used = used;
+		this.total = total;
+	}
+
+	/**
+	 * @return map name to size in bytes
+	 */
+	public Map<String, Integer> getFiles() {
+		return files;
+	}
+
+	/**
+	 * @return free bytes of file system
+	 */
+	public long getRemaining() {
+		return remaining;
+	}
+
+	public long getUsed() {
+		return used;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+}
@@ -0,0 +1,140 @@
+package pl.szczurmys.nodemcu;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Watch parent directory for saved files. Burst of events (editor writes file in many steps,
+ * many files saved at once) is coalesced into one list of changed files.
+ * Removed files, hidden files and backup files of editors (name~) are not reported.
+ *
+ * @author szczurmys
+ */
+public class DirectoryWatcher implements Closeable {
+	public static final int DEFAULT_DEBOUNCE = 300;
+
+	private final Path root;
+	private final boolean recursive;
+	private final int debounce;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+
+	/**
+	 * @param recursive watch also subdirectories, created later too
+	 * @param debounce  time without events which ends burst [ms]
+	 */
+	public DirectoryWatcher(File directory, boolean recursive, int debounce) throws IOException {
+		this.root = directory.getAbsoluteFile().toPath();
+		this.recursive = recursive;
+		this.debounce = debounce;
+		this.watchService = root.getFileSystem().newWatchService();
+		register(root);
+	}
+
+	/**
+	 * Wait for changes and next for end of burst.
+	 *
+	 * @return changed files in order of first change, null when watcher was closed
+	 */
+	public List<File> awaitChanges() throws InterruptedException, IOException {
+		Set<Path> changed = new LinkedHashSet<>();
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				while (nonNull(key)) {
+					collect(key, changed);
+					key = watchService.poll(debounce, TimeUnit.MILLISECONDS);
+				}
+				List<File> files = new ArrayList<>();
+				for (Path path : changed) {
+					if (Files.isRegularFile(path) && !isIgnored(path)) {
+						files.add(path.toFile());
+					}
+				}
+				if (!files.isEmpty()) {
+					return files;
+				}
+				changed.clear();
+			}
+		} catch (ClosedWatchServiceException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+
+	private void collect(WatchKey key, Set<Path> changed) throws IOException {
+		Path dir = directories.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (isNull(dir) || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				continue;
+			}
+			Path path = dir.resolve((Path) event.context());
+			if (Files.isDirectory(path)) {
+				if (recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && !isIgnored(path)) {
+					// files could be created before directory was registered
+					register(path);
+					try (Stream<Path> files = Files.walk(path)) {
+						files.filter(Files::isRegularFile).forEach(changed::add);
+					}
+				}
+				continue;
+			}
+			changed.add(path);
+		}
+		if (!key.reset()) {
+			directories.remove(key);
+		}
+	}
+
+	private void register(Path dir) throws IOException {
+		WatchKey key = dir.register(watchService,
+				StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		directories.put(key, dir);
+		if (!recursive) {
+			return;
+		}
+		try (Stream<Path> children = Files.list(dir)) {
+			for (Path child : (Iterable<Path>) children::iterator) {
+				if (Files.isDirectory(child) && !isIgnored(child)) {
+					register(child);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hidden files and directories, e.g. .git or swap files of editor, and backup files.
+	 */
+	private boolean isIgnored(Path path) {
+		for (Path part : root.relativize(path)) {
+			String name = part.toString();
+			if (name.startsWith(".") || name.endsWith("~")) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -16,7 +16,14 @@ public enum ErrorCode {
 	DETECTION_EXCEPTION(9),
 	IO_EXCEPTION(10),
 	FILE_TO_RUN_IN_DIRECTORIES_WHEN_ONLY_ONE_AND_IGNORE_DIRECTORIES(11),
-	BAUD_RATE_MUST_BE_GREATER_THAN_0(12),;
+	BAUD_RATE_MUST_BE_GREATER_THAN_0(12),
+	WINDOW_SIZE_MUST_BE_GREATER_OR_EQUAL_0(13),
+	FLEET_DEPLOY_FAILED(14),
+	DAEMON_CONNECTION_FAILED(15),
+	NOT_ENOUGH_SPACE(16),
+	COMPILE_FAILED(17),
+	DAEMON_JOB_REJECTED(18),
+	LOG_SIZE_MUST_BE_GREATER_THAN_0(19),;
 	int code;
 
 	ErrorCode(int code) {
@@ -0,0 +1,129 @@
+package pl.szczurmys.nodemcu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Changed regions of file compared by hashes of blocks sent in previous deploy.
+ * Blocks are aligned to {@link NodeMcuInterpreter#BLOCK_SIZE}, so each changed block is one block on serial line.
+ * <p>
+ * Block hashes are stored as: length:crc,crc,...
+ *
+ * @author szczurmys
+ */
+public class FileDelta {
+	public static final int BLOCK_SIZE = NodeMcuInterpreter.BLOCK_SIZE;
+
+	public static class Region {
+		private final int offset;
+		private final int length;
+
+		Region(int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		@Override
+		public String toString() {
+			return offset + "+" + length;
+		}
+	}
+
+	private final List<Region> regions;
+
+	private FileDelta(List<Region> regions) {
+		this.regions = regions;
+	}
+
+	public static String blockHashes(byte[] content) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(content.length).append(':');
+		CRC32 crc = new CRC32();
+		for (int offset = 0; offset < content.length; offset += BLOCK_SIZE) {
+			crc.reset();
+			crc.update(content, offset, Math.min(BLOCK_SIZE, content.length - offset));
+			if (offset > 0) {
+				sb.append(',');
+			}
+			sb.append(Long.toHexString(crc.getValue()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return length of file from block hashes, -1 if hashes are not valid
+	 */
+	public static long length(String blockHashes) {
+		if (isNull(blockHashes)) {
+			return -1;
+		}
+		int separator = blockHashes.indexOf(':');
+		try {
+			return separator > 0 ? Long.parseLong(blockHashes.substring(0, separator)) : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param previous block hashes of file on device
+	 * @return changed regions, null when file cannot be patched: previous hashes are not valid or file is shorter
+	 * (file on device cannot be truncated)
+	 */
+	public static FileDelta compare(String previous, byte[] content) {
+		long previousLength = length(previous);
+		if (previousLength < 0 || content.length < previousLength) {
+			return null;
+		}
+		String[] previousBlocks = previous.substring(previous.indexOf(':') + 1).split(",", -1);
+		String[] currentBlocks = blockHashes(content).substring(String.valueOf(content.length).length() + 1).split(",", -1);
+		if (previousBlocks.length != (previousLength + BLOCK_SIZE - 1) / BLOCK_SIZE && previousLength > 0) {
+			return null;
+		}
+
+		List<Region> regions = new ArrayList<>();
+		int start = -1;
+		for (int i = 0; i < currentBlocks.length && content.length > 0; i++) {
+			boolean changed = i >= previousBlocks.length || !previousBlocks[i].equals(currentBlocks[i]);
+			if (changed && start < 0) {
+				start = i;
+			} else if (!changed && start >= 0) {
+				regions.add(region(start, i, content.length));
+				start = -1;
+			}
+		}
+		if (start >= 0) {
+			regions.add(region(start, currentBlocks.length, content.length));
+		}
+		return new FileDelta(Collections.unmodifiableList(regions));
+	}
+
+	private static Region region(int startBlock, int endBlock, int contentLength) {
+		int offset = startBlock * BLOCK_SIZE;
+		return new Region(offset, Math.min(endBlock * BLOCK_SIZE, contentLength) - offset);
+	}
+
+	public List<Region> getRegions() {
+		return regions;
+	}
+
+	public long getChangedBytes() {
+		long bytes = 0;
+		for (Region region : regions) {
+			bytes += region.length;
+		}
+		return bytes;
+	}
+}
@@ -1,11 +1,22 @@
 package pl.szczurmys.nodemcu;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Objects.isNull;
 
 /**
  * @author szczurmys
  */
 public class FileHelper {
+	public static final String HASH_ALGORITHM = "SHA-1";
+
 	public static String getUnixRelativePath(File base, File path) {
 		return base.toURI().relativize(path.toURI())
 				.getPath().replace("\\", "/");
@@ -22,4 +33,65 @@ public class FileHelper {
 		}
 		return new String[0];
 	}
+
+	/**
+	 * Walk directory in the same order as files are sent to device.
+	 */
+	public static List<File> listFiles(File dir, boolean ignoreDirectories) {
+		List<File> result = new ArrayList<>();
+		listFiles(dir, ignoreDirectories, result);
+		return result;
+	}
+
+	private static void listFiles(File dir, boolean ignoreDirectories, List<File> result) {
+		File[] files = dir.listFiles();
+		if (isNull(files)) {
+			return;
+		}
+		for (File f : files) {
+			if (f.isDirectory()) {
+				if (ignoreDirectories) {
+					continue;
+				}
+				listFiles(f, ignoreDirectories, result);
+				continue;
+			}
+			if (!f.isFile()) {
+				continue;
+			}
+			result.add(f);
+		}
+	}
+
+	public static String hash(File file) throws IOException {
+		MessageDigest digest = createDigest();
+		byte[] buffer = new byte[8192];
+		try (InputStream inputStream = new FileInputStream(file)) {
+			int size;
+			while ((size = inputStream.read(buffer)) > 0) {
+				digest.update(buffer, 0, size);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	public static String hash(byte[] content) {
+		return toHex(createDigest().digest(content));
+	}
+
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b & 0xFF));
+		}
+		return sb.toString();
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
 }
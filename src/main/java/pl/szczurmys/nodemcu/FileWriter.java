@@ -3,18 +3,60 @@ package pl.szczurmys.nodemcu;
 import jssc.SerialPortException;
 import jssc.SerialPortTimeoutException;
 
+import pl.szczurmys.nodemcu.lua.LuaCompiler;
+import pl.szczurmys.nodemcu.lua.LuaMinifier;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
 
+import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 
 /**
+ * Send files to device in phases: remove old files, upload, compile, remove sources.
+ * Removes and compiles are sent in batches by {@link NodeMcuInterpreter#executeBatch(CommandBatch)}.
+ *
  * @author szczurmys
  */
 public class FileWriter {
+	/**
+	 * Smaller files are always sent whole, patch costs more commands than upload.
+	 */
+	public static final long DELTA_MIN_SIZE = 4096;
+	/**
+	 * Bigger files are sent alone, they can be resumed and bundle is kept in memory.
+	 */
+	public static final long BUNDLE_MAX_FILE_SIZE = 64 * 1024;
+	/**
+	 * Files up to this size are compiled together, up to {@link #COMPILE_BATCH_SIZE} in one batch.
+	 */
+	public static final long SMALL_COMPILE_SIZE = 2048;
+	public static final int COMPILE_BATCH_SIZE = 8;
+	/**
+	 * Heap required by node.compile: reserve and few times size of source (source, parser and bytecode).
+	 */
+	public static final int COMPILE_HEAP_RESERVE = 4096;
+	public static final int COMPILE_HEAP_FACTOR = 3;
+	public static final int MAX_COMPILE_RESTARTS = 2;
+	/**
+	 * Boot files renamed for restart before compile, see {@link #setRestartForCompile(boolean)}.
+	 */
+	private static final String[] INIT_FILES = {"init.lua", "init.lc"};
+	private static final String INIT_HIDDEN_SUFFIX = ".restart";
+
 	private final File directory;
 	private final NodeMcuInterpreter interpreter;
 	private final boolean onlyRemoveFiles;
@@ -24,6 +66,89 @@ public class FileWriter {
 	private final boolean compile;
 	private final boolean removeSourceAfterCompile;
 
+	private DeviceManifest manifest;
+	private CompletableFuture<Map<String, String>> hashes;
+	private CompletableFuture<DeviceStorage> deviceStorage;
+	private ContentCache minifyCache;
+	private LuaCompiler hostCompiler;
+	private ContentCache compileCache;
+	private ConcurrentMap<String, byte[]> sharedContent;
+	private boolean delta;
+	private UploadProgress uploadProgress;
+	private boolean bundle;
+	private boolean restartForCompile;
+	private final List<String> compileFailures = new ArrayList<>();
+	/**
+	 * Files uploaded by current run, their old versions are removed after uploads.
+	 */
+	private final List<FileEntry> uploadedEntries = new ArrayList<>();
+
+	@FunctionalInterface
+	private interface ContentSupplier {
+		byte[] get() throws IOException;
+	}
+
+	private static class FileEntry {
+		final File file;
+		final String relativePath;
+		final String[] partFile;
+		final boolean luaFileForCompile;
+		final boolean sourceOnDevice;
+		boolean hostCompiled;
+		String targetPath;
+		String mode;
+		String hash;
+		/**
+		 * Content prepared on host, null - send file without changes.
+		 */
+		byte[] content;
+		/**
+		 * Changed regions of file on device, null - send whole file.
+		 */
+		FileDelta delta;
+		long previousSize;
+		/**
+		 * Bytes of interrupted upload already on device, 0 - send whole file.
+		 */
+		long resumeOffset;
+		String contentHash;
+
+		FileEntry(File file, String relativePath, String[] partFile, boolean luaFileForCompile, boolean sourceOnDevice, String mode) {
+			this.file = file;
+			this.relativePath = relativePath;
+			this.partFile = partFile;
+			this.luaFileForCompile = luaFileForCompile;
+			this.sourceOnDevice = sourceOnDevice;
+			this.mode = mode;
+			this.targetPath = relativePath;
+		}
+
+		long size() {
+			return nonNull(content) ? content.length : file.length();
+		}
+
+		byte[] bytes() throws IOException {
+			return nonNull(content) ? content : Files.readAllBytes(file.toPath());
+		}
+
+		BlockSource openBlocks() throws IOException {
+			return nonNull(content)
+					? BlockSource.of(content, NodeMcuInterpreter.BLOCK_SIZE, (int) resumeOffset)
+					: BlockSource.open(file, NodeMcuInterpreter.BLOCK_SIZE, resumeOffset);
+		}
+
+		/**
+		 * @return true if path is kept on device, because upload to it continues
+		 */
+		boolean resumes(String path) {
+			return resumeOffset > 0 && path.equals(targetPath);
+		}
+
+		String compiledPath() {
+			return partFile[0] + ".lc";
+		}
+	}
+
 	public FileWriter(File directory, NodeMcuInterpreter interpreter,
 					  boolean onlyRemoveFiles, boolean ignoreDirectories,
 					  Collection<String> excludeFiles,
@@ -41,36 +166,157 @@ public class FileWriter {
 	}
 
 
+	/**
+	 * Send only files which content changed since last deploy to this device.
+	 *
+	 * @param manifest files already sent to device
+	 * @param hashes   content hashes of files, key is unix relative path
+	 */
+	public void setIncremental(DeviceManifest manifest, CompletableFuture<Map<String, String>> hashes) {
+		this.manifest = manifest;
+		this.hashes = hashes;
+	}
+
+	/**
+	 * Rewrite only changed blocks of big files, which are not compiled on device.
+	 * Block hashes are kept in manifest, so it works only with incremental deploy.
+	 */
+	public void setDelta(boolean delta) {
+		this.delta = delta;
+	}
+
+	/**
+	 * Keep partially sent file on device after failed upload and continue it in next run.
+	 *
+	 * @param uploadProgress not finished uploads to this device
+	 */
+	public void setResumable(UploadProgress uploadProgress) {
+		this.uploadProgress = uploadProgress;
+	}
+
+	/**
+	 * Send small files in one stream unpacked by device, see {@link DeployBundle}.
+	 */
+	public void setBundle(boolean bundle) {
+		this.bundle = bundle;
+	}
+
+	/**
+	 * Restart device when free heap is too low to compile next file. Boot runs init.lua or init.lc, which could be
+	 * new code not compiled yet and could take over UART, so they are renamed for time of restart.
+	 */
+	public void setRestartForCompile(boolean restartForCompile) {
+		this.restartForCompile = restartForCompile;
+	}
+
+	/**
+	 * Minify *.lua files before upload.
+	 *
+	 * @param minifyCache minified sources by hash of source
+	 */
+	public void setMinify(ContentCache minifyCache) {
+		this.minifyCache = minifyCache;
+	}
+
+	/**
+	 * Compile *.lua files on host and send only bytecode, node.compile is not used.
+	 *
+	 * @param hostCompiler compiler compatible with device firmware
+	 * @param compileCache bytecode by hash of source, compiler and firmware version
+	 */
+	public void setHostCompiler(LuaCompiler hostCompiler, ContentCache compileCache) {
+		this.hostCompiler = hostCompiler;
+		this.compileCache = compileCache;
+	}
+
+	/**
+	 * Keep content of files in memory, shared with other writers deploying the same files to other devices.
+	 * Each file is read and prepared only once.
+	 */
+	public void setSharedContent(ConcurrentMap<String, byte[]> sharedContent) {
+		this.sharedContent = sharedContent;
+	}
+
 	public void run() throws SerialPortException, IOException, SerialPortTimeoutException {
-		checkDir(directory);
+		writeFiles(FileHelper.listFiles(directory, ignoreDirectories));
 	}
 
 	public void runOnlyForOneFile(File file) throws SerialPortException, IOException, SerialPortTimeoutException {
-		writeFile(file);
+		if (!file.isFile()) {
+			throw new IOException("File '" + file.getAbsolutePath() + "' is not file!");
+		}
+		writeFiles(Collections.singletonList(file));
 	}
 
-	private void checkDir(File dir) throws IOException, SerialPortException, SerialPortTimeoutException {
-		File[] files = dir.listFiles();
+	/**
+	 * Send only given files, e.g. changed in watch mode. Files in directories are skipped when directories are ignored.
+	 */
+	public void runForFiles(List<File> files) throws SerialPortException, IOException, SerialPortTimeoutException {
+		// hashes computed before first run are stale now
+		hashes = null;
+		List<File> selected = new ArrayList<>();
+		File parent = directory.getAbsoluteFile();
 		for (File f : files) {
-			if (f.isDirectory()) {
-				if (ignoreDirectories) {
-					continue;
+			if (!ignoreDirectories || parent.equals(f.getAbsoluteFile().getParentFile())) {
+				selected.add(f);
+			}
+		}
+		writeFiles(selected);
+	}
+
+	private void writeFiles(List<File> files) throws IOException, SerialPortException, SerialPortTimeoutException {
+		TransferMetrics metrics = interpreter.getMetrics();
+		try {
+			long start = System.nanoTime();
+			readDeviceFiles();
+			List<FileEntry> entries = new ArrayList<>();
+			for (File f : files) {
+				FileEntry entry = createEntry(f);
+				if (nonNull(entry)) {
+					entries.add(entry);
 				}
-				checkDir(f);
-				continue;
 			}
-			if (!f.isFile()) {
-				continue;
+			if (entries.isEmpty()) {
+				endPhase(metrics, TransferMetrics.PHASE_PREPARE, start);
+				return;
+			}
+			if (!onlyRemoveFiles) {
+				planPhase(entries);
 			}
-			writeFile(f);
+			start = endPhase(metrics, TransferMetrics.PHASE_PREPARE, start);
 
+			if (onlyRemoveFiles) {
+				removePhase(entries);
+				endPhase(metrics, TransferMetrics.PHASE_REMOVE, start);
+				return;
+			}
+			uploadedEntries.clear();
+			try {
+				uploadPhase(entries);
+			} catch (IOException | SerialPortException | SerialPortTimeoutException e) {
+				tryRemoveReplaced();
+				throw e;
+			}
+			start = endPhase(metrics, TransferMetrics.PHASE_UPLOAD, start);
+			removeReplaced();
+			start = endPhase(metrics, TransferMetrics.PHASE_REMOVE, start);
+			compilePhase(entries);
+			endPhase(metrics, TransferMetrics.PHASE_COMPILE, start);
+		} finally {
+			saveManifest();
 		}
 	}
 
-	private void writeFile(File file) throws IOException, SerialPortException, SerialPortTimeoutException {
-		if (!file.isFile()) {
-			throw new IOException("File '" + file.getAbsolutePath() + "' is not file!");
-		}
+	/**
+	 * @return start of next phase
+	 */
+	private static long endPhase(TransferMetrics metrics, String phase, long start) {
+		long end = System.nanoTime();
+		metrics.phase(phase, end - start);
+		return end;
+	}
+
+	private FileEntry createEntry(File file) throws IOException, SerialPortException, SerialPortTimeoutException {
 		String relativePath = FileHelper.getUnixRelativePath(directory, file);
 		boolean fileIgnoreInCompile = false;
 		if(ignoreCompileFiles.contains(relativePath)) {
@@ -79,41 +325,624 @@ public class FileWriter {
 
 		if (excludeFiles.contains(relativePath)) {
 			System.out.println("Exclude file " + file.getAbsolutePath());
-			return;
+			return null;
 		}
 
 		String[] partFile = FileHelper.getNameAndExtensionFile(relativePath);
-		boolean isLuaFileForCompile = false;
+		boolean isLuaFile = nonNull(partFile) && partFile.length == 2 && "lua".equals(partFile[1].trim().toLowerCase());
+		boolean isLuaFileForCompile = !fileIgnoreInCompile && compile && isLuaFile;
 
-		interpreter.deleteFile(relativePath);
+		String mode = DeviceManifest.MODE_RAW;
+		if (isLuaFileForCompile) {
+			mode = removeSourceAfterCompile ? DeviceManifest.MODE_COMPILED : DeviceManifest.MODE_COMPILED_WITH_SOURCE;
+		}
+		boolean hostCompiled = isLuaFileForCompile && nonNull(hostCompiler);
+		FileEntry entry = new FileEntry(file, relativePath, partFile, isLuaFileForCompile,
+				!isLuaFileForCompile || (!removeSourceAfterCompile && !hostCompiled), mode);
+		if (!onlyRemoveFiles && hostCompiled) {
+			entry.hash = getHash(relativePath, file);
+			entry.hostCompiled = true;
+			entry.content = compileOnHost(entry);
+			entry.targetPath = entry.compiledPath();
+			entry.mode = DeviceManifest.MODE_HOST_COMPILED;
+		} else if (!onlyRemoveFiles && isLuaFile && nonNull(minifyCache)) {
+			entry.hash = getHash(relativePath, file);
+			entry.content = shared("minified|" + entry.hash, () -> minify(entry));
+			if (nonNull(entry.content)) {
+				entry.mode += DeviceManifest.MODE_MINIFIED_SUFFIX;
+			}
+		}
+		if (!onlyRemoveFiles && isNull(entry.content) && nonNull(sharedContent)) {
+			entry.content = shared("raw|" + relativePath, () -> Files.readAllBytes(file.toPath()));
+		}
+		if (nonNull(manifest)) {
+			if (!onlyRemoveFiles) {
+				if (isNull(entry.hash)) {
+					entry.hash = getHash(relativePath, file);
+				}
+				if (manifest.isUnchanged(relativePath, entry.hash, entry.mode) && isOnDevice(entry)) {
+					System.out.println("Unchanged file " + relativePath + ", skip.");
+					return null;
+				}
+				if (isDeltaCandidate(entry)) {
+					prepareDelta(entry, manifest.getBlockHashes(relativePath));
+				}
+			}
+			manifest.remove(relativePath);
+		}
+		if (!onlyRemoveFiles && nonNull(uploadProgress) && isNull(entry.delta)) {
+			prepareResume(entry);
+		}
+		return entry;
+	}
 
-		if(!fileIgnoreInCompile && compile && nonNull(partFile) && partFile.length == 2 && "lua".equals(partFile[1].trim().toLowerCase())) {
-			interpreter.deleteFile(partFile[0] + ".lc");
-			isLuaFileForCompile = true;
+	/**
+	 * Upload continues only when the same content was sent before and device has exactly acknowledged bytes of it,
+	 * with the same CRC as the beginning of the content.
+	 */
+	private void prepareResume(FileEntry entry) throws IOException, SerialPortException, SerialPortTimeoutException {
+		UploadProgress.Entry progress = uploadProgress.get(entry.targetPath);
+		if (isNull(progress)) {
+			return;
+		}
+		entry.contentHash = contentHash(entry);
+		Integer deviceSize = storage().getFiles().get(entry.targetPath);
+		if (progress.getSize() != entry.size() || !progress.getHash().equals(entry.contentHash)
+				|| isNull(deviceSize) || deviceSize != progress.getAcknowledged()
+				|| deviceSize <= 0 || deviceSize >= entry.size()) {
+			System.out.println("Cannot resume upload of " + entry.targetPath + ", send whole file.");
+			return;
 		}
+		if (interpreter.fileCrc(entry.targetPath, deviceSize) != prefixCrc(entry, deviceSize)) {
+			System.out.println("Part of " + entry.targetPath + " on device differs from file, send whole file.");
+			return;
+		}
+		entry.resumeOffset = deviceSize;
+		System.out.println(String.format("Resume upload of %s from %d of %d bytes.", entry.targetPath, deviceSize, entry.size()));
+	}
 
-		if (!onlyRemoveFiles) {
-			try (InputStream inputStream = new FileInputStream(file)) {
-				try {
-					interpreter.saveFile(relativePath, inputStream);
-					if(isLuaFileForCompile) {
-						interpreter.compile(relativePath);
-						if(removeSourceAfterCompile) {
-							interpreter.deleteFile(relativePath);
-						}
-					}
-				} catch (SerialPortException | SerialPortTimeoutException e) {
-					try {
-						interpreter.deleteFile(relativePath);
-						if(isLuaFileForCompile) {
-							interpreter.deleteFile(partFile[0] + ".lc");
-						}
-					} catch (SerialPortException | SerialPortTimeoutException e2) {
-						e2.printStackTrace();
+	private static int prefixCrc(FileEntry entry, int length) throws IOException {
+		if (nonNull(entry.content)) {
+			return Crc16.ccitt(entry.content, 0, length);
+		}
+		int crc = Crc16.INITIAL;
+		byte[] buffer = new byte[8192];
+		try (InputStream inputStream = new FileInputStream(entry.file)) {
+			int remaining = length;
+			int size;
+			while (remaining > 0 && (size = inputStream.read(buffer, 0, Math.min(buffer.length, remaining))) > 0) {
+				crc = Crc16.ccitt(crc, buffer, 0, size);
+				remaining -= size;
+			}
+		}
+		return crc;
+	}
+
+	private String contentHash(FileEntry entry) throws IOException {
+		return nonNull(entry.content) ? FileHelper.hash(entry.content) : getHash(entry.relativePath, entry.file);
+	}
+
+	private boolean isDeltaCandidate(FileEntry entry) {
+		return delta && nonNull(manifest) && !onlyRemoveFiles && !entry.luaFileForCompile && entry.size() >= DELTA_MIN_SIZE;
+	}
+
+	/**
+	 * File is patched only when device has file with the same size as recorded in block hashes.
+	 */
+	private void prepareDelta(FileEntry entry, String previousBlocks) throws IOException, SerialPortException, SerialPortTimeoutException {
+		long previousSize = FileDelta.length(previousBlocks);
+		Integer deviceSize = storage().getFiles().get(entry.targetPath);
+		if (previousSize < 0 || isNull(deviceSize) || deviceSize != previousSize) {
+			return;
+		}
+		byte[] bytes = entry.bytes();
+		FileDelta fileDelta = FileDelta.compare(previousBlocks, bytes);
+		if (isNull(fileDelta)) {
+			return;
+		}
+		entry.content = bytes;
+		entry.delta = fileDelta;
+		entry.previousSize = previousSize;
+		System.out.println(String.format("Delta %s: %d of %d bytes changed, regions: %s",
+				entry.relativePath, fileDelta.getChangedBytes(), bytes.length, fileDelta.getRegions()));
+	}
+
+	/**
+	 * Check that all files fit on device before anything is removed or sent.
+	 */
+	private void planPhase(List<FileEntry> entries) throws IOException, SerialPortException, SerialPortTimeoutException {
+		DeployPlan plan = new DeployPlan(storage(), interpreter.getCurrentBaudRate(),
+				interpreter.isChecksum() || interpreter.isAdaptive() ? 0 : interpreter.getWindowSize(),
+				NodeMcuInterpreter.BLOCK_SIZE);
+		for (FileEntry entry : entries) {
+			if (nonNull(entry.delta)) {
+				plan.patch(entry.targetPath, entry.previousSize, entry.size(), entry.delta.getRegions());
+				continue;
+			}
+			for (String path : oldVersions(entry)) {
+				plan.remove(path);
+			}
+			if (!entry.resumes(entry.targetPath)) {
+				plan.replace(entry.targetPath);
+			}
+			plan.upload(entry.targetPath, entry.size() - entry.resumeOffset);
+			if (entry.luaFileForCompile && !entry.hostCompiled) {
+				plan.compile(entry.compiledPath(), entry.size());
+			}
+		}
+		System.out.println(plan);
+		if (!plan.fits()) {
+			throw new NotEnoughSpaceException(String.format("Not enough space on device, required %d bytes, available %d bytes.",
+					plan.getRequiredBytes(), plan.getAvailableBytes()));
+		}
+	}
+
+	/**
+	 * Remove files with option -R.
+	 * Files which are not on device by listing cached in interpreter are not removed.
+	 */
+	private void removePhase(List<FileEntry> entries) throws SerialPortException, SerialPortTimeoutException {
+		CommandBatch batch = new CommandBatch();
+		for (FileEntry entry : entries) {
+			if (nonNull(entry.delta)) {
+				continue;
+			}
+			removeIfExists(batch, entry.relativePath);
+			if (entry.luaFileForCompile) {
+				removeIfExists(batch, entry.compiledPath());
+			}
+		}
+		checkResults(interpreter.executeBatch(batch), "remove");
+	}
+
+	/**
+	 * Remove old versions of uploaded files: source replaced by bytecode compiled on host, or bytecode of source
+	 * which is compiled again. Sent after uploads, so upload which fails in the middle does not leave device
+	 * without files which were not sent yet. Uploaded file itself is overwritten by upload.
+	 */
+	private void removeReplaced() throws SerialPortException, SerialPortTimeoutException {
+		CommandBatch batch = new CommandBatch();
+		for (FileEntry entry : uploadedEntries) {
+			for (String path : oldVersions(entry)) {
+				batch.remove(path);
+			}
+		}
+		checkResults(interpreter.executeBatch(batch), "remove");
+	}
+
+	/**
+	 * After failed upload, files which were uploaded before the failure do not keep their old versions.
+	 */
+	private void tryRemoveReplaced() {
+		try {
+			removeReplaced();
+		} catch (SerialPortException | SerialPortTimeoutException e) {
+			System.err.println("Cannot remove old versions of uploaded files. Message: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return old versions of file which are removed after its upload, the same removes are counted by plan;
+	 * files which are not on device by listing cached in interpreter are skipped
+	 */
+	private List<String> oldVersions(FileEntry entry) {
+		List<String> paths = new ArrayList<>();
+		if (nonNull(entry.delta)) {
+			return paths;
+		}
+		if (!entry.relativePath.equals(entry.targetPath) && interpreter.mayExist(entry.relativePath)) {
+			paths.add(entry.relativePath);
+		}
+		if (entry.luaFileForCompile && !entry.compiledPath().equals(entry.targetPath) && interpreter.mayExist(entry.compiledPath())) {
+			paths.add(entry.compiledPath());
+		}
+		return paths;
+	}
+
+	private void removeIfExists(CommandBatch batch, String path) {
+		if (interpreter.mayExist(path)) {
+			batch.remove(path);
+		}
+	}
+
+	private void uploadPhase(List<FileEntry> entries) throws IOException, SerialPortException, SerialPortTimeoutException {
+		List<FileEntry> single = entries;
+		if (bundle) {
+			List<FileEntry> bundled = new ArrayList<>();
+			single = new ArrayList<>();
+			for (FileEntry entry : entries) {
+				(isBundleCandidate(entry) ? bundled : single).add(entry);
+			}
+			if (bundled.size() > 1) {
+				uploadBundle(bundled);
+			} else {
+				single = entries;
+			}
+		}
+
+		for (FileEntry entry : single) {
+			try {
+				if (nonNull(entry.delta)) {
+					interpreter.patchFile(entry.targetPath, entry.content, entry.delta.getRegions());
+				} else if (nonNull(uploadProgress)) {
+					saveResumable(entry);
+				} else {
+					try (BlockSource source = entry.openBlocks()) {
+						interpreter.saveFile(entry.targetPath, source);
 					}
+				}
+				uploaded(entry);
+			} catch (SerialPortException | SerialPortTimeoutException e) {
+				if (nonNull(uploadProgress) && isNull(entry.delta)) {
+					uploadProgress.save();
+					System.err.println("Upload of " + entry.targetPath + " interrupted, sent part is kept on device for next run.");
 					throw e;
 				}
+				try {
+					interpreter.deleteFile(entry.targetPath);
+				} catch (SerialPortException | SerialPortTimeoutException e2) {
+					e2.printStackTrace();
+				}
+				throw e;
+			}
+		}
+	}
+
+	private boolean isBundleCandidate(FileEntry entry) {
+		return isNull(entry.delta) && entry.resumeOffset == 0 && entry.size() <= BUNDLE_MAX_FILE_SIZE;
+	}
+
+	/**
+	 * Files are unpacked by device while stream arrives, so commands to open, receive and close file are sent
+	 * once per deploy, not once per file. Files which were not unpacked whole are removed.
+	 */
+	private void uploadBundle(List<FileEntry> entries) throws IOException, SerialPortException, SerialPortTimeoutException {
+		DeployBundle deployBundle = new DeployBundle();
+		for (FileEntry entry : entries) {
+			deployBundle.add(entry.targetPath, entry.bytes());
+		}
+
+		Map<String, Integer> written;
+		try {
+			written = interpreter.saveBundle(deployBundle);
+		} catch (SerialPortException | SerialPortTimeoutException e) {
+			removeUnpacked(entries);
+			throw e;
+		}
+
+		List<FileEntry> failed = new ArrayList<>();
+		for (FileEntry entry : entries) {
+			Integer size = written.get(entry.targetPath);
+			if (isNull(size) || size != entry.size()) {
+				failed.add(entry);
+				continue;
+			}
+			uploaded(entry);
+		}
+		if (!failed.isEmpty()) {
+			removeUnpacked(failed);
+			StringBuilder names = new StringBuilder();
+			for (FileEntry entry : failed) {
+				names.append(names.length() > 0 ? ", " : "").append(entry.targetPath);
+			}
+			throw new SerialPortException(interpreter.getPort(), "FileWriter", "Cannot unpack files: " + names);
+		}
+	}
+
+	private void removeUnpacked(List<FileEntry> entries) {
+		// listing cache does not know files unpacked before failure
+		CommandBatch batch = new CommandBatch();
+		for (FileEntry entry : entries) {
+			batch.remove(entry.targetPath);
+		}
+		try {
+			interpreter.executeBatch(batch);
+		} catch (SerialPortException | SerialPortTimeoutException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Record file sent to device, compiled files are recorded after compile.
+	 */
+	private void uploaded(FileEntry entry) throws IOException {
+		uploadedEntries.add(entry);
+		if (nonNull(manifest) && (!entry.luaFileForCompile || entry.hostCompiled)) {
+			manifest.put(entry.relativePath, entry.hash, entry.mode);
+		}
+		if (isDeltaCandidate(entry)) {
+			manifest.putBlockHashes(entry.relativePath, FileDelta.blockHashes(entry.bytes()));
+		}
+	}
+
+	private void saveResumable(FileEntry entry) throws IOException, SerialPortException, SerialPortTimeoutException {
+		if (isNull(entry.contentHash)) {
+			entry.contentHash = contentHash(entry);
+		}
+		long size = entry.size();
+		try (BlockSource source = entry.openBlocks()) {
+			interpreter.saveFile(entry.targetPath, source, entry.resumeOffset, acknowledged -> {
+				try {
+					uploadProgress.update(entry.targetPath, size, entry.contentHash, acknowledged);
+				} catch (IOException e) {
+					System.err.println("Cannot save upload progress. Message: " + e.getMessage());
+				}
+			});
+		}
+		uploadProgress.remove(entry.targetPath);
+	}
+
+	/**
+	 * Files are compiled after all uploads, from the biggest, while heap is the least fragmented.
+	 * Free heap is checked before each big file and device is restarted when it is too low.
+	 * Small files are compiled in batches with garbage collection after each file.
+	 * Failed compiles are reported per file, their sources are kept on device and other files are deployed.
+	 */
+	private void compilePhase(List<FileEntry> entries) throws SerialPortException, SerialPortTimeoutException {
+		compileFailures.clear();
+		List<FileEntry> toCompile = new ArrayList<>();
+		for (FileEntry entry : entries) {
+			if (entry.luaFileForCompile && !entry.hostCompiled) {
+				toCompile.add(entry);
+			}
+		}
+		if (toCompile.isEmpty()) {
+			return;
+		}
+		toCompile.sort((a, b) -> Long.compare(b.size(), a.size()));
+
+		List<FileEntry> compiled = new ArrayList<>();
+		int restarts = 0;
+		// restart does not help when nothing was compiled since previous restart
+		boolean fresh = false;
+		int index = 0;
+		while (index < toCompile.size()) {
+			FileEntry biggest = toCompile.get(index);
+			int end = biggest.size() <= SMALL_COMPILE_SIZE ? Math.min(toCompile.size(), index + COMPILE_BATCH_SIZE) : index + 1;
+			List<FileEntry> group = toCompile.subList(index, end);
+			index = end;
+
+			long required = requiredHeap(biggest);
+			int heap = interpreter.freeHeap();
+			if (heap < required && !fresh) {
+				System.out.println(String.format("Free heap %d is lower than %d required to compile %s.",
+						heap, required, biggest.relativePath));
+				if (restartForCompile && restarts < MAX_COMPILE_RESTARTS) {
+					restartWithoutInit();
+					restarts++;
+					fresh = true;
+				}
+			}
+			int compiledBefore = compiled.size();
+			List<FileEntry> failed = compileGroup(group, compiled);
+			// syntax error fails again, only lack of heap is worth restart
+			if (!failed.isEmpty() && restartForCompile && !fresh && restarts < MAX_COMPILE_RESTARTS
+					&& interpreter.freeHeap() < required) {
+				System.out.println("Not enough heap to compile, restart device and try again.");
+				restartWithoutInit();
+				restarts++;
+				fresh = true;
+				failed = compileGroup(failed, compiled);
+			}
+			if (compiled.size() > compiledBefore) {
+				fresh = false;
+			}
+			for (FileEntry entry : failed) {
+				compileFailures.add(entry.relativePath);
+			}
+		}
+
+		System.out.println("Compile report:");
+		for (FileEntry entry : toCompile) {
+			System.out.println("  " + entry.relativePath + ": " + (compiled.contains(entry) ? "OK" : "FAILED"));
+		}
+		if (!compileFailures.isEmpty()) {
+			System.err.println("Cannot compile files: " + String.join(", ", compileFailures) + ". Sources are kept on device.");
+		}
+
+		if (removeSourceAfterCompile && !compiled.isEmpty()) {
+			CommandBatch removeBatch = new CommandBatch();
+			for (FileEntry entry : compiled) {
+				removeBatch.remove(entry.relativePath);
+			}
+			checkResults(interpreter.executeBatch(removeBatch), "remove source");
+		}
+		if (nonNull(manifest)) {
+			for (FileEntry entry : compiled) {
+				manifest.put(entry.relativePath, entry.hash, entry.mode);
+			}
+		}
+	}
+
+	/**
+	 * @return files which were not compiled
+	 */
+	private List<FileEntry> compileGroup(List<FileEntry> group, List<FileEntry> compiled) throws SerialPortException, SerialPortTimeoutException {
+		CommandBatch batch = new CommandBatch();
+		for (FileEntry entry : group) {
+			batch.compile(entry.relativePath).collectGarbage();
+		}
+		List<CommandBatch.Result> results = interpreter.executeBatch(batch);
+		List<FileEntry> failed = new ArrayList<>();
+		for (int i = 0; i < group.size(); i++) {
+			// result of compile is followed by result of garbage collection
+			(results.get(2 * i).isSuccess() ? compiled : failed).add(group.get(i));
+		}
+		return failed;
+	}
+
+	/**
+	 * Restart device with init.lua and init.lc renamed, so boot does not run them.
+	 */
+	private void restartWithoutInit() throws SerialPortException, SerialPortTimeoutException {
+		CommandBatch hide = new CommandBatch();
+		for (String init : INIT_FILES) {
+			hide.remove(init + INIT_HIDDEN_SUFFIX).rename(init, init + INIT_HIDDEN_SUFFIX);
+		}
+		List<CommandBatch.Result> hidden = interpreter.executeBatch(hide);
+		try {
+			interpreter.restart();
+		} finally {
+			CommandBatch restore = new CommandBatch();
+			for (int i = 0; i < INIT_FILES.length; i++) {
+				// result of remove is followed by result of rename
+				if (hidden.get(2 * i + 1).isSuccess()) {
+					restore.rename(INIT_FILES[i] + INIT_HIDDEN_SUFFIX, INIT_FILES[i]);
+				}
+			}
+			if (!restore.isEmpty()) {
+				checkResults(interpreter.executeBatch(restore), "restore");
+			}
+		}
+	}
+
+	private static long requiredHeap(FileEntry entry) {
+		return COMPILE_HEAP_RESERVE + entry.size() * COMPILE_HEAP_FACTOR;
+	}
+
+	/**
+	 * @return relative paths of files which were not compiled by last run
+	 */
+	public List<String> getCompileFailures() {
+		return Collections.unmodifiableList(compileFailures);
+	}
+
+	private void checkResults(List<CommandBatch.Result> results, String phase) throws SerialPortException {
+		StringBuilder failed = new StringBuilder();
+		for (CommandBatch.Result result : results) {
+			if (!result.isSuccess()) {
+				failed.append(failed.length() > 0 ? ", " : "").append(result.getOperation().getFile());
+			}
+		}
+		if (failed.length() > 0) {
+			throw new SerialPortException(interpreter.getPort(), "FileWriter", "Cannot " + phase + " files: " + failed);
+		}
+	}
+
+	/**
+	 * Start listing device files, it runs while local hashes are still computed.
+	 */
+	private void readDeviceFiles() {
+		if (onlyRemoveFiles) {
+			return;
+		}
+		deviceStorage = interpreter.readStorageAsync();
+	}
+
+	private DeviceStorage storage() throws SerialPortException, SerialPortTimeoutException {
+		try {
+			return deviceStorage.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof SerialPortException) {
+				throw (SerialPortException) e.getCause();
+			}
+			if (e.getCause() instanceof SerialPortTimeoutException) {
+				throw (SerialPortTimeoutException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private void saveManifest() throws IOException {
+		if (nonNull(manifest)) {
+			manifest.save();
+		}
+	}
+
+	private String getHash(String relativePath, File file) throws IOException {
+		String hash = null;
+		if (nonNull(hashes)) {
+			try {
+				hash = hashes.join().get(relativePath);
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw e;
 			}
 		}
+		if (isNull(hash)) {
+			hash = FileHelper.hash(file);
+		}
+		return hash;
+	}
+
+	private boolean isOnDevice(FileEntry entry) throws SerialPortException, SerialPortTimeoutException {
+		if (isNull(deviceStorage)) {
+			return false;
+		}
+		Map<String, Integer> deviceFiles = storage().getFiles();
+		if (entry.sourceOnDevice) {
+			Integer deviceSize = deviceFiles.get(entry.relativePath);
+			if (isNull(deviceSize) || deviceSize != entry.size()) {
+				return false;
+			}
+		}
+		if (entry.hostCompiled) {
+			Integer deviceSize = deviceFiles.get(entry.compiledPath());
+			return nonNull(deviceSize) && deviceSize == entry.size();
+		}
+		if (entry.luaFileForCompile) {
+			return deviceFiles.containsKey(entry.compiledPath());
+		}
+		return true;
+	}
+
+	/**
+	 * Firmware version is read from device by every detection, also for device known by fingerprint.
+	 *
+	 * @return bytecode, from cache when the same source was compiled by the same compiler for the same firmware
+	 */
+	private byte[] compileOnHost(FileEntry entry) throws IOException {
+		String key = FileHelper.hash((entry.hash + "|" + hostCompiler.getId() + "|" + interpreter.getFirmwareVersion())
+				.getBytes(StandardCharsets.UTF_8));
+		return shared("compiled|" + key, () -> compileOnHost(entry, key));
+	}
+
+	private byte[] compileOnHost(FileEntry entry, String key) throws IOException {
+		byte[] bytecode = compileCache.get(key);
+		if (nonNull(bytecode)) {
+			return bytecode;
+		}
+		bytecode = hostCompiler.compile(entry.relativePath, Files.readAllBytes(entry.file.toPath()));
+		compileCache.put(key, bytecode);
+		System.out.println(String.format("Compile on host %s: %d bytes", entry.relativePath, bytecode.length));
+		return bytecode;
+	}
+
+	private byte[] shared(String key, ContentSupplier supplier) throws IOException {
+		if (isNull(sharedContent)) {
+			return supplier.get();
+		}
+		try {
+			return sharedContent.computeIfAbsent(key, k -> {
+				try {
+					return supplier.get();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * @return minified source, from cache when source was already minified, null when source cannot be minified
+	 */
+	private byte[] minify(FileEntry entry) throws IOException {
+		byte[] minified = minifyCache.get(entry.hash);
+		if (nonNull(minified)) {
+			return minified;
+		}
+		try {
+			minified = LuaMinifier.minify(Files.readAllBytes(entry.file.toPath()));
+		} catch (IllegalArgumentException e) {
+			System.err.println("Cannot minify " + entry.relativePath + ", send without changes. " + e.getMessage());
+			return null;
+		}
+		minifyCache.put(entry.hash, minified);
+		System.out.println(String.format("Minify %s: %d -> %d bytes", entry.relativePath, entry.file.length(), minified.length));
+		return minified;
 	}
 }
@@ -0,0 +1,114 @@
+package pl.szczurmys.nodemcu;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Deploy the same files to many devices, each device on own thread, at most parallelism devices at once.
+ *
+ * @author szczurmys
+ */
+public class FleetDeployer {
+
+	@FunctionalInterface
+	public interface DeviceDeploy {
+		void deploy(String port) throws Exception;
+	}
+
+	public static class DeviceResult {
+		private final String port;
+		private final boolean success;
+		private final String message;
+		private final long time;
+
+		DeviceResult(String port, boolean success, String message, long time) {
+			this.port = port;
+			this.success = success;
+			this.message = message;
+			this.time = time;
+		}
+
+		public String getPort() {
+			return port;
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * @return deploy time [ms]
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-20s %-7s %8d ms %s", port, success ? "OK" : "FAILED", time, success ? "" : message);
+		}
+	}
+
+	private final List<String> ports;
+	private final int parallelism;
+	private final DeviceDeploy deviceDeploy;
+
+	public FleetDeployer(List<String> ports, int parallelism, DeviceDeploy deviceDeploy) {
+		this.ports = ports;
+		this.parallelism = Math.max(1, Math.min(parallelism, ports.size()));
+		this.deviceDeploy = deviceDeploy;
+	}
+
+	/**
+	 * @return result for each port, in order of ports
+	 */
+	public List<DeviceResult> run() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try {
+			List<Future<DeviceResult>> futures = new ArrayList<>();
+			for (String port : ports) {
+				futures.add(executor.submit(() -> deploy(port)));
+			}
+			List<DeviceResult> results = new ArrayList<>();
+			for (Future<DeviceResult> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private DeviceResult deploy(String port) {
+		long start = System.currentTimeMillis();
+		try {
+			deviceDeploy.deploy(port);
+			return new DeviceResult(port, true, null, System.currentTimeMillis() - start);
+		} catch (Exception e) {
+			System.err.println("[" + port + "] " + e.getMessage());
+			return new DeviceResult(port, false, e.getClass().getSimpleName() + ": " + e.getMessage(),
+					System.currentTimeMillis() - start);
+		}
+	}
+
+	public static boolean allSuccess(List<DeviceResult> results) {
+		for (DeviceResult result : results) {
+			if (!result.isSuccess()) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -3,12 +3,28 @@ package pl.szczurmys.nodemcu;
 import jssc.SerialPortException;
 import jssc.SerialPortList;
 import jssc.SerialPortTimeoutException;
+import pl.szczurmys.nodemcu.emulator.NodeMcuEmulator;
+import pl.szczurmys.nodemcu.event.RotatingLogFile;
+import pl.szczurmys.nodemcu.lua.LuacCrossCompiler;
+import pl.szczurmys.nodemcu.transport.SerialTransport;
+import pl.szczurmys.nodemcu.transport.Transport;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Stream;
 
 import static java.util.Objects.isNull;
@@ -18,8 +34,28 @@ import static java.util.Objects.nonNull;
  * @author szczurmys
  */
 public class Interpreter {
+	public static final int FLEET_DEFAULT_PARALLELISM = 8;
 
 	public static void main(String[] args) {
+		if (args.length == 1 && args[0].startsWith(DaemonServer.OPTION)) {
+			System.exit(DaemonServer.run(args[0]).code());
+			return;
+		}
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].startsWith(DaemonClient.OPTION)) {
+				System.exit(DaemonClient.run(args, i));
+				return;
+			}
+		}
+		System.exit(execute(args, null).code());
+	}
+
+	/**
+	 * Parse arguments and deploy.
+	 *
+	 * @param daemon daemon which keeps connections open between jobs, null - open connection only for this run
+	 */
+	static ErrorCode execute(String[] args, DaemonServer daemon) {
 		//String endCommand = "\r\n";
 		String endCommand = "\n";
 		File fileToRun = null;
@@ -41,14 +77,32 @@ public class Interpreter {
 
 		boolean compile = false;
 		boolean removeSourceAfterCompile = true;
+		boolean incremental = false;
+		boolean delta = false;
+		int windowSize = 0;
+		boolean checksum = false;
+		boolean adaptive = false;
+		boolean resumable = false;
+		boolean bundle = false;
+		boolean restartForCompile = false;
+		int transferBaudRate = 0;
+		boolean minify = false;
+		File hostCompiler = null;
+		String fleetPorts = null;
+		boolean useEmulator = false;
+		int parallelism = FLEET_DEFAULT_PARALLELISM;
+		File metricsFile = null;
+		boolean freshDetection = false;
+		int watchDebounce = 0;
+		File outputLog = null;
+		long outputLogSize = RotatingLogFile.DEFAULT_MAX_SIZE;
 
 
 		if (args.length == 0) {
 			System.err.println("Error: Lack parameters.");
 			System.err.println();
 			printHelp();
-			System.exit(ErrorCode.LACK_PARAMETERS.code());
-			return;
+			return ErrorCode.LACK_PARAMETERS;
 		}
 
 
@@ -57,21 +111,18 @@ public class Interpreter {
 			
 			if ("-h".equals(v) || "--help".equals(v)) {
 				printHelp();
-				System.exit(ErrorCode.SUCCESS.code());
-				return;
+				return ErrorCode.SUCCESS;
 			}
 
 			if (i == args.length - 1) {
 				fileToRun = new File(args[args.length - 1]);
 				if (!fileToRun.exists()) {
 					System.err.println(String.format("File '%s' not exits!", fileToRun.getAbsolutePath()));
-					System.exit(ErrorCode.FILE_TO_RUN_NOT_EXISTS.code());
-					return;
+					return ErrorCode.FILE_TO_RUN_NOT_EXISTS;
 				}
 				if (!fileToRun.isFile()) {
 					System.err.println(String.format("File '%s' is not file!", fileToRun.getAbsolutePath()));
-					System.exit(ErrorCode.FILE_TO_RUN_IS_NOT_FILE.code());
-					return;
+					return ErrorCode.FILE_TO_RUN_IS_NOT_FILE;
 				}
 
 				if (isNull(parentDirectory)) {
@@ -86,6 +137,15 @@ public class Interpreter {
 							.replaceAll("\\n", "\n")
 							.replaceAll("\\t", "\t");
 				}
+				if ("-emu".equals(v)) {
+					useEmulator = true;
+				}
+				if (v.startsWith("-P=")) {
+					fleetPorts = v.substring(3);
+				}
+				if (v.startsWith("-j=")) {
+					parallelism = Integer.parseInt(v.substring(3));
+				}
 				if (v.startsWith("-p=")) {
 					port = v.substring(3);
 				}
@@ -117,6 +177,64 @@ public class Interpreter {
 				if (v.startsWith("-ic=")) {
 					ignoreCompileFilesInString = v.substring(4).split(",");
 				}
+				if ("-s".equals(v)) {
+					incremental = true;
+				}
+				if ("-D".equals(v)) {
+					incremental = true;
+					delta = true;
+				}
+				if (v.startsWith("-w=")) {
+					windowSize = Integer.parseInt(v.substring(3));
+				}
+				if ("-resume".equals(v)) {
+					resumable = true;
+				}
+				if ("-bundle".equals(v)) {
+					bundle = true;
+				}
+				if ("-restart".equals(v)) {
+					restartForCompile = true;
+				}
+				if ("-adapt".equals(v)) {
+					adaptive = true;
+				}
+				if ("-crc".equals(v)) {
+					checksum = true;
+				}
+				if (v.startsWith("-B=")) {
+					transferBaudRate = Integer.parseInt(v.substring(3));
+				}
+				if (v.startsWith("-lc=")) {
+					hostCompiler = new File(v.substring(4));
+					compile = true;
+				}
+				if (v.startsWith("-L=")) {
+					outputLog = new File(v.substring(3));
+				}
+				if (v.startsWith("-Ls=")) {
+					try {
+						outputLogSize = Long.parseLong(v.substring(4));
+					} catch (NumberFormatException e) {
+						System.err.println("Log size must be number of bytes: " + v.substring(4));
+						return ErrorCode.LOG_SIZE_MUST_BE_GREATER_THAN_0;
+					}
+				}
+				if (v.startsWith("-M=")) {
+					metricsFile = new File(v.substring(3));
+				}
+				if ("-m".equals(v)) {
+					minify = true;
+				}
+				if ("-nf".equals(v)) {
+					freshDetection = true;
+				}
+				if ("-watch".equals(v)) {
+					watchDebounce = DirectoryWatcher.DEFAULT_DEBOUNCE;
+				}
+				if (v.startsWith("-watch=")) {
+					watchDebounce = Integer.parseInt(v.substring(7));
+				}
 				if ("-nw".equals(v)) {
 					waitForOutput = false;
 				}
@@ -134,10 +252,19 @@ public class Interpreter {
 			}
 		}
 
+		if (windowSize < 0) {
+			System.err.println("Window size must be greater or equal 0!");
+			return ErrorCode.WINDOW_SIZE_MUST_BE_GREATER_OR_EQUAL_0;
+		}
+
 		if(baudRate <= 0) {
 			System.err.println("BaudRate must be greater than 0!");
-			System.exit(ErrorCode.BAUD_RATE_MUST_BE_GREATER_THAN_0.code());
-			return;
+			return ErrorCode.BAUD_RATE_MUST_BE_GREATER_THAN_0;
+		}
+
+		if (outputLogSize <= 0) {
+			System.err.println("Log size must be greater than 0!");
+			return ErrorCode.LOG_SIZE_MUST_BE_GREATER_THAN_0;
 		}
 
 
@@ -150,8 +277,7 @@ public class Interpreter {
 			System.err.println("Parent dir must be also parent for main file!");
 			System.err.println("Parent dir: " + parentDirectory.getAbsolutePath());
 			System.err.println("Main file:  " + fileToRun.getAbsolutePath());
-			System.exit(ErrorCode.PARENT_DIR_MUST_BE_ALSO_PARENT_FOR_MAIN_FILE.code());
-			return;
+			return ErrorCode.PARENT_DIR_MUST_BE_ALSO_PARENT_FOR_MAIN_FILE;
 		}
 
 		final File parentForLambda = parentDirectory;
@@ -191,6 +317,75 @@ public class Interpreter {
 		});
 
 
+		CompletableFuture<Map<String, String>> hashes = null;
+		if (incremental && !onlyRemoveFiles) {
+			List<File> filesToHash = sendOnlyOne
+					? Collections.singletonList(fileToRun)
+					: FileHelper.listFiles(parentDirectory, ignoreDirectories);
+			hashes = DeviceManifest.hashFilesAsync(parentDirectory, filesToHash);
+		}
+
+
+		DeployOptions options = new DeployOptions();
+		options.fileToRun = fileToRun;
+		options.fileToRunRelative = fileToRunRelative;
+		options.parentDirectory = parentDirectory;
+		options.sendOnlyOne = sendOnlyOne;
+		options.notRunOnlySave = notRunOnlySave;
+		options.onlyRemoveFiles = onlyRemoveFiles;
+		options.ignoreDirectories = ignoreDirectories;
+		options.waitForOutput = waitForOutput;
+		options.excludeFiles = excludeFiles;
+		options.ignoreCompileFiles = ignoreCompileFiles;
+		options.compile = compile;
+		options.removeSourceAfterCompile = removeSourceAfterCompile;
+		options.incremental = incremental;
+		options.delta = delta;
+		options.windowSize = windowSize;
+		options.checksum = checksum;
+		options.adaptive = adaptive;
+		options.resumable = resumable;
+		options.bundle = bundle;
+		options.restartForCompile = restartForCompile;
+		options.transferBaudRate = transferBaudRate;
+		options.baudRate = baudRate;
+		options.minify = minify;
+		options.hostCompiler = hostCompiler;
+		options.metricsFile = metricsFile;
+		options.freshDetection = freshDetection;
+		options.watchDebounce = watchDebounce;
+		options.outputLog = outputLog;
+		options.outputLogSize = outputLogSize;
+
+		if (sendOnlyOne && ignoreDirectories &&
+				!fileToRun.getParentFile().getAbsolutePath().equals(parentDirectory.getAbsolutePath())) {
+			System.err.println("SendOnlyOne and IgnoreDirectories are set. You cannot have fileToRun in directory!");
+			return ErrorCode.FILE_TO_RUN_IN_DIRECTORIES_WHEN_ONLY_ONE_AND_IGNORE_DIRECTORIES;
+		}
+
+		if (nonNull(daemon)) {
+			String rejected;
+			try {
+				rejected = DaemonServer.checkJob(options);
+			} catch (IOException e) {
+				rejected = e.getMessage();
+			}
+			if (nonNull(rejected)) {
+				System.err.println(rejected);
+				return ErrorCode.DAEMON_JOB_REJECTED;
+			}
+		}
+
+		if (useEmulator) {
+			System.out.println("Use NodeMCU emulator, files are not sent to any device.");
+			if (nonNull(daemon)) {
+				return daemon.runJob(options, NodeMcuEmulator.DEFAULT_NAME,
+						() -> new NodeMcuEmulator(NodeMcuEmulator.DEFAULT_NAME, true, 0), endCommand, timeout, hashes);
+			}
+			return runSingle(options, new NodeMcuEmulator(NodeMcuEmulator.DEFAULT_NAME, true, 0),
+					endCommand, timeout, hashes);
+		}
+
 		System.out.println("Available ports: ");
 		String[] ports = SerialPortList.getPortNames();
 		for (String p : ports) {
@@ -199,13 +394,30 @@ public class Interpreter {
 
 		if (isNull(ports) || ports.length == 0) {
 			System.err.println("Not find any ports!");
-			System.exit(ErrorCode.NOT_FIND_ANY_PORT.code());
-			return;
+			return ErrorCode.NOT_FIND_ANY_PORT;
+		}
+
+		if (nonNull(fleetPorts)) {
+			List<String> selectedPorts = "all".equals(fleetPorts)
+					? Arrays.asList(ports)
+					: Arrays.asList(fleetPorts.split(","));
+			for (String p : selectedPorts) {
+				if (!Arrays.asList(ports).contains(p)) {
+					System.err.println(String.format("Not find port '%s'!", p));
+					return ErrorCode.NOT_FIND_PORT;
+				}
+			}
+			if (nonNull(daemon)) {
+				// fleet opens own connections
+				daemon.close(selectedPorts);
+			}
+			return runFleet(options, selectedPorts, parallelism, endCommand, timeout, hashes);
 		}
 
 
 		if (isNull(port)) {
-			if (selectFirstPort) {
+			// daemon has no console to ask for port
+			if (selectFirstPort || nonNull(daemon)) {
 				port = ports[0];
 			} else {
 				System.out.print(String.format("Enter port name [%s]: ", ports[0]));
@@ -226,8 +438,7 @@ public class Interpreter {
 		if (!findPort) {
 			if (port != null) {
 				System.err.println(String.format("Not find port '%s'!", port));
-				System.exit(ErrorCode.NOT_FIND_PORT.code());
-				return;
+				return ErrorCode.NOT_FIND_PORT;
 			}
 		}
 
@@ -239,7 +450,23 @@ public class Interpreter {
 		System.out.println("Only remove files: " + onlyRemoveFiles);
 		System.out.println("Selected port: " + port);
 
-		try (final NodeMcuInterpreter interpreter = new NodeMcuInterpreter(port, endCommand, baudRate, timeout)) {
+		if (nonNull(daemon)) {
+			String selectedPort = port;
+			int transportTimeout = timeout;
+			return daemon.runJob(options, port, () -> new SerialTransport(selectedPort, transportTimeout), endCommand, timeout, hashes);
+		}
+		return runSingle(options, new SerialTransport(port, timeout), endCommand, timeout, hashes);
+	}
+
+	/**
+	 * Deploy to one device.
+	 */
+	static ErrorCode runSingle(DeployOptions options, Transport transport, String endCommand, int timeout,
+							   CompletableFuture<Map<String, String>> hashes) {
+		List<TransferMetrics> metrics = new ArrayList<>();
+		try (final NodeMcuInterpreter interpreter = new NodeMcuInterpreter(transport, endCommand, options.baudRate, timeout,
+				fingerprints(options))) {
+			metrics.add(interpreter.getMetrics());
 			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
 				if (nonNull(interpreter) && !interpreter.isClosed()) {
 					interpreter.close();
@@ -248,57 +475,231 @@ public class Interpreter {
 				return;
 			}));
 
-			FileWriter fileWriter = new FileWriter(parentDirectory,
-					interpreter, onlyRemoveFiles,
-					ignoreDirectories, excludeFiles, ignoreCompileFiles,
-					compile, removeSourceAfterCompile);
-			if (sendOnlyOne) {
-				if (ignoreDirectories &&
-						!fileToRun.getParentFile().getAbsolutePath().equals(parentDirectory.getAbsolutePath())) {
-					System.err.println("SendOnlyOne and IgnoreDirectories are set. You cannot have fileToRun in directory!");
-					System.exit(ErrorCode.FILE_TO_RUN_IN_DIRECTORIES_WHEN_ONLY_ONE_AND_IGNORE_DIRECTORIES.code());
-					return;
-				} else {
-					fileWriter.runOnlyForOneFile(fileToRun);
-				}
-			} else {
-				fileWriter.run();
-			}
-
-			if (!notRunOnlySave && !excludeFiles.contains(fileToRunRelative)) {
-				String fileToRunOnDevice = fileToRunRelative;
-				if(compile && !ignoreCompileFiles.contains(fileToRunRelative)) {
-					String[] partFile = FileHelper.getNameAndExtensionFile(fileToRunOnDevice);
-					fileToRunOnDevice = partFile[0] + ".lc";
-				}
-				interpreter.runFile(fileToRunOnDevice, waitForOutput);
-			}
+			deploy(options, interpreter, hashes, null);
 
-		} catch (SerialPortException e) {
-			System.err.println(e.getMessage());
-			System.exit(ErrorCode.SERIAL_PORT_EXCEPTION.code());
-			return;
-		} catch (SerialPortTimeoutException e) {
+		} catch (SerialPortException | SerialPortTimeoutException | DetectedException | IOException e) {
 			System.err.println(e.getMessage());
-			System.exit(ErrorCode.SERIAL_PORT_TIMEOUT_EXCEPTION.code());
-			return;
-		} catch (DetectedException e) {
-			System.err.println(e.getMessage());
-			System.exit(ErrorCode.DETECTION_EXCEPTION.code());
+			return errorCode(e);
+		} finally {
+			writeMetrics(options, metrics);
+		}
+		return ErrorCode.SUCCESS;
+	}
+
+	/**
+	 * @return devices known from previous runs, null when device must be detected again
+	 */
+	static DeviceFingerprints fingerprints(DeployOptions options) {
+		return options.freshDetection ? null : DeviceFingerprints.getDefault();
+	}
+
+	static ErrorCode errorCode(Exception e) {
+		if (e instanceof NotEnoughSpaceException) {
+			return ErrorCode.NOT_ENOUGH_SPACE;
+		}
+		if (e instanceof CompileFailedException) {
+			return ErrorCode.COMPILE_FAILED;
+		}
+		if (e instanceof SerialPortException) {
+			return ErrorCode.SERIAL_PORT_EXCEPTION;
+		}
+		if (e instanceof SerialPortTimeoutException) {
+			return ErrorCode.SERIAL_PORT_TIMEOUT_EXCEPTION;
+		}
+		if (e instanceof DetectedException) {
+			return ErrorCode.DETECTION_EXCEPTION;
+		}
+		return ErrorCode.IO_EXCEPTION;
+	}
+
+	/**
+	 * Write JSON summary of metrics when metrics file is set, also after failed deploy.
+	 */
+	static void writeMetrics(DeployOptions options, Collection<TransferMetrics> metrics) {
+		if (isNull(options.metricsFile) || metrics.isEmpty()) {
 			return;
+		}
+		try {
+			TransferMetrics.writeJson(options.metricsFile, metrics);
+			System.out.println("Metrics: " + options.metricsFile.getAbsolutePath());
 		} catch (IOException e) {
-			System.err.println(e.getMessage());
-			System.exit(ErrorCode.IO_EXCEPTION.code());
-			return;
+			System.err.println("Cannot write metrics. Message: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Send files to device and run main file.
+	 * Files which were not compiled are reported by {@link CompileFailedException} after main file is run.
+	 *
+	 * @param hashes        content hashes for incremental deploy, can be null
+	 * @param sharedContent file contents shared between devices deployed at once, can be null
+	 */
+	static void deploy(DeployOptions options, NodeMcuInterpreter interpreter,
+					   CompletableFuture<Map<String, String>> hashes,
+					   ConcurrentMap<String, byte[]> sharedContent) throws SerialPortException, SerialPortTimeoutException, IOException {
+		interpreter.setWindowSize(options.windowSize);
+		interpreter.setChecksum(options.checksum);
+		interpreter.setAdaptive(options.adaptive);
+
+		FileWriter fileWriter = new FileWriter(options.parentDirectory,
+				interpreter, options.onlyRemoveFiles,
+				options.ignoreDirectories, options.excludeFiles, options.ignoreCompileFiles,
+				options.compile, options.removeSourceAfterCompile);
+		String deviceId = nonNull(interpreter.getChipId()) ? interpreter.getChipId() : interpreter.getPort();
+		if (options.incremental) {
+			DeviceManifest manifest = DeviceManifest.forDevice(deviceId);
+			System.out.println("Device manifest: " + manifest.getFile().getAbsolutePath());
+			fileWriter.setIncremental(manifest, hashes);
+			fileWriter.setDelta(options.delta);
+		}
+		if (options.resumable) {
+			UploadProgress uploadProgress = UploadProgress.forDevice(deviceId);
+			System.out.println("Upload progress: " + uploadProgress.getFile().getAbsolutePath());
+			fileWriter.setResumable(uploadProgress);
+		}
+		fileWriter.setBundle(options.bundle);
+		fileWriter.setRestartForCompile(options.restartForCompile);
+		if (nonNull(options.hostCompiler)) {
+			fileWriter.setHostCompiler(new LuacCrossCompiler(options.hostCompiler), ContentCache.named("compiled"));
+		}
+		if (options.minify) {
+			fileWriter.setMinify(ContentCache.named("minified"));
+		}
+		if (nonNull(sharedContent)) {
+			fileWriter.setSharedContent(sharedContent);
+		}
+		long start = System.nanoTime();
+		if (options.transferBaudRate > options.baudRate) {
+			interpreter.upshiftBaudRate(options.transferBaudRate);
+		}
+		interpreter.getMetrics().phase(TransferMetrics.PHASE_BAUD_RATE, System.nanoTime() - start);
+		if (options.sendOnlyOne) {
+			fileWriter.runOnlyForOneFile(options.fileToRun);
+		} else {
+			fileWriter.run();
+		}
+		start = System.nanoTime();
+		interpreter.restoreBaudRate();
+		interpreter.getMetrics().phase(TransferMetrics.PHASE_BAUD_RATE, System.nanoTime() - start);
+
+		boolean watch = options.watchDebounce > 0 && !options.onlyRemoveFiles;
+		RotatingLogFile outputLog = null;
+		if (nonNull(options.outputLog) && (watch || options.waitForOutput)) {
+			outputLog = new RotatingLogFile(options.outputLog, options.outputLogSize);
+			System.out.println("Output log: " + outputLog.getFile().getAbsolutePath());
+			interpreter.setOutputLog(outputLog);
+		}
+		try {
+			runMainFile(options, interpreter, options.waitForOutput && !watch);
+			if (watch) {
+				watch(options, interpreter, fileWriter);
+			}
+		} finally {
+			if (nonNull(outputLog)) {
+				interpreter.setOutputLog(null);
+				outputLog.close();
+			}
+		}
+		if (!fileWriter.getCompileFailures().isEmpty()) {
+			throw new CompileFailedException("Cannot compile files: " + String.join(", ", fileWriter.getCompileFailures()));
+		}
+	}
+
+	private static void runMainFile(DeployOptions options, NodeMcuInterpreter interpreter, boolean waitForOutput)
+			throws SerialPortException, SerialPortTimeoutException {
+		if (!options.notRunOnlySave && !options.excludeFiles.contains(options.fileToRunRelative)) {
+			String fileToRunOnDevice = options.fileToRunRelative;
+			if(options.compile && !options.ignoreCompileFiles.contains(options.fileToRunRelative)) {
+				String[] partFile = FileHelper.getNameAndExtensionFile(fileToRunOnDevice);
+				fileToRunOnDevice = partFile[0] + ".lc";
+			}
+			interpreter.runFile(fileToRunOnDevice, waitForOutput);
 		}
+	}
 
+	/**
+	 * Send files saved in parent directory by the same connection and run main file again, until enter is pressed.
+	 * Failed upload (e.g. syntax error in compiled file) is only printed, next save tries again.
+	 */
+	private static void watch(DeployOptions options, NodeMcuInterpreter interpreter, FileWriter fileWriter) throws IOException {
+		try (DirectoryWatcher watcher = new DirectoryWatcher(options.parentDirectory,
+				!options.ignoreDirectories && !options.sendOnlyOne, options.watchDebounce)) {
+			Thread exit = new Thread(() -> {
+				NodeMcuInterpreter.waitForEnter();
+				try {
+					watcher.close();
+				} catch (IOException ignore) {
+				}
+			}, "watch-exit");
+			exit.setDaemon(true);
+			exit.start();
+
+			System.out.println("Watch " + options.parentDirectory.getAbsolutePath() + " for changes.");
+			System.out.println("If you want exit, press enter.");
+			System.out.println("----------------------------------------------------------------");
+			interpreter.printOutput();
+			List<File> changed;
+			while (nonNull(changed = watcher.awaitChanges())) {
+				if (options.sendOnlyOne) {
+					changed.retainAll(Collections.singleton(options.fileToRun.getAbsoluteFile()));
+					if (changed.isEmpty()) {
+						continue;
+					}
+				}
+				System.out.println();
+				System.out.println("Changed: " + changed);
+				try {
+					fileWriter.runForFiles(changed);
+					runMainFile(options, interpreter, false);
+				} catch (SerialPortException | SerialPortTimeoutException | IOException e) {
+					System.err.println(e.getMessage());
+				}
+				interpreter.printOutput();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
-		System.exit(ErrorCode.SUCCESS.code());
+	/**
+	 * Deploy to all ports at once, files are read and prepared once for all devices.
+	 */
+	private static ErrorCode runFleet(DeployOptions options, List<String> ports, int parallelism,
+									  String endCommand, int timeout,
+									  CompletableFuture<Map<String, String>> hashes) {
+		// output of many devices cannot be shown in one console
+		options.waitForOutput = false;
+		options.watchDebounce = 0;
+		ConcurrentMap<String, byte[]> sharedContent = new ConcurrentHashMap<>();
+		System.out.println("Deploy to ports: " + ports + ", parallelism: " + parallelism);
+
+		Queue<TransferMetrics> metrics = new ConcurrentLinkedQueue<>();
+		FleetDeployer fleetDeployer = new FleetDeployer(ports, parallelism, p -> {
+			try (NodeMcuInterpreter interpreter = new NodeMcuInterpreter(new SerialTransport(p, timeout), endCommand,
+					options.baudRate, timeout, fingerprints(options))) {
+				metrics.add(interpreter.getMetrics());
+				deploy(options, interpreter, hashes, sharedContent);
+			}
+		});
+		List<FleetDeployer.DeviceResult> results;
+		try {
+			results = fleetDeployer.run();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return ErrorCode.FLEET_DEPLOY_FAILED;
+		}
+		System.out.println("----------------------------------------------------------------");
+		for (FleetDeployer.DeviceResult result : results) {
+			System.out.println(result);
+		}
+		writeMetrics(options, metrics);
+		return FleetDeployer.allSuccess(results) ? ErrorCode.SUCCESS : ErrorCode.FLEET_DEPLOY_FAILED;
 	}
 
 	public static void printHelp() {
 		System.out.println("java -jar interpreter.jar [OPTIONS] <MAIN_FILE>");
 		System.out.println("java -jar interpreter.jar -h|--help");
+		System.out.println("java -jar interpreter.jar " + DaemonServer.OPTION + "[=TCP_PORT]");
 		System.out.println();
 		System.out.println("MAIN_FILE - file to run and copy file from parent directory.");
 		System.out.println("OPTIONS: ");
@@ -309,15 +710,35 @@ public class Interpreter {
 		System.out.println(createOptionHelp("-o", "send only main file"));
 		System.out.println(createOptionHelp("-p=PORT", "serial port"));
 		System.out.println(createOptionHelp("-f", "select first port"));
+		System.out.println(createOptionHelp("-P=PORT1,...,PORT|all", "deploy to many devices at once, main file is run without waiting for output"));
+		System.out.println(createOptionHelp("-emu", "use in-memory NodeMCU emulator instead of serial port"));
+		System.out.println(createOptionHelp("-j=PARALLELISM", "max devices deployed at once, default - " + FLEET_DEFAULT_PARALLELISM));
+		System.out.println(createOptionHelp("-remote[=TCP_PORT]", "run by daemon, which keeps port open between runs, default TCP_PORT - " + DaemonServer.DEFAULT_TCP_PORT));
 		System.out.println(createOptionHelp("-nr", "not execute (dofile), only save"));
 		System.out.println(createOptionHelp("-t=TIMEOUT", "timeout, default - 10000 [ms]"));
 		System.out.println(createOptionHelp("-R", "only remove files from device"));
 		System.out.println(createOptionHelp("-i", "ignore files in directories"));
+		System.out.println(createOptionHelp("-nf", "detect device again by node.info(), not by fingerprint cached for port"));
 		System.out.println(createOptionHelp("-nw", "not wait for output"));
+		System.out.println(createOptionHelp("-watch[=DEBOUNCE]", "after deploy send saved files and run main file again, until enter is pressed, default DEBOUNCE - " + DirectoryWatcher.DEFAULT_DEBOUNCE + " [ms]"));
 		System.out.println(createOptionHelp("-b=BAUD_RATE", "baud rate, default - " + NodeMcuInterpreter.DEFAULT_BAUD_RATE));
 		System.out.println(createOptionHelp("-c", "compile *.lua files."));
 		System.out.println(createOptionHelp("-cr", "compile and next remove *.lua files (include -c)"));
 		System.out.println(createOptionHelp("-ic=file1,...,file", "ignore file to compile"));
+		System.out.println(createOptionHelp("-restart", "restart device when free heap is too low to compile (with -c), init.lua and init.lc are renamed for restart"));
+		System.out.println(createOptionHelp("-lc=LUAC_CROSS", "compile *.lua files on host by luac.cross and send only *.lc (include -c)"));
+		System.out.println(createOptionHelp("-m", "minify *.lua files before upload"));
+		System.out.println(createOptionHelp("-s", "send only files changed since last deploy to device"));
+		System.out.println(createOptionHelp("-D", "send only changed blocks of big files not compiled on device (include -s)"));
+		System.out.println(createOptionHelp("-B=MAX_BAUD_RATE", "upshift baud rate for file transfer, up to MAX_BAUD_RATE"));
+		System.out.println(createOptionHelp("-L=LOG_FILE", "copy output of device to LOG_FILE"));
+		System.out.println(createOptionHelp("-Ls=LOG_SIZE", "rotate LOG_FILE after LOG_SIZE bytes, " + RotatingLogFile.BACKUPS + " old logs are kept, default - " + RotatingLogFile.DEFAULT_MAX_SIZE));
+		System.out.println(createOptionHelp("-M=METRICS_FILE", "write timing of commands, blocks, files and phases as JSON to METRICS_FILE"));
+		System.out.println(createOptionHelp("-resume", "keep part of file sent before failure on device and continue upload in next run"));
+		System.out.println(createOptionHelp("-bundle", "send files up to " + FileWriter.BUNDLE_MAX_FILE_SIZE + " bytes in one stream, unpacked by device while it arrives"));
+		System.out.println(createOptionHelp("-crc", "device checks CRC of each block, block with wrong CRC is sent again up to " + NodeMcuInterpreter.MAX_BLOCK_RETRIES + " times (-w is not used)"));
+		System.out.println(createOptionHelp("-adapt", "tune size of blocks by ACK latency, errors (with -crc) and heap of device, up to " + NodeMcuInterpreter.BLOCK_SIZE + " (-w is not used)"));
+		System.out.println(createOptionHelp("-w=WINDOW", "pipelined upload, WINDOW blocks sent without waiting for ACK, default - 0 (off)"));
 	}
 
 	private static String createOptionHelp(String option, String help) {
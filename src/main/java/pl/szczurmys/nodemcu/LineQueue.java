@@ -1,7 +1,8 @@
 package pl.szczurmys.nodemcu;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import static java.util.Objects.isNull;
@@ -10,7 +11,7 @@ import static java.util.Objects.isNull;
  * Created by Jakub on 2015-06-20.
  */
 public class LineQueue {
-	private final Queue<String> lines = new ConcurrentLinkedQueue<>();
+	private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
 
 	public void addLine(String line) {
 		lines.add(line);
@@ -20,15 +21,24 @@ public class LineQueue {
 		return lines.poll();
 	}
 
+	public void clear() {
+		lines.clear();
+	}
+
+	/**
+	 * Park current thread until line arrives or timeout elapses.
+	 */
 	public String waitForLine(int timeout) throws TimeoutException {
-		long timeoutTime = System.currentTimeMillis() + timeout;
 		String line;
-		do {
-			if (timeoutTime < System.currentTimeMillis()) {
-				throw new TimeoutException("waitForLine timeout: " + timeoutTime);
-			}
-			line = getLine();
-		} while (isNull(line));
+		try {
+			line = lines.poll(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TimeoutException("waitForLine interrupted");
+		}
+		if (isNull(line)) {
+			throw new TimeoutException("waitForLine timeout: " + timeout);
+		}
 		return line;
 	}
 }
@@ -3,12 +3,29 @@ package pl.szczurmys.nodemcu;
 import jssc.SerialPort;
 import jssc.SerialPortException;
 import jssc.SerialPortTimeoutException;
+import pl.szczurmys.nodemcu.event.OutputPump;
 import pl.szczurmys.nodemcu.event.SelectorEventListener;
+import pl.szczurmys.nodemcu.transport.SerialTransport;
+import pl.szczurmys.nodemcu.transport.Transport;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
 
 import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
@@ -22,19 +39,130 @@ public class NodeMcuInterpreter implements Closeable {
 	public static final int DEFAULT_BAUD_RATE = SerialPort.BAUDRATE_9600;
 
 	public static final int REPEATED_DETECTED_TIMES = 100;
+	/**
+	 * First wait for prompt after empty line [ms], doubled after each attempt up to {@link #DETECT_MAX_DELAY}.
+	 */
+	public static final int DETECT_MIN_DELAY = 20;
+	public static final int DETECT_MAX_DELAY = 300;
+	public static final int BLOCK_SIZE = 255;
+	/**
+	 * Max length of one command line, firmware input buffer has 255 characters.
+	 */
+	public static final int MAX_COMMAND_LENGTH = 250;
+	/**
+	 * How many times block with wrong checksum is sent again.
+	 */
+	public static final int MAX_BLOCK_RETRIES = 3;
+	/**
+	 * Baud rates tried by {@link #upshiftBaudRate(int)}, from the fastest.
+	 */
+	public static final int[] TRANSFER_BAUD_RATES = {921600, 460800, 230400, 115200, 74880, 57600, 38400, 19200};
+	public static final int PROBE_TIMEOUT = 1000;
+	/**
+	 * Time for boot of device after node.restart() before detection [ms].
+	 */
+	public static final int RESTART_DELAY = 1000;
+	/**
+	 * Charset of commands sent to device and of lines received from device.
+	 */
+	public static final Charset CHARSET = StandardCharsets.UTF_8;
+
+	private static final String UART_SETUP_COMMAND = "uart.setup(0,%d,8,1,1);";
+	private static final String PROBE_MARKER = "PROBE";
+	private static final String FINGERPRINT_PREFIX = "FP:";
+
+	private static final String END_LIST_MARKER = "END_LIST";
+	private static final String FS_INFO_PREFIX = "FS:";
+	private static final String HEAP_PREFIX = "HEAP:";
+	private static final String FILE_CRC_PREFIX = "CRC:";
+	/**
+	 * CRC of first bytes of file, read in chunks by {@link #CRC_HELPER}. Arguments: file, length, chunk size.
+	 */
+	static final String FILE_CRC_COMMAND = "if file.open(\"%s\",\"r\") then local c,n=0xFFFF,%d while n>0 do " +
+			"local s=file.read(math.min(n,%d)) if not s then break end c=_crc(s,c) n=n-#s end file.close() " +
+			"print(\"" + FILE_CRC_PREFIX + "\"..c) else print(\"" + FILE_CRC_PREFIX + "-1\") end";
+	/**
+	 * Bytes per second of CRC computed by Lua on device, bounds time of waiting for {@link #fileCrc(String, long)}.
+	 */
+	private static final int FILE_CRC_RATE = 1024;
+	static final String BATCH_HELPER = "function _q(f,...) local o,r=pcall(f,...) return (o and r~=false) and 1 or 0 end ";
+	private static final String BATCH_RESULT_PREFIX = "BATCH:";
+	/**
+	 * CRC-16/CCITT-FALSE of received block, see {@link Crc16}. Optional second argument continues CRC of previous data.
+	 */
+	static final String CRC_HELPER = "function _crc(s,c) c=c or 0xFFFF for i=1,#s do c=bit.bxor(c,bit.lshift(s:byte(i),8)) " +
+			"for j=1,8 do c=bit.isset(c,15) and bit.bxor(bit.lshift(c,1),0x1021) or bit.lshift(c,1) c=bit.band(c,0xFFFF) end end return c end";
+	/**
+	 * Handler of one block checked by {@link #CRC_HELPER}. Arguments: size of block, its CRC, write of received data.
+	 */
+	static final String CHECKED_HANDLER = "uart.on(\"data\", %d, function(input) uart.on(\"data\") if _crc(input)==%d then %s " +
+			"uart.write(0, \"ACK\\r\\n\") else uart.write(0, \"NACK\\r\\n\") end end, 0);";
+	/**
+	 * Unpacker of {@link DeployBundle}, one command per function. _uf feeds received block, _uh reads header of next file,
+	 * _uo opens it and _uw writes its content. _u.e is set on end of stream or when file cannot be opened.
+	 */
+	static final String[] BUNDLE_UNPACKER = {
+			"_u={b=\"\",n=0,m={}} function _uw() local p=_u.b:sub(1,_u.n) file.write(p) _u.n=_u.n-#p _u.b=_u.b:sub(#p+1) " +
+					"if _u.n==0 then file.close() end end",
+			"function _uo(f) if not file.open(f,\"w+\") then _u.e=1 return end _u.m[#_u.m+1]=f " +
+					"if _u.n==0 then file.close() end return 1 end",
+			"function _uh() local b=_u.b local l=b:byte(1) if l==0 then _u.e=1 return end if #b<l+5 then return end " +
+					"local x,y,z,w=b:byte(l+2,l+5) _u.n=((x*256+y)*256+z)*256+w _u.b=b:sub(l+6) return _uo(b:sub(2,l+1)) end",
+			"function _uf(d) if _u.e then return end _u.b=_u.b..d while #_u.b>0 and not _u.e do " +
+					"if _u.n>0 then _uw() if _u.n>0 then return end elseif not _uh() then return end end end"
+	};
+	static final String BUNDLE_WRITE = "_uf(input)";
+	static final String FILE_WRITE = "file.write(input)";
+	/**
+	 * Sizes of unpacked files are read from file system, so manifest shows what was really written.
+	 */
+	static final String BUNDLE_MANIFEST = "local l=file.list() for _,f in ipairs(_u.m) do print(f..\":\"..(l[f] or -1)) end " +
+			"print(\"" + END_LIST_MARKER + "\") _u=nil _uw=nil _uo=nil _uh=nil _uf=nil";
+
+	/**
+	 * Operation executed on interpreter by {@link #submit(DeviceCommand)}.
+	 */
+	@FunctionalInterface
+	public interface DeviceCommand<T> {
+		T execute(NodeMcuInterpreter interpreter) throws SerialPortException, SerialPortTimeoutException, IOException;
+	}
 
 	private final SelectorEventListener selectorEventListener;
 
 	private String port;
-	private SerialPort serialPort;
+	private Transport transport;
 	private String endCommand;
 	private int timeout;
 	private boolean closed = false;
 	private int baudRate = DEFAULT_BAUD_RATE;
+	private int currentBaudRate = DEFAULT_BAUD_RATE;
 	private boolean uartSetup = false;
+	private String chipId;
+	private String flashId;
+	private String firmwareVersion;
+	private final DeviceFingerprints fingerprints;
+	private int windowSize = 0;
+	private boolean checksum = false;
+	private boolean adaptive = false;
+	/**
+	 * Block size learned by previous blocks of this connection; null - not known, device heap is read again.
+	 */
+	private AdaptiveBlockSize blockSize;
+	/**
+	 * Files on device with sizes by last listing, updated by commands of this interpreter; null - not known.
+	 */
+	private Map<String, Integer> fileCache;
+	private final TransferMetrics metrics;
 
 	private final LineQueue lineQueue = new LineQueue();
+	private final OutputPump outputPump;
 	private final AtomicBoolean detected = new AtomicBoolean(false);
+	private final AtomicInteger requestId = new AtomicInteger();
+	private final ExecutorService commandExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "node-mcu-commands");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 
 	public NodeMcuInterpreter(String port, String endCommand) throws SerialPortException, DetectedException, SerialPortTimeoutException {
@@ -48,40 +176,64 @@ public class NodeMcuInterpreter implements Closeable {
 	}
 
 	public NodeMcuInterpreter(String port, String endCommand, int baudRate, int timeout) throws SerialPortException, DetectedException, SerialPortTimeoutException {
-		this.port = port;
+		this(new SerialTransport(port, timeout), endCommand, baudRate, timeout);
+	}
+
+	public NodeMcuInterpreter(Transport transport, String endCommand, int baudRate, int timeout) throws SerialPortException, DetectedException, SerialPortTimeoutException {
+		this(transport, endCommand, baudRate, timeout, null);
+	}
+
+	/**
+	 * @param fingerprints devices known from previous connections, null - always query node.info()
+	 */
+	public NodeMcuInterpreter(Transport transport, String endCommand, int baudRate, int timeout, DeviceFingerprints fingerprints) throws SerialPortException, DetectedException, SerialPortTimeoutException {
+		this.port = transport.getName();
+		this.fingerprints = fingerprints;
 		this.endCommand = endCommand;
 		this.timeout = timeout;
 		this.baudRate = baudRate;
-		this.serialPort = new SerialPort(port);
-		this.serialPort.openPort();
-		this.serialPort.setParams(baudRate,
-				SerialPort.DATABITS_8,
-				SerialPort.STOPBITS_1,
-				SerialPort.PARITY_NONE);
+		this.currentBaudRate = baudRate;
+		this.transport = transport;
+		this.metrics = new TransferMetrics(port);
+		this.outputPump = new OutputPump(port);
+		this.transport.open(baudRate);
 
-		selectorEventListener = new SelectorEventListener(serialPort, detected, lineQueue, timeout);
-		serialPort.addEventListener(selectorEventListener);
+		selectorEventListener = new SelectorEventListener(detected, lineQueue, outputPump);
+		transport.setListener(selectorEventListener);
 
+		long detectionStart = System.nanoTime();
 		testCommand();
+		metrics.detection(System.nanoTime() - detectionStart);
+		metrics.register();
 
 	}
 
 	@Override
 	public void close() {
-		if (nonNull(serialPort)) {
+		commandExecutor.shutdownNow();
+		metrics.unregister();
+		if (nonNull(transport) && currentBaudRate != baudRate) {
 			try {
-				serialPort.removeEventListener();
+				restoreBaudRate();
+			} catch (SerialPortException | SerialPortTimeoutException e) {
+				System.err.println("Error when try restore baud rate, '" + port + "'. Message: " + e.getMessage());
+			}
+		}
+		if (nonNull(transport)) {
+			try {
+				transport.removeListener();
 			} catch (SerialPortException e) {
 				System.err.println("Error when try removeEventListener, '" + port + "'. Message: " + e.getMessage());
 				e.printStackTrace();
 			}
 			try {
-				serialPort.closePort();
+				transport.close();
 			} catch (SerialPortException e) {
 				System.err.println("Error when try close port '" + port + "'. Message: " + e.getMessage());
 				e.printStackTrace();
 			}
 		}
+		outputPump.close();
 		closed = true;
 	}
 
@@ -89,7 +241,404 @@ public class NodeMcuInterpreter implements Closeable {
 		return closed;
 	}
 
-	public void deleteFile(String file) throws SerialPortException, SerialPortTimeoutException {
+	/**
+	 * Number of blocks which can be sent without waiting for ACK.
+	 * 0 - each block is sent by separate uart.on command (stop-and-wait).
+	 */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Device checks CRC of each block before write and block with wrong CRC is sent again.
+	 * Blocks are sent by stop-and-wait, window size is not used.
+	 */
+	public void setChecksum(boolean checksum) {
+		this.checksum = checksum;
+	}
+
+	public boolean isChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * Blocks are sent by stop-and-wait with size tuned by ACK latency and errors, see {@link AdaptiveBlockSize}.
+	 * Window size is not used.
+	 */
+	public void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * @return block size used by last upload, null if adaptive block size was not used yet
+	 */
+	public synchronized AdaptiveBlockSize getBlockSize() {
+		return blockSize;
+	}
+
+	public int getCurrentBaudRate() {
+		return currentBaudRate;
+	}
+
+	/**
+	 * Switch device and port to the fastest working rate not greater than maxBaudRate.
+	 * Each rate is verified by probe, on error next lower rate is tried.
+	 *
+	 * @return baud rate in use
+	 */
+	public synchronized int upshiftBaudRate(int maxBaudRate) throws SerialPortException, SerialPortTimeoutException {
+		for (int rate : TRANSFER_BAUD_RATES) {
+			if (rate > maxBaudRate || rate <= baudRate) {
+				continue;
+			}
+			System.out.println("Try baud rate: " + rate);
+			if (switchBaudRate(rate)) {
+				System.out.println("Transfer baud rate: " + rate);
+				return rate;
+			}
+			System.err.println("Baud rate " + rate + " does not work, fall back.");
+			if (!switchBaudRate(baudRate) && !probeAtHostRate(baudRate)) {
+				throw new SerialPortException(port, "upshiftBaudRate", "Cannot restore baud rate " + baudRate);
+			}
+		}
+		return currentBaudRate;
+	}
+
+	/**
+	 * Return to baud rate which session was opened with.
+	 */
+	public synchronized void restoreBaudRate() throws SerialPortException, SerialPortTimeoutException {
+		if (currentBaudRate == baudRate) {
+			return;
+		}
+		if (!switchBaudRate(baudRate) && !probeAtHostRate(baudRate)) {
+			throw new SerialPortException(port, "restoreBaudRate", "Cannot restore baud rate " + baudRate);
+		}
+		System.out.println("Restore baud rate: " + baudRate);
+	}
+
+	private boolean switchBaudRate(int rate) throws SerialPortException, SerialPortTimeoutException {
+		selectorEventListener.setEventType(READ_LINE_MASK);
+		lineQueue.clear();
+
+		String command = String.format(UART_SETUP_COMMAND, rate);
+		writeLine(command);
+		try {
+			// echo is sent before command is executed, so still with old rate
+			System.out.println(readLine(PROBE_TIMEOUT).trim());
+		} catch (SerialPortTimeoutException e) {
+			System.err.println("No echo for: " + command);
+		}
+		return probeAtHostRate(rate);
+	}
+
+	private boolean probeAtHostRate(int rate) throws SerialPortException, SerialPortTimeoutException {
+		transport.setBaudRate(rate);
+		currentBaudRate = rate;
+		uartSetup = true;
+		// latency of blocks changes with rate
+		blockSize = null;
+		try {
+			Thread.sleep(50);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// end line which may be broken by changing rate
+		writeLine("");
+		try {
+			Thread.sleep(50);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		lineQueue.clear();
+
+		writeLine(String.format("print(\"%s\"..\"%d\");", PROBE_MARKER, rate));
+		String expected = PROBE_MARKER + rate;
+		long end = System.currentTimeMillis() + PROBE_TIMEOUT;
+		try {
+			while (System.currentTimeMillis() < end) {
+				if (readLine(PROBE_TIMEOUT).trim().equals(expected)) {
+					return true;
+				}
+			}
+		} catch (SerialPortTimeoutException ignore) {
+		}
+		return false;
+	}
+
+	public String getPort() {
+		return port;
+	}
+
+	public TransferMetrics getMetrics() {
+		return metrics;
+	}
+
+	public String getFlashId() {
+		return flashId;
+	}
+
+	/**
+	 * Firmware version (major.minor.dev) reported by node.info() during detection.
+	 */
+	public String getFirmwareVersion() {
+		return firmwareVersion;
+	}
+
+	/**
+	 * Chip id reported by node.info() during detection.
+	 */
+	public String getChipId() {
+		return chipId;
+	}
+
+	/**
+	 * Run command on single command thread, so caller can do other work while it waits for device.
+	 * Commands are not pipelined: they are executed one by one in order of submission and never interleave
+	 * with synchronous calls on this interpreter. Only {@link #evaluate(String)} tags its response,
+	 * other commands match their responses by echo and order of lines.
+	 */
+	public <T> CompletableFuture<T> submit(DeviceCommand<T> command) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			commandExecutor.execute(() -> {
+				try {
+					future.complete(command.execute(this));
+				} catch (Exception e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(new SerialPortException(port, "submit", "Interpreter is closed"));
+		}
+		return future;
+	}
+
+	public CompletableFuture<String> evaluateAsync(String expression) {
+		return submit(i -> i.evaluate(expression));
+	}
+
+	public CompletableFuture<Map<String, Integer>> listFilesAsync() {
+		return submit(NodeMcuInterpreter::listFiles);
+	}
+
+	public CompletableFuture<DeviceStorage> readStorageAsync() {
+		return submit(NodeMcuInterpreter::readStorage);
+	}
+
+	public CompletableFuture<List<CommandBatch.Result>> executeBatchAsync(CommandBatch batch) {
+		return submit(i -> i.executeBatch(batch));
+	}
+
+	/**
+	 * Evaluate Lua expression on device and return its value converted by tostring.
+	 * Response is tagged with request id, other lines printed by device before it are written to output.
+	 * It is the only tagged command, see {@link #submit(DeviceCommand)}.
+	 */
+	public synchronized String evaluate(String expression) throws SerialPortException, SerialPortTimeoutException {
+		selectorEventListener.setEventType(READ_LINE_MASK);
+
+		String responsePrefix = "@" + requestId.incrementAndGet() + "=";
+		String command = String.format("print(\"%s\"..tostring(%s));", responsePrefix, expression);
+		String resultCommand = writeAndReadRepeatedCommand(command);
+		if (!command.trim().equals(resultCommand.trim())) {
+			throw new SerialPortException(port, "evaluate", String.format(
+					"\r\nResult command: %s \r\n" +
+							"not equals with command: %s",
+					resultCommand.trim(),
+					command
+			));
+		}
+
+		String line;
+		while (!(line = readLine()).startsWith(responsePrefix)) {
+			System.out.print(line);
+		}
+		return line.substring(responsePrefix.length()).trim();
+	}
+
+	/**
+	 * Collect garbage and read free heap, in one command.
+	 */
+	public synchronized int freeHeap() throws SerialPortException, SerialPortTimeoutException {
+		selectorEventListener.setEventType(READ_LINE_MASK);
+
+		String command = String.format("collectgarbage() print(\"%s\"..node.heap());", HEAP_PREFIX);
+		String resultCommand = writeAndReadRepeatedCommand(command);
+		if (!command.trim().equals(resultCommand.trim())) {
+			throw new SerialPortException(port, "freeHeap", "Cannot read heap. Device return: " + resultCommand);
+		}
+		String line = readLine().trim();
+		if (line.startsWith("> ")) {
+			line = line.substring(2);
+		}
+		try {
+			if (line.startsWith(HEAP_PREFIX)) {
+				int heap = Integer.parseInt(line.substring(HEAP_PREFIX.length()).trim());
+				System.out.println("Free heap: " + heap);
+				return heap;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new SerialPortException(port, "freeHeap", "Wrong heap. Device return: " + line);
+	}
+
+	/**
+	 * @param length count of first bytes of file
+	 * @return CRC-16/CCITT-FALSE of first bytes of file on device, see {@link Crc16}, -1 if file does not exist
+	 */
+	public synchronized int fileCrc(String file, long length) throws SerialPortException, SerialPortTimeoutException {
+		selectorEventListener.setEventType(READ_LINE_MASK);
+		installCrcHelper();
+
+		String command = String.format(FILE_CRC_COMMAND, file, length, BLOCK_SIZE);
+		String resultCommand = writeAndReadRepeatedCommand(command);
+		if (!command.trim().equals(resultCommand.trim())) {
+			throw new SerialPortException(port, "fileCrc", "Cannot read CRC of " + file + ". Device return: " + resultCommand);
+		}
+		String line = readLine((int) Math.min(Integer.MAX_VALUE, timeout + length * 1000 / FILE_CRC_RATE)).trim();
+		if (line.startsWith("> ")) {
+			line = line.substring(2);
+		}
+		try {
+			if (line.startsWith(FILE_CRC_PREFIX)) {
+				return Integer.parseInt(line.substring(FILE_CRC_PREFIX.length()).trim());
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new SerialPortException(port, "fileCrc", "Wrong CRC of " + file + ". Device return: " + line);
+	}
+
+	/**
+	 * Restart device, e.g. when heap is too fragmented, and wait until it responds again.
+	 * Device starts with baud rate of session and runs init.lua, files are kept.
+	 */
+	public synchronized void restart() throws SerialPortException, SerialPortTimeoutException {
+		selectorEventListener.setEventType(READ_LINE_MASK);
+		lineQueue.clear();
+
+		String command = "node.restart();";
+		writeLine(command);
+		try {
+			System.out.println(readLine(PROBE_TIMEOUT).trim());
+		} catch (SerialPortTimeoutException e) {
+			System.err.println("No echo for: " + command);
+		}
+		transport.setBaudRate(baudRate);
+		currentBaudRate = baudRate;
+		uartSetup = false;
+		// init.lua can change files and use heap
+		fileCache = null;
+		blockSize = null;
+		try {
+			Thread.sleep(RESTART_DELAY);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		lineQueue.clear();
+		detected.set(false);
+		try {
+			testCommand();
+		} catch (DetectedException e) {
+			throw new SerialPortException(port, "restart", "Device not response after restart. " + e.getMessage());
+		}
+	}
+
+	/**
+	 * List files on device.
+	 *
+	 * @return map name to size in bytes
+	 */
+	public Map<String, Integer> listFiles() throws SerialPortException, SerialPortTimeoutException {
+		return readStorage().getFiles();
+	}
+
+	/**
+	 * List files on device and read free space of file system, in one command.
+	 */
+	public synchronized DeviceStorage readStorage() throws SerialPortException, SerialPortTimeoutException {
+		selectorEventListener.setEventType(READ_LINE_MASK);
+
+		String command = String.format("local r,u,t=file.fsinfo() print(\"%s\"..r..\":\"..u..\":\"..t) " +
+				"for k,v in pairs(file.list()) do print(k..\":\"..v) end print(\"%s\");", FS_INFO_PREFIX, END_LIST_MARKER);
+		String resultCommand = writeAndReadRepeatedCommand(command);
+		if (!command.trim().equals(resultCommand.trim())) {
+			throw new SerialPortException(port, "readStorage", "Cannot list files. Device return: " + resultCommand);
+		}
+		System.out.println(resultCommand.trim());
+
+		String fsInfo = readLine().trim();
+		String[] space = fsInfo.startsWith(FS_INFO_PREFIX) ? fsInfo.substring(FS_INFO_PREFIX.length()).split(":") : new String[0];
+		if (space.length != 3) {
+			throw new SerialPortException(port, "readStorage", "Wrong file system info. Device return: " + fsInfo);
+		}
+
+		Map<String, Integer> files = new LinkedHashMap<>();
+		String line;
+		while (!END_LIST_MARKER.equals(line = readLine().trim())) {
+			int separator = line.lastIndexOf(':');
+			if (separator <= 0) {
+				throw new SerialPortException(port, "readStorage", "Wrong file entry. Device return: " + line);
+			}
+			try {
+				files.put(line.substring(0, separator), Integer.parseInt(line.substring(separator + 1).trim()));
+			} catch (NumberFormatException e) {
+				throw new SerialPortException(port, "readStorage", "Wrong file size. Device return: " + line);
+			}
+		}
+		fileCache = new LinkedHashMap<>(files);
+		try {
+			return new DeviceStorage(files, Long.parseLong(space[0]), Long.parseLong(space[1]), Long.parseLong(space[2]));
+		} catch (NumberFormatException e) {
+			throw new SerialPortException(port, "readStorage", "Wrong file system info. Device return: " + fsInfo);
+		}
+	}
+
+	/**
+	 * @return files on device with sizes, kept since last {@link #readStorage()}; null - files were not listed yet
+	 * or could be changed by code run on device
+	 */
+	public synchronized Map<String, Integer> getFileCache() {
+		return isNull(fileCache) ? null : Collections.unmodifiableMap(new LinkedHashMap<>(fileCache));
+	}
+
+	/**
+	 * @return false only when listing is known and file is not on device
+	 */
+	public synchronized boolean mayExist(String file) {
+		return isNull(fileCache) || fileCache.containsKey(file);
+	}
+
+	private void cacheFile(String file, long size) {
+		if (nonNull(fileCache)) {
+			fileCache.put(file, (int) size);
+		}
+	}
+
+	private void uncacheFile(String file) {
+		if (nonNull(fileCache)) {
+			fileCache.remove(file);
+		}
+	}
+
+	/**
+	 * Name of bytecode created by node.compile.
+	 */
+	private static String compiledName(String file) {
+		return file.endsWith(".lua") ? file.substring(0, file.length() - 4) + ".lc" : file + ".lc";
+	}
+
+	public synchronized void deleteFile(String file) throws SerialPortException, SerialPortTimeoutException {
 		selectorEventListener.setEventType(READ_LINE_MASK);
 
 		String command = String.format("file.remove(\"%s\");", file);
@@ -103,13 +652,17 @@ public class NodeMcuInterpreter implements Closeable {
 			));
 		}
 		System.out.println(resultCommand.trim());
+		uncacheFile(file);
 		return;
 	}
 
-	public void runFile(String file, boolean waitForOutputs) throws SerialPortException, SerialPortTimeoutException {
+	public synchronized void runFile(String file, boolean waitForOutputs) throws SerialPortException, SerialPortTimeoutException {
 		selectorEventListener.setEventType(READ_LINE_MASK);
 
 		String command = String.format("dofile(\"%s\");", file);
+		// code of file can change files and use heap
+		fileCache = null;
+		blockSize = null;
 		String resultCommand = writeAndReadRepeatedCommand(command);
 		if (!resultCommand.contains(command)) {
 			throw new SerialPortException(port, "runFile", String.format(
@@ -120,30 +673,132 @@ public class NodeMcuInterpreter implements Closeable {
 		System.out.println(resultCommand.trim());
 
 		if (waitForOutputs) {
-			selectorEventListener.setEventType(READ_ALL_MASK);
+			printOutput();
 
 			System.out.println("OUTPUT.");
 			System.out.println("If you want exit, press enter.");
 			System.out.println("----------------------------------------------------------------");
 
-			BufferedReader br = new BufferedReader(
-					new InputStreamReader(System.in));
+			waitForEnter();
+		}
 
-			try {
-				while (!br.ready()) {
-					try {
-						Thread.sleep(10);
-					} catch (InterruptedException ignore) {
-					}
+	}
+
+	/**
+	 * Block until enter is pressed or input is closed.
+	 */
+	public static void waitForEnter() {
+		try {
+			int c;
+			do {
+				c = System.in.read();
+			} while (c != '\n' && c != -1);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Print everything device sends until next command, e.g. output of file run without waiting.
+	 */
+	public synchronized void printOutput() {
+		selectorEventListener.setEventType(READ_ALL_MASK);
+	}
+
+	/**
+	 * Copy printed output of device also to log, null - stop logging. Log is closed by caller,
+	 * output received before the call is written to previous log, see {@link OutputPump#setLog(OutputStream)}.
+	 */
+	public void setOutputLog(OutputStream log) {
+		outputPump.setLog(log);
+	}
+
+	/**
+	 * Execute operations packed into as few command lines as possible.
+	 * Each line prints one result line with success flag (1 or 0) for every operation in line.
+	 */
+	public synchronized List<CommandBatch.Result> executeBatch(CommandBatch batch) throws SerialPortException, SerialPortTimeoutException {
+		selectorEventListener.setEventType(READ_LINE_MASK);
+
+		List<CommandBatch.Operation> operations = batch.getOperations();
+		List<CommandBatch.Result> results = new ArrayList<>(operations.size());
+		int index = 0;
+		while (index < operations.size()) {
+			StringBuilder sb = new StringBuilder();
+			if (index == 0) {
+				sb.append(BATCH_HELPER);
+			}
+			sb.append("print(\"").append(BATCH_RESULT_PREFIX).append("\"");
+			int start = index;
+			while (index < operations.size()) {
+				String expression = ".." + operations.get(index).toLua();
+				if (index > start && sb.length() + expression.length() + 2 > MAX_COMMAND_LENGTH) {
+					break;
+				}
+				sb.append(expression);
+				index++;
+			}
+			sb.append(");");
+
+			String command = sb.toString();
+			String resultCommand = writeAndReadRepeatedCommand(command);
+			if (!command.trim().equals(resultCommand.trim())) {
+				throw new SerialPortException(port, "executeBatch", String.format(
+						"\r\nResult command: %s \r\n" +
+								"not equals with command: %s",
+						resultCommand.trim(),
+						command
+				));
+			}
+			System.out.println(resultCommand.trim());
+
+			String resultLine = readLine().trim();
+			if (resultLine.startsWith("> ")) {
+				resultLine = resultLine.substring(2);
+			}
+			String flags = resultLine.startsWith(BATCH_RESULT_PREFIX) ? resultLine.substring(BATCH_RESULT_PREFIX.length()) : "";
+			if (flags.length() != index - start) {
+				throw new SerialPortException(port, "executeBatch", "Wrong batch result. Device return: " + resultLine);
+			}
+			for (int i = 0; i < flags.length(); i++) {
+				CommandBatch.Result result = new CommandBatch.Result(operations.get(start + i), flags.charAt(i) == '1');
+				System.out.println(result);
+				results.add(result);
+				if (result.isSuccess()) {
+					cacheResult(result.getOperation());
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
 			}
 		}
+		return results;
+	}
 
+	/**
+	 * Size of compiled file is not known until next listing, size of source is used.
+	 */
+	private void cacheResult(CommandBatch.Operation operation) {
+		if (isNull(fileCache)) {
+			return;
+		}
+		switch (operation.getType()) {
+			case REMOVE:
+				fileCache.remove(operation.getFile());
+				break;
+			case COMPILE:
+				Integer size = fileCache.get(operation.getFile());
+				if (nonNull(size)) {
+					fileCache.put(compiledName(operation.getFile()), size);
+				}
+				break;
+			case RENAME:
+				Integer renamed = fileCache.remove(operation.getFile());
+				if (nonNull(renamed)) {
+					fileCache.put(operation.getTarget(), renamed);
+				}
+				break;
+		}
 	}
 
-	public void compile(String file) throws SerialPortException, SerialPortTimeoutException {
+	public synchronized void compile(String file) throws SerialPortException, SerialPortTimeoutException {
 		selectorEventListener.setEventType(READ_LINE_MASK);
 
 		String command = String.format("node.compile(\"%s\");", file);
@@ -157,15 +812,45 @@ public class NodeMcuInterpreter implements Closeable {
 			));
 		}
 		System.out.println(resultCommand.trim());
+		Integer size = isNull(fileCache) ? null : fileCache.get(file);
+		if (nonNull(size)) {
+			cacheFile(compiledName(file), size);
+		}
 		return;
 
 	}
 
 
 	public void saveFile(String file, InputStream inputStream) throws IOException, SerialPortException, SerialPortTimeoutException {
+		saveFile(file, inputStream, -1);
+	}
+
+	/**
+	 * @param length size of data in inputStream, required for pipelined upload, -1 if unknown
+	 */
+	public void saveFile(String file, InputStream inputStream, long length) throws IOException, SerialPortException, SerialPortTimeoutException {
+		try (BlockSource source = BlockSource.of(inputStream, length, BLOCK_SIZE)) {
+			saveFile(file, source);
+		}
+	}
+
+	/**
+	 * @param source blocks of file, read ahead while previous blocks are sent
+	 */
+	public void saveFile(String file, BlockSource source) throws IOException, SerialPortException, SerialPortTimeoutException {
+		saveFile(file, source, 0, null);
+	}
+
+	/**
+	 * File is closed also after failed transfer, so acknowledged blocks stay on device.
+	 *
+	 * @param offset       bytes of file already on device, source is appended to them; 0 - new file
+	 * @param acknowledged called with count of bytes of file stored on device, after each acknowledged block, can be null
+	 */
+	public synchronized void saveFile(String file, BlockSource source, long offset, LongConsumer acknowledged) throws IOException, SerialPortException, SerialPortTimeoutException {
 		selectorEventListener.setEventType(READ_LINE_MASK);
 
-		String command = String.format("file.open(\"%s\",\"w+\");", file);
+		String command = String.format("file.open(\"%s\",\"%s\");", file, offset > 0 ? "a+" : "w+");
 		String resultCommand = writeAndReadRepeatedCommand(command);
 		if (!command.trim().equals(resultCommand.trim())) {
 			tryCloseFile();
@@ -173,48 +858,364 @@ public class NodeMcuInterpreter implements Closeable {
 		}
 		System.out.println(resultCommand.trim());
 
+		long start = System.nanoTime();
+		cacheFile(file, offset);
+		try {
+			long bytes = uartSave(source, b -> {
+				cacheFile(file, offset + b);
+				if (nonNull(acknowledged)) {
+					acknowledged.accept(offset + b);
+				}
+			});
+			metrics.fileSent(file, bytes, System.nanoTime() - start);
+			cacheFile(file, offset + bytes);
+		} finally {
+			tryCloseFile();
+		}
+	}
+
+	/**
+	 * Rewrite only changed regions of file already on device, file is opened in update mode and rest of content is kept.
+	 *
+	 * @param content whole new content of file, not shorter than file on device
+	 */
+	public synchronized void patchFile(String file, byte[] content, List<FileDelta.Region> regions) throws IOException, SerialPortException, SerialPortTimeoutException {
+		selectorEventListener.setEventType(READ_LINE_MASK);
+
+		String command = String.format("file.open(\"%s\",\"r+\");", file);
+		String resultCommand = writeAndReadRepeatedCommand(command);
+		if (!command.trim().equals(resultCommand.trim())) {
+			tryCloseFile();
+			throw new SerialPortException(port, "patchFile", "Cannot open file to update. Device return: " + resultCommand);
+		}
+		System.out.println(resultCommand.trim());
+
+		long start = System.nanoTime();
+		long bytes = 0;
+		try {
+			for (FileDelta.Region region : regions) {
+				command = String.format("file.seek(\"set\",%d);", region.getOffset());
+				resultCommand = writeAndReadRepeatedCommand(command);
+				if (!command.trim().equals(resultCommand.trim())) {
+					throw new SerialPortException(port, "patchFile", "Cannot seek file. Device return: " + resultCommand);
+				}
+				System.out.println(resultCommand.trim());
+				try (BlockSource source = BlockSource.of(
+						Arrays.copyOfRange(content, region.getOffset(), region.getOffset() + region.getLength()), BLOCK_SIZE)) {
+					bytes += uartSave(source, b -> {});
+				}
+			}
+		} finally {
+			tryCloseFile();
+		}
+		cacheFile(file, content.length);
+		metrics.fileSent(file, bytes, System.nanoTime() - start);
+	}
+
+	/**
+	 * Send many files as one stream, device splits it into files while it arrives.
+	 * Unpacker is installed for each bundle, device could be reset since previous one.
+	 * Blocks are acknowledged as in {@link #saveFile(String, BlockSource)}, with window at least 1 or with CRC.
+	 *
+	 * @return files written by device with sizes read from its file system
+	 */
+	public synchronized Map<String, Integer> saveBundle(DeployBundle bundle) throws IOException, SerialPortException, SerialPortTimeoutException {
+		selectorEventListener.setEventType(READ_LINE_MASK);
+
+		for (String command : BUNDLE_UNPACKER) {
+			String resultCommand = writeAndReadRepeatedCommand(command);
+			if (!command.equals(resultCommand.trim())) {
+				throw new SerialPortException(port, "saveBundle", "Cannot install unpacker. Device return: " + resultCommand);
+			}
+		}
+		System.out.println(String.format("Unpacker installed, send %d files in %d bytes.", bundle.getFileCount(), bundle.getLength()));
+
+		long start = System.nanoTime();
+		try (BlockSource source = BlockSource.of(bundle.toBytes(BLOCK_SIZE), BLOCK_SIZE)) {
+			setupUart();
+			if (checksum) {
+				uartSaveChecked(source, b -> {}, BUNDLE_WRITE);
+			} else {
+				uartSaveWindowed(source, b -> {}, BUNDLE_WRITE, Math.max(1, windowSize));
+			}
+		} catch (IOException | SerialPortException | SerialPortTimeoutException e) {
+			// file could be open by unpacker
+			tryCloseFile();
+			throw e;
+		}
+		long nanos = System.nanoTime() - start;
+
+		String resultCommand = writeAndReadRepeatedCommand(BUNDLE_MANIFEST);
+		if (!BUNDLE_MANIFEST.equals(resultCommand.trim())) {
+			throw new SerialPortException(port, "saveBundle", "Cannot read unpacked files. Device return: " + resultCommand);
+		}
+		Map<String, Integer> written = new LinkedHashMap<>();
+		String line;
+		while (!END_LIST_MARKER.equals(line = readLine().trim())) {
+			int separator = line.lastIndexOf(':');
+			try {
+				if (separator <= 0) {
+					throw new NumberFormatException();
+				}
+				written.put(line.substring(0, separator), Integer.parseInt(line.substring(separator + 1).trim()));
+			} catch (NumberFormatException e) {
+				throw new SerialPortException(port, "saveBundle", "Wrong unpacked file entry. Device return: " + line);
+			}
+		}
+		for (Map.Entry<String, Integer> e : written.entrySet()) {
+			System.out.println("Unpacked " + e.getKey() + ": " + e.getValue() + " bytes");
+			if (e.getValue() >= 0) {
+				cacheFile(e.getKey(), e.getValue());
+				metrics.fileSent(e.getKey(), e.getValue(), nanos * e.getValue() / Math.max(1, bundle.getLength()));
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * @param progress called with count of bytes acknowledged by device
+	 * @return count of sent bytes
+	 */
+	private long uartSave(BlockSource source, LongConsumer progress) throws IOException, SerialPortException, SerialPortTimeoutException {
+		setupUart();
+
+		if (adaptive) {
+			return uartSaveAdaptive(source, progress);
+		}
+		if (checksum) {
+			return uartSaveChecked(source, progress, FILE_WRITE);
+		}
+		if (windowSize > 0 && source.getLength() >= 0) {
+			return uartSaveWindowed(source, progress, FILE_WRITE, windowSize);
+		}
+
+		long bytes = 0;
+		BlockSource.Block block;
+		while (nonNull(block = source.take())) {
+			uartSendBlock(blockToSend(block));
+			bytes += block.getLength();
+			progress.accept(bytes);
+			source.release(block);
+		}
+		selectorEventListener.setEventType(READ_LINE_MASK);
+		return bytes;
+	}
 
-		uartSave(inputStream);
+	private void setupUart() throws SerialPortException, SerialPortTimeoutException {
+		if (uartSetup) {
+			return;
+		}
+		String command = String.format(UART_SETUP_COMMAND, currentBaudRate);
+		String resultCommand = writeAndReadRepeatedCommand(command);
+		if (!command.trim().equals(resultCommand.trim())) {
+			tryCloseFile();
+			throw new SerialPortException(port, "uartSave", "Cannot first setup UART. Device return: " + resultCommand);
+		}
+		System.out.println(resultCommand.trim());
+		uartSetup = true;
+	}
 
+	/**
+	 * CRC routine is installed for each file, device could be reset since previous file.
+	 *
+	 * @param write Lua call which stores received block
+	 */
+	private long uartSaveChecked(BlockSource source, LongConsumer progress, String write) throws IOException, SerialPortException, SerialPortTimeoutException {
+		installCrcHelper();
+
+		long bytes = 0;
+		BlockSource.Block block;
+		while (nonNull(block = source.take())) {
+			uartSendCheckedBlock(blockToSend(block), write);
+			bytes += block.getLength();
+			progress.accept(bytes);
+			source.release(block);
+		}
+		selectorEventListener.setEventType(READ_LINE_MASK);
+		return bytes;
+	}
 
-		tryCloseFile();
+	private void installCrcHelper() throws SerialPortException, SerialPortTimeoutException {
+		String resultCommand = writeAndReadRepeatedCommand(CRC_HELPER);
+		if (!CRC_HELPER.equals(resultCommand.trim())) {
+			tryCloseFile();
+			throw new SerialPortException(port, "uartSaveChecked", "Cannot install CRC routine. Device return: " + resultCommand);
+		}
+	}
 
+	/**
+	 * Blocks are cut from source by size from {@link AdaptiveBlockSize}, which is updated after each block.
+	 * Errors are known only with CRC, without it failed block ends upload.
+	 */
+	private long uartSaveAdaptive(BlockSource source, LongConsumer progress) throws IOException, SerialPortException, SerialPortTimeoutException {
+		if (isNull(blockSize)) {
+			int heap;
+			try {
+				heap = Integer.parseInt(evaluate("node.heap()"));
+			} catch (NumberFormatException e) {
+				heap = 0;
+			}
+			blockSize = new AdaptiveBlockSize(heap > 0 ? AdaptiveBlockSize.maxSize(heap) : BLOCK_SIZE);
+			System.out.println(String.format("Device heap: %d, max block size: %d", heap, blockSize.getMaxSize()));
+		}
+		if (checksum) {
+			installCrcHelper();
+		}
+
+		byte[] pending = new byte[BLOCK_SIZE * 2];
+		int pendingLength = 0;
+		boolean end = false;
+		long bytes = 0;
+		while (true) {
+			int size = blockSize.get();
+			while (!end && pendingLength < size) {
+				BlockSource.Block block = source.take();
+				if (isNull(block)) {
+					end = true;
+					break;
+				}
+				if (pendingLength + block.getLength() > pending.length) {
+					pending = Arrays.copyOf(pending, pendingLength + block.getLength());
+				}
+				System.arraycopy(block.getData(), 0, pending, pendingLength, block.getLength());
+				pendingLength += block.getLength();
+				source.release(block);
+			}
+			if (pendingLength == 0) {
+				break;
+			}
+			int length = Math.min(size, pendingLength);
+			byte[] data = Arrays.copyOf(pending, length);
+			System.arraycopy(pending, length, pending, 0, pendingLength - length);
+			pendingLength -= length;
+
+			long start = System.nanoTime();
+			if (checksum) {
+				for (int i = uartSendCheckedBlock(data, FILE_WRITE); i > 0; i--) {
+					blockSize.failed(length);
+				}
+			} else {
+				uartSendBlock(data);
+			}
+			long nanos = System.nanoTime() - start;
+			blockSize.acknowledged(length, nanos);
+			metrics.blockSize(length, nanos);
+			bytes += length;
+			progress.accept(bytes);
+		}
+		selectorEventListener.setEventType(READ_LINE_MASK);
+		System.out.println("Block size: " + blockSize);
+		return bytes;
 	}
 
-	private void uartSave(InputStream inputStream) throws IOException, SerialPortException, SerialPortTimeoutException {
-		byte[] buffer = new byte[255];
-		int size;
-		String command;
-		String resultCommand;
-		if(!uartSetup) {
-			command = String.format("uart.setup(0,%d,8,1,1);", baudRate);
-			resultCommand = writeAndReadRepeatedCommand(command);
+	/**
+	 * Device writes block only when CRC matches and answers ACK, otherwise NACK and block is sent again.
+	 *
+	 * @return count of resends
+	 */
+	private int uartSendCheckedBlock(byte[] block, String write) throws SerialPortException, SerialPortTimeoutException {
+		int crc = Crc16.ccitt(block, 0, block.length);
+		String command = String.format(CHECKED_HANDLER, block.length, crc, write);
+		for (int attempt = 0; ; attempt++) {
+			String resultCommand = writeAndReadRepeatedCommand(command);
 			if (!command.trim().equals(resultCommand.trim())) {
 				tryCloseFile();
-				throw new SerialPortException(port, "uartSave", "Cannot first setup UART. Device return: " + resultCommand);
+				throw new SerialPortException(port, "uartSendCheckedBlock", "Cannot on UART. Device return: " + resultCommand);
 			}
-			System.out.println(resultCommand.trim());
-			uartSetup = true;
+			System.out.println("Write block. Size: " + block.length + ", CRC: " + crc);
+			long start = System.nanoTime();
+			writeBytes(block);
+			resultCommand = readLine().trim();
+			metrics.blockRoundTrip(System.nanoTime() - start);
+			if (resultCommand.startsWith("> ")) {
+				resultCommand = resultCommand.substring(2);
+			}
+			if ("ACK".equals(resultCommand)) {
+				System.out.println(resultCommand);
+				return attempt;
+			}
+			if (!"NACK".equals(resultCommand) || attempt >= MAX_BLOCK_RETRIES) {
+				throw new SerialPortException(port, "uartSendCheckedBlock", "Error when try send block by UART, attempts: "
+						+ (attempt + 1) + ". Device return: " + resultCommand);
+			}
+			System.out.println("Wrong CRC on device, send block again.");
+			metrics.blockRetry();
 		}
+	}
 
-		do {
-			size = inputStream.read(buffer);
-			if(size > 0) {
+	/**
+	 * Install one receive handler for all full blocks of file and keep up to window blocks not acknowledged.
+	 * Handler numbers received blocks and unregister itself after last full block.
+	 * Last partial block is sent by {@link #uartSendBlock(byte[])}.
+	 *
+	 * @param write Lua call which stores received block
+	 */
+	private long uartSaveWindowed(BlockSource source, LongConsumer progress, String write, int window) throws IOException, SerialPortException, SerialPortTimeoutException {
+		long fullBlocks = source.getLength() / BLOCK_SIZE;
+		long bytes = 0;
+
+		if (fullBlocks > 0) {
+			String command = String.format("_b=0 uart.on(\"data\", %d, function(input) %s _b=_b+1 uart.write(0, \"ACK \".._b..\"\\r\\n\") if _b==%d then uart.on(\"data\") end end, 0);", BLOCK_SIZE, write, fullBlocks);
+			String resultCommand = writeAndReadRepeatedCommand(command);
+			if (!command.trim().equals(resultCommand.trim())) {
+				tryCloseFile();
+				throw new SerialPortException(port, "uartSaveWindowed", "Cannot on UART. Device return: " + resultCommand);
+			}
+			System.out.println(resultCommand.trim());
 
-				byte[] blockToSend;
-				if(size < buffer.length) {
-					blockToSend = Arrays.copyOfRange(buffer, 0, size);
-				} else {
-					blockToSend = buffer;
+			// send time of not acknowledged blocks
+			long[] sendTimes = new long[window];
+			long sent = 0;
+			long acknowledged = 0;
+			while (acknowledged < fullBlocks) {
+				while (sent < fullBlocks && sent - acknowledged < window) {
+					BlockSource.Block block = source.take();
+					if (isNull(block) || block.getLength() != BLOCK_SIZE) {
+						throw new IOException("Unexpected end of stream, block: " + (sent + 1));
+					}
+					sendTimes[(int) (sent % window)] = System.nanoTime();
+					writeBytes(block.getData());
+					source.release(block);
+					sent++;
+					System.out.println("Write block " + sent + "/" + fullBlocks + ". Size: " + BLOCK_SIZE);
 				}
-				uartSendBlock(blockToSend);
-
+				resultCommand = readLine().trim();
+				if (resultCommand.startsWith("> ")) {
+					resultCommand = resultCommand.substring(2);
+				}
+				if (!("ACK " + (acknowledged + 1)).equals(resultCommand)) {
+					throw new SerialPortException(port, "uartSaveWindowed", "Error when try send block " + (acknowledged + 1) + " by UART. Device return: " + resultCommand);
+				}
+				metrics.blockRoundTrip(System.nanoTime() - sendTimes[(int) (acknowledged % window)]);
+				acknowledged++;
+				bytes += BLOCK_SIZE;
+				progress.accept(bytes);
+				System.out.println(resultCommand);
 			}
-		} while (size > 0);
+		}
+
+		BlockSource.Block lastBlock = source.take();
+		if (nonNull(lastBlock)) {
+			uartSendBlock(blockToSend(lastBlock));
+			bytes += lastBlock.getLength();
+			progress.accept(bytes);
+			source.release(lastBlock);
+		}
 		selectorEventListener.setEventType(READ_LINE_MASK);
+		return bytes;
 	}
 
-	public void uartSendBlock(byte[] block) throws SerialPortException, SerialPortTimeoutException {
+	/**
+	 * Full block is sent from reused buffer, only last partial block is copied.
+	 */
+	private static byte[] blockToSend(BlockSource.Block block) {
+		if (block.getLength() == block.getData().length) {
+			return block.getData();
+		}
+		return Arrays.copyOf(block.getData(), block.getLength());
+	}
+
+	public synchronized void uartSendBlock(byte[] block) throws SerialPortException, SerialPortTimeoutException {
 		selectorEventListener.setEventType(READ_LINE_MASK);
 
 
@@ -226,8 +1227,10 @@ public class NodeMcuInterpreter implements Closeable {
 		}
 		System.out.println(resultCommand.trim());
 		System.out.println("Write block. Size: " + block.length);
-		serialPort.writeBytes(block);
+		long start = System.nanoTime();
+		writeBytes(block);
 		resultCommand = readLine();
+		metrics.blockRoundTrip(System.nanoTime() - start);
 		if(!"> ACK".equals(resultCommand.trim())) {
 			throw new SerialPortException(port, "uartSendBlock", "Error when try send block by UART. Device return: " + resultCommand);
 		}
@@ -258,14 +1261,14 @@ public class NodeMcuInterpreter implements Closeable {
 		selectorEventListener.setEventType(DETECT_MASK);
 		System.out.print("Wait for device response .");
 
-		for (int i = 0; i < REPEATED_DETECTED_TIMES && !detected.get(); i++) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos((long) REPEATED_DETECTED_TIMES * DETECT_MAX_DELAY);
+		int delay = DETECT_MIN_DELAY;
+		while (!detected.get() && System.nanoTime() < deadline) {
 			writeLine("");
-			try {
-				Thread.sleep(300);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			if (!waitForDetection(delay)) {
 				break;
 			}
+			delay = Math.min(delay * 2, DETECT_MAX_DELAY);
 			System.out.print(".");
 		}
 		System.out.println();
@@ -276,11 +1279,43 @@ public class NodeMcuInterpreter implements Closeable {
 
 		selectorEventListener.setEventType(READ_LINE_MASK);
 
+		DeviceFingerprints.Fingerprint known = isNull(fingerprints) ? null : fingerprints.get(port);
+		if (nonNull(known)) {
+			// version is read by the same probe, device could be flashed with other firmware since last time
+			String command = "majorVer, minorVer, devVer = node.info() print(\"" + FINGERPRINT_PREFIX
+					+ "\"..node.chipid()..\":\"..node.flashid()..\":\"..majorVer..\".\"..minorVer..\".\"..devVer);";
+			String resultCommand = writeAndReadRepeatedCommand(command);
+			if (!command.equals(resultCommand.trim())) {
+				throw new DetectedException("Not detect NodeMCU, result of command: " + resultCommand.trim());
+			}
+			String id = readLine().trim();
+			// chip id:flash id:version, version has no ':'
+			String[] parts = id.startsWith(FINGERPRINT_PREFIX) ? id.substring(FINGERPRINT_PREFIX.length()).split(":") : new String[0];
+			if (parts.length == 3) {
+				chipId = parts[0];
+				flashId = parts[1];
+				firmwareVersion = parts[2];
+				if (!known.getId().equals(chipId + ":" + flashId)) {
+					System.out.println(String.format("Other device than last time, NodeMCU v.: %s; chip id: %s; flash id: %s",
+							firmwareVersion, chipId, flashId));
+					saveFingerprint();
+					return;
+				}
+				if (!firmwareVersion.equals(known.getFirmwareVersion())) {
+					System.out.println("Firmware changed since last time, was: " + known.getFirmwareVersion());
+					saveFingerprint();
+				}
+				System.out.println(String.format("Known device, NodeMCU v.: %s; chip id: %s", firmwareVersion, chipId));
+				return;
+			}
+			System.out.println("Cannot read fingerprint, detect again. Received: " + id);
+		}
+
 		String command = "majorVer, minorVer, devVer, chipid, flashid, flashsize, flashmode, flashspeed = node.info();";
 
 		String resultCommand1 = writeAndReadRepeatedCommand(command);
 
-		command = "print(string.format(\"NodeMCU v.: %13s\", majorVer..\".\"..minorVer..\".\"..devVer));";
+		command = "print(string.format(\"NodeMCU v.: %13s; chip id: %s; flash id: %s\", majorVer..\".\"..minorVer..\".\"..devVer, chipid, flashid));";
 		String resultCommand2 = writeAndReadRepeatedCommand(command);
 
 		String version = readLine();
@@ -288,20 +1323,67 @@ public class NodeMcuInterpreter implements Closeable {
 			throw new DetectedException("Not detect NodeMCU, received data: " + version);
 		}
 		System.out.println(version.trim());
+		int chipIdIndex = version.indexOf("; chip id: ");
+		int flashIdIndex = version.indexOf("; flash id: ");
+		if (chipIdIndex >= 0 && flashIdIndex > chipIdIndex) {
+			chipId = version.substring(chipIdIndex + "; chip id: ".length(), flashIdIndex).trim();
+			flashId = version.substring(flashIdIndex + "; flash id: ".length()).trim();
+			firmwareVersion = version.substring("NodeMCU v.: ".length(), chipIdIndex).trim();
+			saveFingerprint();
+		}
+
 
+	}
+
+	private void saveFingerprint() {
+		if (nonNull(fingerprints)) {
+			try {
+				fingerprints.put(port, new DeviceFingerprints.Fingerprint(chipId, flashId, firmwareVersion));
+			} catch (IOException e) {
+				System.err.println("Cannot save fingerprint of '" + port + "'. Message: " + e.getMessage());
+			}
+		}
+	}
 
+	/**
+	 * Park until prompt is detected or delay elapses.
+	 *
+	 * @return false if thread was interrupted
+	 */
+	private boolean waitForDetection(int delay) {
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		synchronized (detected) {
+			long remaining;
+			while (!detected.get() && (remaining = end - System.nanoTime()) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.timedWait(detected, remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
 	}
 
 	private void writeLine(String command) throws SerialPortException, SerialPortTimeoutException {
-		if (!serialPort.writeString(command + endCommand)) {
-			throw new SerialPortException(port, "writeLine", "serialPort.writeString return false");
+		if (!transport.write((command + endCommand).getBytes(CHARSET))) {
+			throw new SerialPortException(port, "writeLine", "transport.write return false");
+		}
+	}
+
+	private void writeBytes(byte[] data) throws SerialPortException {
+		if (!transport.write(data)) {
+			throw new SerialPortException(port, "writeBytes", "transport.write return false");
 		}
 	}
 
 
 	private String writeAndReadRepeatedCommand(String command) throws SerialPortException, SerialPortTimeoutException {
+		long start = System.nanoTime();
 		writeLine(command);
 		String readLine = readLine();
+		metrics.commandRoundTrip(System.nanoTime() - start);
 
 		if (!command.startsWith("> ") && readLine.startsWith("> ")) {
 			readLine = readLine.substring(2);
@@ -311,6 +1393,10 @@ public class NodeMcuInterpreter implements Closeable {
 
 
 	private String readLine() throws SerialPortTimeoutException {
+		return readLine(timeout);
+	}
+
+	private String readLine(int timeout) throws SerialPortTimeoutException {
 		try {
 			return lineQueue.waitForLine(timeout);
 		} catch (TimeoutException e) {
@@ -0,0 +1,14 @@
+package pl.szczurmys.nodemcu;
+
+import java.io.IOException;
+
+/**
+ * Files to deploy do not fit in free space of device file system.
+ *
+ * @author szczurmys
+ */
+public class NotEnoughSpaceException extends IOException {
+	public NotEnoughSpaceException(String message) {
+		super(message);
+	}
+}
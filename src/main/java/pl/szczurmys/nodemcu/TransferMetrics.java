@@ -0,0 +1,451 @@
+package pl.szczurmys.nodemcu;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Timing of commands, blocks, files and deploy phases of one connection.
+ * Exposed by JMX ({@link #register()}) and as JSON summary ({@link #writeJson(File, Collection)}).
+ *
+ * @author szczurmys
+ */
+public class TransferMetrics implements TransferMetricsMXBean {
+	public static final String OBJECT_NAME = "pl.szczurmys.nodemcu:type=TransferMetrics,port=";
+
+	public static final String PHASE_PREPARE = "prepare";
+	public static final String PHASE_REMOVE = "remove";
+	public static final String PHASE_UPLOAD = "upload";
+	public static final String PHASE_COMPILE = "compile";
+	public static final String PHASE_BAUD_RATE = "baudRate";
+
+	/**
+	 * Latency histogram, upper bounds of buckets in ms, last bucket is unbounded.
+	 */
+	static class Histogram {
+		private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+		private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sumNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+			int i = 0;
+			while (i < BOUNDS.length && millis > BOUNDS[i]) {
+				i++;
+			}
+			buckets[i].increment();
+			count.increment();
+			sumNanos.add(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+
+		long getCount() {
+			return count.sum();
+		}
+
+		double getAverage() {
+			long c = count.sum();
+			return c == 0 ? 0 : toMillis(sumNanos.sum()) / c;
+		}
+
+		double getMax() {
+			return toMillis(maxNanos.get());
+		}
+
+		Map<String, Long> getBuckets() {
+			Map<String, Long> result = new LinkedHashMap<>();
+			for (int i = 0; i < buckets.length; i++) {
+				String name = i < BOUNDS.length ? "<=" + BOUNDS[i] + "ms" : ">" + BOUNDS[BOUNDS.length - 1] + "ms";
+				result.put(name, buckets[i].sum());
+			}
+			return result;
+		}
+
+		void reset() {
+			for (LongAdder bucket : buckets) {
+				bucket.reset();
+			}
+			count.reset();
+			sumNanos.reset();
+			maxNanos.set(0);
+		}
+	}
+
+	public static class FileTransfer {
+		private final String path;
+		private final long bytes;
+		private final long nanos;
+
+		FileTransfer(String path, long bytes, long nanos) {
+			this.path = path;
+			this.bytes = bytes;
+			this.nanos = nanos;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public double getTime() {
+			return toMillis(nanos);
+		}
+
+		public double getBytesPerSecond() {
+			return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+		}
+	}
+
+	private final String port;
+	private final Histogram commandLatency = new Histogram();
+	private final Histogram blockLatency = new Histogram();
+	private final LongAdder blockRetries = new LongAdder();
+	/**
+	 * Count of blocks, bytes and time by block size, only for adaptive block size.
+	 */
+	private final Map<Integer, long[]> blockSizes = new TreeMap<>();
+	private final List<FileTransfer> files = Collections.synchronizedList(new ArrayList<>());
+	private final Map<String, Long> phaseNanos = Collections.synchronizedMap(new LinkedHashMap<>());
+	private volatile long detectionNanos;
+	private ObjectName objectName;
+
+	public TransferMetrics(String port) {
+		this.port = port;
+	}
+
+	public void commandRoundTrip(long nanos) {
+		commandLatency.record(nanos);
+	}
+
+	/**
+	 * @param nanos time from send of block to its ACK
+	 */
+	public void blockRoundTrip(long nanos) {
+		blockLatency.record(nanos);
+	}
+
+	public void blockRetry() {
+		blockRetries.increment();
+	}
+
+	/**
+	 * @param nanos time from command of block to its ACK, with resends
+	 */
+	public void blockSize(int size, long nanos) {
+		synchronized (blockSizes) {
+			long[] s = blockSizes.computeIfAbsent(size, k -> new long[3]);
+			s[0]++;
+			s[1] += size;
+			s[2] += nanos;
+		}
+	}
+
+	public void fileSent(String path, long bytes, long nanos) {
+		files.add(new FileTransfer(path, bytes, nanos));
+	}
+
+	public void detection(long nanos) {
+		detectionNanos = nanos;
+	}
+
+	/**
+	 * Start counting from zero, e.g. for next job on connection kept by daemon.
+	 */
+	public void reset() {
+		commandLatency.reset();
+		blockLatency.reset();
+		blockRetries.reset();
+		synchronized (blockSizes) {
+			blockSizes.clear();
+		}
+		files.clear();
+		phaseNanos.clear();
+		detectionNanos = 0;
+	}
+
+	/**
+	 * Add time to phase, phase can be run many times.
+	 */
+	public void phase(String name, long nanos) {
+		phaseNanos.merge(name, nanos, Long::sum);
+	}
+
+	public List<FileTransfer> getFiles() {
+		synchronized (files) {
+			return new ArrayList<>(files);
+		}
+	}
+
+	@Override
+	public String getPort() {
+		return port;
+	}
+
+	@Override
+	public long getDetectionTime() {
+		return TimeUnit.NANOSECONDS.toMillis(detectionNanos);
+	}
+
+	@Override
+	public long getCommandCount() {
+		return commandLatency.getCount();
+	}
+
+	@Override
+	public double getCommandLatencyAverage() {
+		return commandLatency.getAverage();
+	}
+
+	@Override
+	public double getCommandLatencyMax() {
+		return commandLatency.getMax();
+	}
+
+	@Override
+	public Map<String, Long> getCommandLatencyHistogram() {
+		return commandLatency.getBuckets();
+	}
+
+	@Override
+	public long getBlockCount() {
+		return blockLatency.getCount();
+	}
+
+	@Override
+	public double getBlockLatencyAverage() {
+		return blockLatency.getAverage();
+	}
+
+	@Override
+	public double getBlockLatencyMax() {
+		return blockLatency.getMax();
+	}
+
+	@Override
+	public Map<String, Long> getBlockLatencyHistogram() {
+		return blockLatency.getBuckets();
+	}
+
+	@Override
+	public long getBlockRetries() {
+		return blockRetries.sum();
+	}
+
+	@Override
+	public Map<String, Long> getBlockSizeCounts() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		synchronized (blockSizes) {
+			blockSizes.forEach((size, s) -> result.put(String.valueOf(size), s[0]));
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Double> getBlockSizeThroughput() {
+		Map<String, Double> result = new LinkedHashMap<>();
+		synchronized (blockSizes) {
+			blockSizes.forEach((size, s) -> result.put(String.valueOf(size), s[2] == 0 ? 0 : s[1] * 1e9 / s[2]));
+		}
+		return result;
+	}
+
+	@Override
+	public long getFileCount() {
+		return files.size();
+	}
+
+	@Override
+	public long getBytesSent() {
+		long bytes = 0;
+		for (FileTransfer file : getFiles()) {
+			bytes += file.bytes;
+		}
+		return bytes;
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		long bytes = 0;
+		long nanos = 0;
+		for (FileTransfer file : getFiles()) {
+			bytes += file.bytes;
+			nanos += file.nanos;
+		}
+		return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+	}
+
+	@Override
+	public Map<String, Long> getPhaseTimes() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		synchronized (phaseNanos) {
+			phaseNanos.forEach((name, nanos) -> result.put(name, TimeUnit.NANOSECONDS.toMillis(nanos)));
+		}
+		return result;
+	}
+
+	/**
+	 * Register in platform MBean server, errors are only printed.
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME + ObjectName.quote(port));
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+			objectName = name;
+		} catch (InstanceAlreadyExistsException e) {
+			System.err.println("Metrics of '" + port + "' already registered.");
+		} catch (JMException e) {
+			System.err.println("Cannot register metrics of '" + port + "'. Message: " + e.getMessage());
+		}
+	}
+
+	public void unregister() {
+		if (isNull(objectName)) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			System.err.println("Cannot unregister metrics of '" + port + "'. Message: " + e.getMessage());
+		}
+		objectName = null;
+	}
+
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("    \"port\": ").append(quote(port)).append(",\n");
+		sb.append("    \"detectionTimeMs\": ").append(getDetectionTime()).append(",\n");
+		sb.append("    \"commands\": ");
+		appendHistogram(sb, commandLatency);
+		sb.append(",\n    \"blocks\": ");
+		appendHistogram(sb, blockLatency);
+		sb.append(",\n    \"blockRetries\": ").append(getBlockRetries()).append(",\n");
+		sb.append("    \"blockSizes\": {");
+		Map<String, Long> counts = getBlockSizeCounts();
+		Map<String, Double> throughput = getBlockSizeThroughput();
+		boolean first = true;
+		for (Map.Entry<String, Long> entry : counts.entrySet()) {
+			sb.append(first ? "" : ", ").append(quote(entry.getKey()))
+					.append(": {\"blocks\": ").append(entry.getValue())
+					.append(", \"bytesPerSecond\": ").append(format(throughput.get(entry.getKey()))).append("}");
+			first = false;
+		}
+		sb.append("},\n");
+		sb.append("    \"bytesSent\": ").append(getBytesSent()).append(",\n");
+		sb.append("    \"bytesPerSecond\": ").append(format(getBytesPerSecond())).append(",\n");
+		sb.append("    \"phasesMs\": ");
+		appendMap(sb, getPhaseTimes());
+		sb.append(",\n    \"files\": [");
+		List<FileTransfer> transfers = getFiles();
+		for (int i = 0; i < transfers.size(); i++) {
+			FileTransfer file = transfers.get(i);
+			sb.append(i == 0 ? "\n" : ",\n");
+			sb.append("        {\"path\": ").append(quote(file.path))
+					.append(", \"bytes\": ").append(file.bytes)
+					.append(", \"timeMs\": ").append(format(file.getTime()))
+					.append(", \"bytesPerSecond\": ").append(format(file.getBytesPerSecond()))
+					.append("}");
+		}
+		sb.append(transfers.isEmpty() ? "]" : "\n    ]");
+		sb.append("\n}");
+		return sb.toString();
+	}
+
+	/**
+	 * Write summary of all connections: {@code {"devices": [...]}}.
+	 */
+	public static void writeJson(File file, Collection<TransferMetrics> metrics) throws IOException {
+		StringBuilder sb = new StringBuilder("{\"devices\": [");
+		boolean first = true;
+		for (TransferMetrics m : metrics) {
+			sb.append(first ? "\n" : ",\n").append(m.toJson());
+			first = false;
+		}
+		sb.append("\n]}\n");
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (nonNull(parent)) {
+			Files.createDirectories(parent.toPath());
+		}
+		Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void appendHistogram(StringBuilder sb, Histogram histogram) {
+		sb.append("{\"count\": ").append(histogram.getCount())
+				.append(", \"averageMs\": ").append(format(histogram.getAverage()))
+				.append(", \"maxMs\": ").append(format(histogram.getMax()))
+				.append(", \"histogram\": ");
+		appendMap(sb, histogram.getBuckets());
+		sb.append("}");
+	}
+
+	private static void appendMap(StringBuilder sb, Map<String, Long> map) {
+		sb.append("{");
+		boolean first = true;
+		for (Map.Entry<String, Long> entry : map.entrySet()) {
+			if (!first) {
+				sb.append(", ");
+			}
+			sb.append(quote(entry.getKey())).append(": ").append(entry.getValue());
+			first = false;
+		}
+		sb.append("}");
+	}
+
+	private static String quote(String value) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / 1e6;
+	}
+}
@@ -0,0 +1,63 @@
+package pl.szczurmys.nodemcu;
+
+import java.util.Map;
+
+/**
+ * Metrics of one connection, registered in platform MBean server as
+ * {@code pl.szczurmys.nodemcu:type=TransferMetrics,port=PORT}.
+ *
+ * @author szczurmys
+ */
+public interface TransferMetricsMXBean {
+	String getPort();
+
+	/**
+	 * @return time from open of port to detected device [ms]
+	 */
+	long getDetectionTime();
+
+	long getCommandCount();
+
+	double getCommandLatencyAverage();
+
+	double getCommandLatencyMax();
+
+	/**
+	 * @return count of commands by upper bound of latency bucket, e.g. "&lt;=5ms"
+	 */
+	Map<String, Long> getCommandLatencyHistogram();
+
+	long getBlockCount();
+
+	double getBlockLatencyAverage();
+
+	double getBlockLatencyMax();
+
+	Map<String, Long> getBlockLatencyHistogram();
+
+	long getBlockRetries();
+
+	/**
+	 * @return count of blocks by size, only blocks of adaptive block size
+	 */
+	Map<String, Long> getBlockSizeCounts();
+
+	/**
+	 * @return bytes per second by block size, time of block is from its command to ACK
+	 */
+	Map<String, Double> getBlockSizeThroughput();
+
+	long getFileCount();
+
+	long getBytesSent();
+
+	/**
+	 * @return bytes of all files divided by time of their upload
+	 */
+	double getBytesPerSecond();
+
+	/**
+	 * @return total time of each deploy phase [ms]
+	 */
+	Map<String, Long> getPhaseTimes();
+}
@@ -0,0 +1,135 @@
+package pl.szczurmys.nodemcu;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Uploads to one device which were not finished, so next run continues from last acknowledged block.
+ * Key is path on device, value is size and content hash of whole file and count of acknowledged bytes.
+ *
+ * @author szczurmys
+ */
+public class UploadProgress {
+	/**
+	 * Progress is written to disk at most once per this count of bytes and when upload fails.
+	 */
+	public static final long SAVE_INTERVAL = 16 * 1024;
+
+	public static class Entry {
+		private final long size;
+		private final String hash;
+		private final long acknowledged;
+
+		Entry(long size, String hash, long acknowledged) {
+			this.size = size;
+			this.hash = hash;
+			this.acknowledged = acknowledged;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public long getAcknowledged() {
+			return acknowledged;
+		}
+	}
+
+	private final File file;
+	private final Properties entries = new Properties();
+	private final Map<String, Long> saved = new HashMap<>();
+
+	public UploadProgress(File file) {
+		this.file = file;
+	}
+
+	public static UploadProgress forDevice(String deviceId) throws IOException {
+		UploadProgress progress = new UploadProgress(new File(DeviceManifest.DEFAULT_DIRECTORY,
+				"progress-" + deviceId.replaceAll("[^A-Za-z0-9._-]", "_") + ".properties"));
+		progress.load();
+		return progress;
+	}
+
+	public synchronized void load() throws IOException {
+		entries.clear();
+		if (!file.isFile()) {
+			return;
+		}
+		try (InputStream inputStream = new FileInputStream(file)) {
+			entries.load(inputStream);
+		}
+	}
+
+	/**
+	 * @return progress of not finished upload, null if there is no such upload
+	 */
+	public synchronized Entry get(String path) {
+		String value = entries.getProperty(path);
+		if (isNull(value)) {
+			return null;
+		}
+		String[] parts = value.split(" ");
+		if (parts.length != 3) {
+			return null;
+		}
+		try {
+			return new Entry(Long.parseLong(parts[0]), parts[1], Long.parseLong(parts[2]));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Record acknowledged bytes, written to disk every {@link #SAVE_INTERVAL} bytes.
+	 */
+	public synchronized void update(String path, long size, String hash, long acknowledged) throws IOException {
+		entries.setProperty(path, size + " " + hash + " " + acknowledged);
+		Long lastSaved = saved.get(path);
+		if (isNull(lastSaved) || acknowledged - lastSaved >= SAVE_INTERVAL) {
+			save();
+			saved.put(path, acknowledged);
+		}
+	}
+
+	/**
+	 * Upload finished.
+	 */
+	public synchronized void remove(String path) throws IOException {
+		saved.remove(path);
+		if (nonNull(entries.remove(path))) {
+			save();
+		}
+	}
+
+	public synchronized void save() throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (nonNull(parent) && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Cannot create directory '" + parent.getAbsolutePath() + "'");
+		}
+		File temp = new File(parent, file.getName() + ".tmp");
+		try (OutputStream outputStream = new FileOutputStream(temp)) {
+			entries.store(outputStream, "node-mcu-interpreter upload progress");
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	public File getFile() {
+		return file;
+	}
+}
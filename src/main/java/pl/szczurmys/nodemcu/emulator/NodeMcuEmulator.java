@@ -0,0 +1,773 @@
+package pl.szczurmys.nodemcu.emulator;
+
+import jssc.SerialPortException;
+import pl.szczurmys.nodemcu.Crc16;
+import pl.szczurmys.nodemcu.transport.Transport;
+import pl.szczurmys.nodemcu.transport.TransportListener;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * In-memory device which speaks the NodeMCU REPL dialect used by {@link pl.szczurmys.nodemcu.NodeMcuInterpreter}:
+ * echo of each line, prompt "&gt; ", file.* with file.fsinfo, uart.on block receive, unpacker of bundle,
+ * node.info, node.compile, node.heap with collectgarbage and node.restart.
+ * It is not Lua interpreter, only commands sent by this project are recognized.
+ * <p>
+ * Data is delivered with delay of serial line at current baud rate (10 bits per byte)
+ * and each command or received block is answered after configured latency.
+ * When host and device baud rates differ, data is garbled.
+ *
+ * @author szczurmys
+ */
+public class NodeMcuEmulator implements Transport {
+	public static final String DEFAULT_NAME = "EMULATOR";
+	public static final String FIRMWARE_VERSION = "1.5.4";
+	public static final String CHIP_ID = "1048576";
+	public static final String FLASH_ID = "1458400";
+	public static final int DEFAULT_HEAP = 40000;
+	public static final int DEFAULT_FS_SIZE = 3 * 1024 * 1024;
+	/**
+	 * node.compile fails when free heap is lower than this times size of source.
+	 */
+	public static final int COMPILE_HEAP_FACTOR = 2;
+
+	private static final byte GARBAGE = (byte) 0xFE;
+	private static final byte[] STOP = new byte[0];
+
+	private static final Pattern FILE_REMOVE = Pattern.compile("^file\\.remove\\(\"([^\"]*)\"\\)$");
+	private static final Pattern FILE_OPEN = Pattern.compile("^file\\.open\\(\"([^\"]*)\",\"([rwa]\\+?)\"\\)$");
+	private static final Pattern FILE_SEEK = Pattern.compile("^file\\.seek\\(\"set\",(\\d+)\\)$");
+	private static final Pattern FILE_CLOSE = Pattern.compile("^file\\.close\\(\\)$");
+	private static final Pattern UART_SETUP = Pattern.compile("^uart\\.setup\\(0,(\\d+),8,1,1\\)$");
+	private static final Pattern UART_ON_ONCE = Pattern.compile("^uart\\.on\\(\"data\", (\\d+), function\\(input\\) file\\.write\\(input\\) uart\\.write\\(0, \"ACK\\\\r\\\\n\"\\) uart\\.on\\(\"data\"\\) +end, 0\\)$");
+	private static final Pattern UART_ON_COUNTED = Pattern.compile("^_b=0 uart\\.on\\(\"data\", (\\d+), function\\(input\\) (file\\.write|_uf)\\(input\\) _b=_b\\+1 .* if _b==(\\d+) then uart\\.on\\(\"data\"\\) end end, 0\\)$");
+	private static final Pattern UART_ON_CHECKED = Pattern.compile("^uart\\.on\\(\"data\", (\\d+), function\\(input\\) uart\\.on\\(\"data\"\\) if _crc\\(input\\)==(\\d+) then (file\\.write|_uf)\\(input\\) .* end end, 0\\)$");
+	private static final Pattern CRC_HELPER = Pattern.compile("^function _crc\\(s,c\\) .* return c end$");
+	private static final Pattern FILE_CRC = Pattern.compile("^if file\\.open\\(\"([^\"]*)\",\"r\"\\) then local c,n=0xFFFF,(\\d+) while .* print\\(\"([^\"]*)\"\\.\\.c\\) else .* end$");
+	private static final Pattern BUNDLE_UNPACKER = Pattern.compile("^_u=\\{b=\"\",n=0,m=\\{\\}\\} function _uw\\(\\) .* end$");
+	private static final Pattern BUNDLE_FUNCTION = Pattern.compile("^function (_uo|_uh|_uf)\\(\\w?\\) .* end$");
+	private static final Pattern BUNDLE_MANIFEST = Pattern.compile("^local l=file\\.list\\(\\) for _,f in ipairs\\(_u\\.m\\) .* print\\(\"([^\"]*)\"\\) _u=nil .*$");
+	private static final Pattern NODE_COMPILE = Pattern.compile("^node\\.compile\\(\"([^\"]*)\"\\)$");
+	private static final Pattern DOFILE = Pattern.compile("^dofile\\(\"([^\"]*)\"\\)$");
+	private static final Pattern FINGERPRINT = Pattern.compile("^majorVer, minorVer, devVer = node\\.info\\(\\) print\\((.*)\\)$");
+	private static final Pattern NODE_INFO = Pattern.compile("^majorVer, .*= node\\.info\\(\\)$");
+	private static final Pattern VERSION = Pattern.compile("^print\\(string\\.format\\(\"NodeMCU v\\.: %13s; chip id: %s; flash id: %s\".*$");
+	private static final Pattern FILE_LIST = Pattern.compile("^local r,u,t=file\\.fsinfo\\(\\) print\\(\"([^\"]*)\"\\.\\.r\\.\\.\":\"\\.\\.u\\.\\.\":\"\\.\\.t\\) for k,v in pairs\\(file\\.list\\(\\)\\) do print\\(k\\.\\.\":\"\\.\\.v\\) end print\\(\"([^\"]*)\"\\)$");
+	private static final Pattern BATCH_OPERATION = Pattern.compile("_q\\((file\\.remove|node\\.compile|file\\.rename|collectgarbage)(?:,\"([^\"]*)\"(?:,\"([^\"]*)\")?)?\\)");
+	private static final Pattern HEAP = Pattern.compile("^collectgarbage\\(\\) print\\(\"([^\"]*)\"\\.\\.node\\.heap\\(\\)\\)$");
+	private static final Pattern NODE_RESTART = Pattern.compile("^node\\.restart\\(\\)$");
+	private static final Pattern PRINT = Pattern.compile("^print\\((.*)\\)$");
+
+	/**
+	 * Receiver of data in uart.on("data", size, ...) mode.
+	 */
+	private interface DataHandler {
+		int size();
+
+		/**
+		 * @return true if handler stays installed
+		 */
+		boolean onData(byte[] data);
+	}
+
+	private static class Chunk {
+		final byte[] data;
+		final int baudRate;
+		final long time;
+
+		Chunk(byte[] data, int baudRate, long time) {
+			this.data = data;
+			this.baudRate = baudRate;
+			this.time = time;
+		}
+	}
+
+	private final String name;
+	private final boolean pacing;
+	private final int latency;
+
+	private final BlockingQueue<Chunk> input = new LinkedBlockingQueue<>();
+	private final BlockingQueue<Chunk> output = new LinkedBlockingQueue<>();
+
+	private volatile TransportListener listener;
+	private volatile int hostBaudRate;
+	private volatile int deviceBaudRate;
+	private long inputFreeTime;
+	private long outputFreeTime;
+	private Thread deviceThread;
+	private Thread outputThread;
+
+	// device state, used only by device thread
+	private final Map<String, byte[]> files = new LinkedHashMap<>();
+	private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream handlerBuffer = new ByteArrayOutputStream();
+	private DataHandler handler;
+	private String openFile;
+	private byte[] openContent;
+	private int openPosition;
+	private volatile int heap = DEFAULT_HEAP;
+	private volatile double compileFragmentation = 0;
+	private int fragmentedHeap;
+	private int bootBaudRate;
+	private volatile int fsSize = DEFAULT_FS_SIZE;
+	private volatile String firmwareVersion = FIRMWARE_VERSION;
+	private final AtomicInteger initRuns = new AtomicInteger();
+	private volatile double corruptionRate = 0;
+	private final Random random = new Random(1);
+	private boolean crcInstalled;
+	private Unpacker unpacker;
+
+	/**
+	 * Emulator without delays.
+	 */
+	public NodeMcuEmulator() {
+		this(DEFAULT_NAME, false, 0);
+	}
+
+	/**
+	 * @param pacing  deliver data with speed of serial line at current baud rate
+	 * @param latency delay of device answer to each command or block [ms]
+	 */
+	public NodeMcuEmulator(String name, boolean pacing, int latency) {
+		this.name = name;
+		this.pacing = pacing;
+		this.latency = latency;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public synchronized void open(int baudRate) throws SerialPortException {
+		if (nonNull(deviceThread)) {
+			throw new SerialPortException(name, "open", SerialPortException.TYPE_PORT_ALREADY_OPENED);
+		}
+		hostBaudRate = baudRate;
+		deviceBaudRate = baudRate;
+		bootBaudRate = baudRate;
+		deviceThread = new Thread(this::deviceLoop, name + "-device");
+		deviceThread.setDaemon(true);
+		deviceThread.start();
+		outputThread = new Thread(this::outputLoop, name + "-output");
+		outputThread.setDaemon(true);
+		outputThread.start();
+	}
+
+	@Override
+	public void setBaudRate(int baudRate) {
+		hostBaudRate = baudRate;
+	}
+
+	@Override
+	public synchronized boolean write(byte[] data) throws SerialPortException {
+		if (isNull(deviceThread)) {
+			throw new SerialPortException(name, "write", SerialPortException.TYPE_PORT_NOT_OPENED);
+		}
+		long now = System.nanoTime();
+		inputFreeTime = Math.max(now, inputFreeTime) + transmissionTime(data.length, hostBaudRate);
+		input.add(new Chunk(data.clone(), hostBaudRate, inputFreeTime));
+		// serial write returns when data is sent
+		parkUntil(inputFreeTime);
+		return true;
+	}
+
+	@Override
+	public void setListener(TransportListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void removeListener() {
+		this.listener = null;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (nonNull(deviceThread)) {
+			input.add(new Chunk(STOP, 0, 0));
+			output.add(new Chunk(STOP, 0, 0));
+			deviceThread = null;
+			outputThread = null;
+		}
+	}
+
+	/**
+	 * Files stored on device, name to content. Copy, safe to read when device is idle.
+	 */
+	public Map<String, byte[]> getFiles() {
+		synchronized (files) {
+			return new LinkedHashMap<>(files);
+		}
+	}
+
+	public void putFile(String file, byte[] content) {
+		synchronized (files) {
+			files.put(file, content.clone());
+		}
+	}
+
+	public void setHeap(int heap) {
+		this.heap = heap;
+	}
+
+	/**
+	 * Part of size of each compiled source which stays allocated until restart, e.g. 0.5.
+	 */
+	public void setCompileFragmentation(double compileFragmentation) {
+		this.compileFragmentation = compileFragmentation;
+	}
+
+	/**
+	 * Size of file system reported by file.fsinfo(), files are not limited by it.
+	 */
+	public void setFsSize(int fsSize) {
+		this.fsSize = fsSize;
+	}
+
+	/**
+	 * Version (major.minor.dev) reported by node.info(), e.g. to emulate device flashed with other firmware.
+	 */
+	public void setFirmwareVersion(String firmwareVersion) {
+		this.firmwareVersion = firmwareVersion;
+	}
+
+	/**
+	 * Probability of corrupted byte of received block, commands are not corrupted.
+	 */
+	public void setCorruptionRate(double corruptionRate) {
+		this.corruptionRate = corruptionRate;
+	}
+
+	private long transmissionTime(int bytes, int baudRate) {
+		if (!pacing || baudRate <= 0) {
+			return 0;
+		}
+		return TimeUnit.SECONDS.toNanos(bytes * 10L) / baudRate;
+	}
+
+	private static void parkUntil(long time) {
+		long wait;
+		while ((wait = time - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(wait);
+		}
+	}
+
+	private void deviceLoop() {
+		try {
+			while (true) {
+				Chunk chunk = input.take();
+				if (chunk.data == STOP) {
+					return;
+				}
+				parkUntil(chunk.time);
+				if (chunk.baudRate != deviceBaudRate) {
+					// device cannot decode data sent with other rate
+					continue;
+				}
+				synchronized (files) {
+					for (byte b : chunk.data) {
+						receive(b);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void outputLoop() {
+		try {
+			while (true) {
+				Chunk chunk = output.take();
+				if (chunk.data == STOP) {
+					return;
+				}
+				parkUntil(chunk.time);
+				TransportListener current = listener;
+				if (isNull(current)) {
+					continue;
+				}
+				byte[] data = chunk.data;
+				if (chunk.baudRate != hostBaudRate) {
+					data = new byte[chunk.data.length];
+					Arrays.fill(data, GARBAGE);
+				}
+				current.dataReceived(data);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void emit(String text) {
+		emit(text.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private void emit(byte[] data) {
+		long now = System.nanoTime();
+		synchronized (output) {
+			outputFreeTime = Math.max(now, outputFreeTime) + transmissionTime(data.length, deviceBaudRate);
+			output.add(new Chunk(data, deviceBaudRate, outputFreeTime));
+		}
+	}
+
+	private void println(String line) {
+		emit(line + "\r\n");
+	}
+
+	private void waitLatency() {
+		if (latency > 0) {
+			parkUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(latency));
+		}
+	}
+
+	private void receive(byte b) {
+		if (nonNull(handler)) {
+			if (corruptionRate > 0 && random.nextDouble() < corruptionRate) {
+				b ^= 0x10;
+			}
+			handlerBuffer.write(b);
+			if (handlerBuffer.size() == handler.size()) {
+				byte[] data = handlerBuffer.toByteArray();
+				handlerBuffer.reset();
+				DataHandler current = handler;
+				waitLatency();
+				if (!current.onData(data) && handler == current) {
+					handler = null;
+				}
+			}
+			return;
+		}
+		if (b == '\r') {
+			return;
+		}
+		if (b != '\n') {
+			lineBuffer.write(b);
+			return;
+		}
+		String line = new String(lineBuffer.toByteArray(), StandardCharsets.ISO_8859_1);
+		lineBuffer.reset();
+		println(line);
+		waitLatency();
+		execute(line.trim());
+		emit("> ");
+	}
+
+	private void execute(String command) {
+		if (command.endsWith(";")) {
+			command = command.substring(0, command.length() - 1);
+		}
+		if (command.isEmpty()) {
+			return;
+		}
+		Matcher m;
+		if ((m = FILE_REMOVE.matcher(command)).matches()) {
+			files.remove(m.group(1));
+		} else if ((m = FILE_OPEN.matcher(command)).matches()) {
+			openFile(m.group(1), m.group(2));
+		} else if ((m = FILE_SEEK.matcher(command)).matches()) {
+			if (nonNull(openFile)) {
+				openPosition = Integer.parseInt(m.group(1));
+			}
+		} else if (FILE_CLOSE.matcher(command).matches()) {
+			closeFile();
+		} else if ((m = UART_SETUP.matcher(command)).matches()) {
+			deviceBaudRate = Integer.parseInt(m.group(1));
+		} else if ((m = UART_ON_ONCE.matcher(command)).matches()) {
+			int size = Integer.parseInt(m.group(1));
+			handler = new SimpleHandler(size, 1, false, false);
+		} else if ((m = UART_ON_COUNTED.matcher(command)).matches()) {
+			handler = new SimpleHandler(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(3)), true, "_uf".equals(m.group(2)));
+		} else if ((m = UART_ON_CHECKED.matcher(command)).matches()) {
+			handler = new CheckedHandler(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), "_uf".equals(m.group(3)));
+		} else if (CRC_HELPER.matcher(command).matches()) {
+			crcInstalled = true;
+		} else if ((m = FILE_CRC.matcher(command)).matches()) {
+			byte[] content = files.get(m.group(1));
+			if (isNull(content)) {
+				println(m.group(3) + "-1");
+			} else if (!crcInstalled) {
+				println("stdin:1: attempt to call global '_crc' (a nil value)");
+			} else {
+				println(m.group(3) + Crc16.ccitt(content, 0, (int) Math.min(content.length, Long.parseLong(m.group(2)))));
+			}
+		} else if (BUNDLE_UNPACKER.matcher(command).matches()) {
+			unpacker = new Unpacker();
+		} else if (BUNDLE_FUNCTION.matcher(command).matches()) {
+			return;
+		} else if ((m = BUNDLE_MANIFEST.matcher(command)).matches()) {
+			if (isNull(unpacker)) {
+				println("stdin:1: attempt to index global '_u' (a nil value)");
+				return;
+			}
+			for (String file : unpacker.written) {
+				byte[] content = files.get(file);
+				println(file + ":" + (isNull(content) ? -1 : content.length));
+			}
+			println(m.group(1));
+			unpacker = null;
+		} else if ((m = HEAP.matcher(command)).matches()) {
+			println(m.group(1) + freeHeap());
+		} else if (NODE_RESTART.matcher(command).matches()) {
+			restart();
+		} else if ((m = NODE_COMPILE.matcher(command)).matches()) {
+			if (!compile(m.group(1))) {
+				println("stdin:1: cannot open " + m.group(1));
+			}
+		} else if ((m = DOFILE.matcher(command)).matches()) {
+			if (!files.containsKey(m.group(1))) {
+				println("cannot open " + m.group(1));
+			}
+		} else if ((m = FINGERPRINT.matcher(command)).matches()) {
+			println(evaluate(m.group(1)));
+		} else if (NODE_INFO.matcher(command).matches()) {
+			return;
+		} else if (VERSION.matcher(command).matches()) {
+			println(String.format("NodeMCU v.: %13s; chip id: %s; flash id: %s", firmwareVersion, CHIP_ID, FLASH_ID));
+		} else if ((m = FILE_LIST.matcher(command)).matches()) {
+			int used = 0;
+			for (byte[] content : files.values()) {
+				used += content.length;
+			}
+			println(m.group(1) + Math.max(0, fsSize - used) + ":" + used + ":" + fsSize);
+			for (Map.Entry<String, byte[]> e : files.entrySet()) {
+				println(e.getKey() + ":" + e.getValue().length);
+			}
+			println(m.group(2));
+		} else if (command.startsWith("function _q(") || BATCH_OPERATION.matcher(command).find()) {
+			// helper is defined only in first line of batch
+			executeBatch(command);
+		} else if ((m = PRINT.matcher(command)).matches()) {
+			println(evaluate(m.group(1)));
+		} else {
+			println("stdin:1: emulator does not support: " + command);
+		}
+	}
+
+	private void openFile(String file, String mode) {
+		closeFile();
+		byte[] content = files.get(file);
+		if (mode.startsWith("w") || isNull(content)) {
+			if (mode.startsWith("r")) {
+				// file.open returns nil
+				return;
+			}
+			content = new byte[0];
+			files.put(file, content);
+		}
+		openFile = file;
+		openContent = content;
+		openPosition = mode.startsWith("a") ? content.length : 0;
+	}
+
+	private void closeFile() {
+		if (nonNull(openFile)) {
+			files.put(openFile, openContent);
+		}
+		openFile = null;
+		openContent = null;
+	}
+
+	private void writeFile(byte[] data) {
+		if (nonNull(openFile)) {
+			int end = openPosition + data.length;
+			if (end > openContent.length) {
+				openContent = Arrays.copyOf(openContent, end);
+			}
+			System.arraycopy(data, 0, openContent, openPosition, data.length);
+			openPosition = end;
+			files.put(openFile, openContent);
+		}
+	}
+
+	/**
+	 * Store received block to open file or pass it to unpacker.
+	 */
+	private void store(byte[] data, boolean unpack) {
+		if (!unpack) {
+			writeFile(data);
+		} else if (isNull(unpacker)) {
+			println("stdin:1: attempt to call global '_uf' (a nil value)");
+		} else {
+			unpacker.feed(data);
+		}
+	}
+
+	private int freeHeap() {
+		return heap - fragmentedHeap;
+	}
+
+	/**
+	 * State in memory is lost, files are kept. Device starts with baud rate which port was opened with.
+	 */
+	private void restart() {
+		closeFile();
+		handler = null;
+		handlerBuffer.reset();
+		unpacker = null;
+		crcInstalled = false;
+		fragmentedHeap = 0;
+		deviceBaudRate = bootBaudRate;
+		println("");
+		println("NodeMCU " + firmwareVersion + " build by emulator");
+		if (files.containsKey("init.lua") || files.containsKey("init.lc")) {
+			// code of init is not executed, only counted
+			initRuns.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return count of restarts which would run init.lua or init.lc
+	 */
+	public int getInitRuns() {
+		return initRuns.get();
+	}
+
+	private boolean compile(String file) {
+		byte[] source = files.get(file);
+		if (isNull(source)) {
+			return false;
+		}
+		if (freeHeap() < (long) source.length * COMPILE_HEAP_FACTOR) {
+			// not enough memory, error is caught by pcall of batch
+			return false;
+		}
+		fragmentedHeap += (int) (source.length * compileFragmentation);
+		String compiled = file.endsWith(".lua") ? file.substring(0, file.length() - 4) + ".lc" : file + ".lc";
+		byte[] bytecode = new byte[source.length + 4];
+		System.arraycopy("\u001bLua".getBytes(StandardCharsets.ISO_8859_1), 0, bytecode, 0, 4);
+		System.arraycopy(source, 0, bytecode, 4, source.length);
+		files.put(compiled, bytecode);
+		return true;
+	}
+
+	private void executeBatch(String command) {
+		StringBuilder flags = new StringBuilder();
+		Matcher m = BATCH_OPERATION.matcher(command);
+		while (m.find()) {
+			boolean success;
+			switch (m.group(1)) {
+				case "file.remove":
+					files.remove(m.group(2));
+					success = true;
+					break;
+				case "node.compile":
+					success = compile(m.group(2));
+					break;
+				case "collectgarbage":
+					success = true;
+					break;
+				default:
+					byte[] content = files.remove(m.group(2));
+					success = nonNull(content) && !files.containsKey(m.group(3));
+					if (success) {
+						files.put(m.group(3), content);
+					} else if (nonNull(content)) {
+						files.put(m.group(2), content);
+					}
+			}
+			flags.append(success ? '1' : '0');
+		}
+		println("BATCH:" + flags);
+	}
+
+	/**
+	 * Evaluate concatenation of string literals, numbers and few known expressions.
+	 */
+	private String evaluate(String expression) {
+		StringBuilder sb = new StringBuilder();
+		for (String part : splitConcatenation(expression)) {
+			part = part.trim();
+			if (part.startsWith("tostring(") && part.endsWith(")")) {
+				part = part.substring("tostring(".length(), part.length() - 1).trim();
+			}
+			if (part.length() >= 2 && part.startsWith("\"") && part.endsWith("\"")) {
+				sb.append(part.substring(1, part.length() - 1)
+						.replace("\\r", "\r")
+						.replace("\\n", "\n")
+						.replace("\\\"", "\""));
+			} else if (part.matches("-?\\d+(\\.\\d+)?")) {
+				sb.append(part);
+			} else if ("node.heap()".equals(part)) {
+				sb.append(freeHeap());
+			} else if ("node.chipid()".equals(part)) {
+				sb.append(CHIP_ID);
+			} else if ("node.flashid()".equals(part)) {
+				sb.append(FLASH_ID);
+			} else if ("majorVer".equals(part) || "minorVer".equals(part) || "devVer".equals(part)) {
+				String[] version = firmwareVersion.split("\\.");
+				sb.append(version["majorVer".equals(part) ? 0 : "minorVer".equals(part) ? 1 : 2]);
+			} else {
+				sb.append("nil");
+			}
+		}
+		return sb.toString();
+	}
+
+	private static List<String> splitConcatenation(String expression) {
+		List<String> parts = new ArrayList<>();
+		int depth = 0;
+		boolean inString = false;
+		int start = 0;
+		for (int i = 0; i < expression.length(); i++) {
+			char c = expression.charAt(i);
+			if (inString) {
+				if (c == '\\') {
+					i++;
+				} else if (c == '"') {
+					inString = false;
+				}
+			} else if (c == '"') {
+				inString = true;
+			} else if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				depth--;
+			} else if (depth == 0 && expression.startsWith("..", i)) {
+				parts.add(expression.substring(start, i));
+				start = i + 2;
+				i++;
+			}
+		}
+		parts.add(expression.substring(start));
+		return parts;
+	}
+
+	/**
+	 * Handler installed by stop-and-wait ("ACK") and windowed ("ACK n") upload.
+	 */
+	private class SimpleHandler implements DataHandler {
+		private final int size;
+		private final int blocks;
+		private final boolean numbered;
+		private final boolean unpack;
+		private int received = 0;
+
+		SimpleHandler(int size, int blocks, boolean numbered, boolean unpack) {
+			this.size = size;
+			this.blocks = blocks;
+			this.numbered = numbered;
+			this.unpack = unpack;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean onData(byte[] data) {
+			store(data, unpack);
+			received++;
+			println(numbered ? "ACK " + received : "ACK");
+			return received < blocks;
+		}
+	}
+
+	/**
+	 * Handler of block with CRC, block is written only when CRC matches.
+	 */
+	private class CheckedHandler implements DataHandler {
+		private final int size;
+		private final int crc;
+		private final boolean unpack;
+
+		CheckedHandler(int size, int crc, boolean unpack) {
+			this.size = size;
+			this.crc = crc;
+			this.unpack = unpack;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean onData(byte[] data) {
+			if (!crcInstalled) {
+				println("stdin:1: attempt to call global '_crc' (a nil value)");
+			} else if (Crc16.ccitt(data, 0, data.length) == crc) {
+				store(data, unpack);
+				println("ACK");
+			} else {
+				println("NACK");
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Unpacker of bundle stream, same steps as Lua unpacker: header of file, content, next header,
+	 * until end of stream (name length 0).
+	 */
+	private class Unpacker {
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private final List<String> written = new ArrayList<>();
+		private int remaining = 0;
+		private boolean end = false;
+
+		void feed(byte[] data) {
+			if (end) {
+				return;
+			}
+			buffer.write(data, 0, data.length);
+			byte[] b = buffer.toByteArray();
+			int position = 0;
+			while (position < b.length && !end) {
+				if (remaining > 0) {
+					int part = Math.min(remaining, b.length - position);
+					writeFile(Arrays.copyOfRange(b, position, position + part));
+					position += part;
+					remaining -= part;
+					if (remaining > 0) {
+						break;
+					}
+					closeFile();
+					continue;
+				}
+				int nameLength = b[position] & 0xFF;
+				if (nameLength == 0) {
+					end = true;
+					break;
+				}
+				if (b.length - position < nameLength + 5) {
+					break;
+				}
+				String file = new String(b, position + 1, nameLength, StandardCharsets.UTF_8);
+				int sizeOffset = position + 1 + nameLength;
+				remaining = ((b[sizeOffset] & 0xFF) << 24) | ((b[sizeOffset + 1] & 0xFF) << 16)
+						| ((b[sizeOffset + 2] & 0xFF) << 8) | (b[sizeOffset + 3] & 0xFF);
+				position = sizeOffset + 4;
+				openFile(file, "w+");
+				written.add(file);
+				if (remaining == 0) {
+					closeFile();
+				}
+			}
+			buffer.reset();
+			if (!end) {
+				buffer.write(b, position, b.length - position);
+			}
+		}
+	}
+}
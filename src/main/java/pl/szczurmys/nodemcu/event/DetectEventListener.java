@@ -1,52 +1,41 @@
 package pl.szczurmys.nodemcu.event;
 
-import jssc.*;
+import pl.szczurmys.nodemcu.transport.TransportListener;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import static java.util.Objects.nonNull;
+import static pl.szczurmys.nodemcu.NodeMcuInterpreter.CHARSET;
 
 /**
  * @author szczurmys
  */
-public class DetectEventListener implements SerialPortEventListener {
+public class DetectEventListener implements TransportListener {
 
-	private final SerialPort serialPort;
-	private final int timeout;
-
-	private final Object lock = new Object();
+	private static final String PROMPT = "\r\n> ";
 
 	private final AtomicBoolean detected;
 
-	public DetectEventListener(SerialPort serialPort, AtomicBoolean detected, int timeout) {
-		this.serialPort = serialPort;
-		this.timeout = timeout;
+	/**
+	 * End of previous data, prompt can be split between two events.
+	 */
+	private String tail = "";
+
+	public DetectEventListener(AtomicBoolean detected) {
 		this.detected = detected;
 	}
 
 	@Override
-	public void serialEvent(SerialPortEvent event) {
-		if (!serialPort.getPortName().equals(event.getPortName())) {
-			System.err.println("WARNING: serialEvent return wrong port name; Port: " + event.getPortName());
-		}
-		if (event.isRXCHAR() && event.getEventValue() > 0) {
-			String buffer;
-			synchronized (lock) {
-				try {
-					buffer = serialPort.readString(event.getEventValue(), timeout);
-					if (nonNull(buffer) && buffer.contains("\r\n> ")) {
-						detected.set(true);
-					}
-				} catch (SerialPortException | SerialPortTimeoutException e) {
-					e.printStackTrace();
-					return;
-				}
+	public void dataReceived(byte[] data) {
+		String buffer = new String(data, CHARSET);
+		String joined = tail + buffer;
+		if (joined.contains(PROMPT)) {
+			// interpreter waits on detected for prompt
+			synchronized (detected) {
+				detected.set(true);
+				detected.notifyAll();
 			}
-			System.out.print(buffer);
-		} else if (event.isBREAK()) {
-			System.err.println("WARNING: serialEvent return BREAK;");
-		} else if (event.isERR()) {
-			System.err.println("ERROR: serialEvent return BREAK;");
 		}
+		tail = joined.substring(Math.max(0, joined.length() - PROMPT.length() + 1));
+		System.out.print(buffer);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,200 @@
+package pl.szczurmys.nodemcu.event;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Write output of device to console and log file on own thread, so serial events are never blocked by slow console.
+ * Data is copied into pool of reusable chunks; console is written in batches and flushed
+ * at latest after {@link #FLUSH_INTERVAL}.
+ *
+ * @author szczurmys
+ */
+public class OutputPump implements Closeable {
+	public static final int CHUNK_SIZE = 4096;
+	public static final int POOL_SIZE = 32;
+	/**
+	 * Max delay between data received and shown in console [ms].
+	 */
+	public static final int FLUSH_INTERVAL = 50;
+	private static final int FLUSH_TIMEOUT = 1000;
+
+	private static class Chunk {
+		final byte[] data;
+		int length;
+		CountDownLatch flushed;
+
+		Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+
+	private static final Chunk END = new Chunk(0);
+
+	private final BlockingQueue<Chunk> free = new LinkedBlockingQueue<>();
+	private final BlockingQueue<Chunk> ready = new LinkedBlockingQueue<>();
+	private final Thread thread;
+	private PrintStream console;
+	private OutputStream consoleBuffer;
+	private volatile OutputStream log;
+
+	public OutputPump(String name) {
+		for (int i = 0; i < POOL_SIZE; i++) {
+			free.add(new Chunk(CHUNK_SIZE));
+		}
+		thread = new Thread(this::run, "output-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Copy device output to log, null - stop logging. Log is closed by caller.
+	 * Output received so far is written to previous log before it is replaced, and write to previous log
+	 * in progress is finished before return, so caller can close previous log.
+	 */
+	public void setLog(OutputStream log) {
+		boolean replaced = nonNull(this.log);
+		if (replaced) {
+			flush();
+		}
+		this.log = log;
+		if (replaced) {
+			// chunk taken before the change could still be written to previous log
+			flush();
+		}
+	}
+
+	/**
+	 * Called by serial event thread, data is copied, pool grows when console is slower than serial port.
+	 */
+	public void write(byte[] data) {
+		int offset = 0;
+		while (offset < data.length) {
+			Chunk chunk = free.poll();
+			if (isNull(chunk)) {
+				chunk = new Chunk(CHUNK_SIZE);
+			}
+			chunk.length = Math.min(CHUNK_SIZE, data.length - offset);
+			System.arraycopy(data, offset, chunk.data, 0, chunk.length);
+			chunk.flushed = null;
+			offset += chunk.length;
+			ready.add(chunk);
+		}
+	}
+
+	/**
+	 * Wait until all output received so far is written, e.g. before other messages are printed.
+	 */
+	public void flush() {
+		if (!thread.isAlive()) {
+			return;
+		}
+		Chunk marker = new Chunk(0);
+		marker.flushed = new CountDownLatch(1);
+		ready.add(marker);
+		try {
+			marker.flushed.await(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void close() {
+		flush();
+		ready.add(END);
+		try {
+			thread.join(FLUSH_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		long lastFlush = System.nanoTime();
+		boolean dirty = false;
+		try {
+			while (true) {
+				Chunk chunk = ready.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+				if (chunk == END) {
+					writeFlush();
+					return;
+				}
+				if (nonNull(chunk) && nonNull(chunk.flushed)) {
+					writeFlush();
+					dirty = false;
+					lastFlush = System.nanoTime();
+					chunk.flushed.countDown();
+					continue;
+				}
+				if (nonNull(chunk)) {
+					writeChunk(chunk);
+					dirty = true;
+					if (free.size() < POOL_SIZE) {
+						free.add(chunk);
+					}
+				}
+				if (dirty && (isNull(chunk) || System.nanoTime() - lastFlush > TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL))) {
+					writeFlush();
+					dirty = false;
+					lastFlush = System.nanoTime();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeChunk(Chunk chunk) {
+		try {
+			console().write(chunk.data, 0, chunk.length);
+		} catch (IOException e) {
+			// console closed, output is lost
+		}
+		OutputStream currentLog = log;
+		if (nonNull(currentLog)) {
+			try {
+				currentLog.write(chunk.data, 0, chunk.length);
+			} catch (IOException e) {
+				System.err.println("Cannot write output log, logging stopped. Message: " + e.getMessage());
+				log = null;
+			}
+		}
+	}
+
+	private void writeFlush() {
+		try {
+			if (nonNull(consoleBuffer)) {
+				consoleBuffer.flush();
+			}
+			OutputStream currentLog = log;
+			if (nonNull(currentLog)) {
+				currentLog.flush();
+			}
+		} catch (IOException e) {
+			// flushed on next write
+		}
+	}
+
+	/**
+	 * Buffer over current System.out, System.out of daemon job is replaced for each job.
+	 */
+	private OutputStream console() {
+		if (System.out != console) {
+			writeFlush();
+			console = System.out;
+			consoleBuffer = new BufferedOutputStream(console, CHUNK_SIZE * 2);
+		}
+		return consoleBuffer;
+	}
+}
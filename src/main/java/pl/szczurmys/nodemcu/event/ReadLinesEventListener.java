@@ -1,58 +1,63 @@
 package pl.szczurmys.nodemcu.event;
 
-import jssc.*;
 import pl.szczurmys.nodemcu.LineQueue;
+import pl.szczurmys.nodemcu.transport.TransportListener;
 
-import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static pl.szczurmys.nodemcu.NodeMcuInterpreter.CHARSET;
 
 /**
+ * Split received data into lines (with "\r\n"). Lines are decoded directly from received data,
+ * only a line split between events is kept in reusable buffer.
+ * <p>
+ * Not thread safe, transport calls listener only from its event thread.
+ *
  * @author szczurmys
  */
-public class ReadLinesEventListener implements SerialPortEventListener {
+public class ReadLinesEventListener implements TransportListener {
+	private static final int INITIAL_CAPACITY = 256;
 
 	private final LineQueue lineQueue;
-	private final SerialPort serialPort;
-	private final int timeout;
 
-	private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+	/**
+	 * Beginning of not finished line.
+	 */
+	private byte[] pending = new byte[INITIAL_CAPACITY];
+	private int pendingLength = 0;
 
-	public ReadLinesEventListener(SerialPort serialPort, LineQueue lineQueue, int timeout) {
+	public ReadLinesEventListener(LineQueue lineQueue) {
 		this.lineQueue = lineQueue;
-		this.serialPort = serialPort;
-		this.timeout = timeout;
 	}
 
 	@Override
-	public void serialEvent(SerialPortEvent event) {
-
-		if (!serialPort.getPortName().equals(event.getPortName())) {
-			System.err.println("WARNING: serialEvent return wrong port name; Port: " + event.getPortName());
-		}
-		if (event.isRXCHAR() && event.getEventValue() > 0) {
-			synchronized (lineBuffer) {
-				byte[] buffer;
-				try {
-					buffer = serialPort.readBytes(event.getEventValue(), timeout);
-				} catch (SerialPortException | SerialPortTimeoutException e) {
-					e.printStackTrace();
-					return;
-				}
-
-				for (byte b : buffer) {
-					lineBuffer.write(b);
-					if (((byte) '\n') == b) {
-						String line = new String(lineBuffer.toByteArray());
-						lineQueue.addLine(line);
-						lineBuffer.reset();
-					}
-				}
+	public void dataReceived(byte[] buffer) {
+		int start = 0;
+		for (int i = 0; i < buffer.length; i++) {
+			if (buffer[i] != '\n') {
+				continue;
+			}
+			int end = i + 1;
+			if (pendingLength == 0) {
+				lineQueue.addLine(new String(buffer, start, end - start, CHARSET));
+			} else {
+				append(buffer, start, end);
+				lineQueue.addLine(new String(pending, 0, pendingLength, CHARSET));
+				pendingLength = 0;
 			}
-		} else if (event.isBREAK()) {
-			System.err.println("WARNING: serialEvent return BREAK;");
-		} else if (event.isERR()) {
-			System.err.println("ERROR: serialEvent return BREAK;");
+			start = end;
+		}
+		if (start < buffer.length) {
+			append(buffer, start, buffer.length);
 		}
 	}
 
-
+	private void append(byte[] buffer, int from, int to) {
+		int length = to - from;
+		if (pendingLength + length > pending.length) {
+			pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+		}
+		System.arraycopy(buffer, from, pending, pendingLength, length);
+		pendingLength += length;
+	}
 }
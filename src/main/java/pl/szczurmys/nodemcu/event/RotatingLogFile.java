@@ -0,0 +1,107 @@
+package pl.szczurmys.nodemcu.event;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Log of device output, rotated by size: log, log.1, ..., log.BACKUPS.
+ * Output is appended to existing log.
+ *
+ * @author szczurmys
+ */
+public class RotatingLogFile extends OutputStream {
+	public static final long DEFAULT_MAX_SIZE = 1024 * 1024;
+	public static final int BACKUPS = 3;
+
+	private final File file;
+	private final long maxSize;
+	private OutputStream out;
+	private long size;
+
+	/**
+	 * @param maxSize size of log before rotation [B], greater than 0
+	 */
+	public RotatingLogFile(File file, long maxSize) throws IOException {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Max size of log must be greater than 0: " + maxSize);
+		}
+		this.file = file.getAbsoluteFile();
+		this.maxSize = maxSize;
+		File parent = this.file.getParentFile();
+		if (nonNull(parent)) {
+			Files.createDirectories(parent.toPath());
+		}
+		open();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[]{(byte) b}, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (isNull(out)) {
+			throw new IOException("Log '" + file.getAbsolutePath() + "' is closed");
+		}
+		while (len > 0) {
+			if (size >= maxSize) {
+				rotate();
+			}
+			int part = (int) Math.min(len, maxSize - size);
+			out.write(b, off, part);
+			size += part;
+			off += part;
+			len -= part;
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (nonNull(out)) {
+			out.flush();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (isNull(out)) {
+			return;
+		}
+		out.close();
+		out = null;
+	}
+
+	private void open() throws IOException {
+		size = file.length();
+		out = new BufferedOutputStream(new FileOutputStream(file, true));
+	}
+
+	private void rotate() throws IOException {
+		out.close();
+		for (int i = BACKUPS - 1; i >= 1; i--) {
+			File older = backup(i);
+			if (older.isFile()) {
+				Files.move(older.toPath(), backup(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		Files.move(file.toPath(), backup(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		open();
+	}
+
+	private File backup(int i) {
+		return new File(file.getPath() + "." + i);
+	}
+}
@@ -1,9 +1,7 @@
 package pl.szczurmys.nodemcu.event;
 
-import jssc.SerialPort;
-import jssc.SerialPortEvent;
-import jssc.SerialPortEventListener;
 import pl.szczurmys.nodemcu.LineQueue;
+import pl.szczurmys.nodemcu.transport.TransportListener;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -14,7 +12,7 @@ import static pl.szczurmys.nodemcu.event.SelectorEventListener.EventType.*;
 /**
  * @author szczurmys
  */
-public class SelectorEventListener implements SerialPortEventListener {
+public class SelectorEventListener implements TransportListener {
 	public enum EventType {
 		READ_LINE_MASK,
 		READ_ALL_MASK,
@@ -27,31 +25,35 @@ public class SelectorEventListener implements SerialPortEventListener {
 	private final ReadLinesEventListener readLinesEventListener;
 	private final ReadAllAndPrintOutEventListener readAllAndPrintOutEventListener;
 	private final DetectEventListener detectEventListener;
+	private final OutputPump outputPump;
 
-	public SelectorEventListener(SerialPort serialPort, AtomicBoolean detected, LineQueue lineQueue, int timeout) {
-		readLinesEventListener = new ReadLinesEventListener(serialPort, lineQueue, timeout);
-		readAllAndPrintOutEventListener = new ReadAllAndPrintOutEventListener(serialPort, timeout);
-		detectEventListener = new DetectEventListener(serialPort, detected, timeout);
+	public SelectorEventListener(AtomicBoolean detected, LineQueue lineQueue, OutputPump outputPump) {
+		this.outputPump = outputPump;
+		readLinesEventListener = new ReadLinesEventListener(lineQueue);
+		readAllAndPrintOutEventListener = new ReadAllAndPrintOutEventListener(outputPump);
+		detectEventListener = new DetectEventListener(detected);
 	}
 
 	@Override
-	public void serialEvent(SerialPortEvent serialPortEvent) {
+	public void dataReceived(byte[] data) {
 		if (READ_LINE_MASK.equals(eventType.get())) {
-			readLinesEventListener.serialEvent(serialPortEvent);
+			readLinesEventListener.dataReceived(data);
 		}
 		if (READ_ALL_MASK.equals(eventType.get())) {
-			readAllAndPrintOutEventListener.serialEvent(serialPortEvent);
+			readAllAndPrintOutEventListener.dataReceived(data);
 		}
 		if (DETECT_MASK.equals(eventType.get())) {
-			detectEventListener.serialEvent(serialPortEvent);
+			detectEventListener.dataReceived(data);
 		}
 	}
 
+	/**
+	 * Output of device printed so far is written before next messages when printing of output ends.
+	 */
 	public void setEventType(EventType eventType) {
-		if (isNull(eventType)) {
-			this.eventType.set(UNKNOWN);
-			return;
+		EventType previous = this.eventType.getAndSet(isNull(eventType) ? UNKNOWN : eventType);
+		if (READ_ALL_MASK.equals(previous) && !READ_ALL_MASK.equals(eventType)) {
+			outputPump.flush();
 		}
-		this.eventType.set(eventType);
 	}
 }
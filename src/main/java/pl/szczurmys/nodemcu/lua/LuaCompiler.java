@@ -0,0 +1,25 @@
+package pl.szczurmys.nodemcu.lua;
+
+import java.io.IOException;
+
+/**
+ * Compile Lua source to bytecode on host, instead of node.compile on device.
+ *
+ * @author szczurmys
+ */
+public interface LuaCompiler {
+	/**
+	 * @param name   name of source file, used in debug info and error messages
+	 * @param source Lua source
+	 * @return bytecode which can be loaded by firmware
+	 * @throws IOException when compiler cannot be run or source has errors
+	 */
+	byte[] compile(String name, byte[] source) throws IOException;
+
+	/**
+	 * Identifier of compiler, its version and options, part of cache key.
+	 *
+	 * @throws IOException when compiler cannot be read
+	 */
+	String getId() throws IOException;
+}
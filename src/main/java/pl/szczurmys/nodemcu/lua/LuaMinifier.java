@@ -0,0 +1,215 @@
+package pl.szczurmys.nodemcu.lua;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Remove comments and unnecessary white spaces from Lua source.
+ * Source is tokenized, strings and numbers are copied without changes.
+ * Content is processed as ISO-8859-1, so all bytes (also UTF-8 in strings) are preserved.
+ *
+ * @author szczurmys
+ */
+public class LuaMinifier {
+
+	private enum TokenType {
+		WORD,
+		NUMBER,
+		STRING,
+		OPERATOR
+	}
+
+	private static final String[] LONG_OPERATORS = {"...", "..", "==", "~=", "<=", ">=", "::", "//", "<<", ">>"};
+
+	private final String source;
+	private final StringBuilder out;
+	private int position = 0;
+
+	private TokenType lastType;
+	private char lastChar;
+
+	private LuaMinifier(String source) {
+		this.source = source;
+		this.out = new StringBuilder(source.length());
+	}
+
+	public static byte[] minify(byte[] source) {
+		String minified = minify(new String(source, StandardCharsets.ISO_8859_1));
+		return minified.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @throws IllegalArgumentException when source contains not closed string or comment
+	 */
+	public static String minify(String source) {
+		LuaMinifier minifier = new LuaMinifier(source);
+		minifier.run();
+		return minifier.out.toString();
+	}
+
+	private void run() {
+		if (source.startsWith("#")) {
+			// shebang line
+			int end = source.indexOf('\n');
+			position = end < 0 ? source.length() : end;
+		}
+		boolean newLine = false;
+		while (position < source.length()) {
+			char c = source.charAt(position);
+			if (c == '\n') {
+				newLine = true;
+				position++;
+			} else if (Character.isWhitespace(c)) {
+				position++;
+			} else if (c == '-' && peek(1) == '-') {
+				skipComment();
+			} else if (c == '"' || c == '\'') {
+				emit(TokenType.STRING, readQuotedString(c), newLine);
+				newLine = false;
+			} else if (c == '[' && longBracketLevel() >= 0) {
+				emit(TokenType.STRING, readLongBracket(), newLine);
+				newLine = false;
+			} else if (Character.isDigit(c) || (c == '.' && Character.isDigit(peek(1)))) {
+				emit(TokenType.NUMBER, readNumber(), newLine);
+				newLine = false;
+			} else if (isWordChar(c)) {
+				int start = position;
+				while (position < source.length() && isWordChar(source.charAt(position))) {
+					position++;
+				}
+				emit(TokenType.WORD, source.substring(start, position), newLine);
+				newLine = false;
+			} else {
+				emit(TokenType.OPERATOR, readOperator(), newLine);
+				newLine = false;
+			}
+		}
+	}
+
+	private void emit(TokenType type, String token, boolean newLine) {
+		if (out.length() > 0) {
+			if (newLine && token.charAt(0) == '(') {
+				// keep "a\n(b)" as two statements
+				out.append('\n');
+			} else if (needSeparator(type, token.charAt(0))) {
+				out.append(' ');
+			}
+		}
+		out.append(token);
+		lastType = type;
+		lastChar = token.charAt(token.length() - 1);
+	}
+
+	private boolean needSeparator(TokenType type, char first) {
+		if (isWordChar(lastChar) && (isWordChar(first) || type == TokenType.NUMBER)) {
+			return true;
+		}
+		if (lastType == TokenType.NUMBER && (first == '.' || isWordChar(first))) {
+			return true;
+		}
+		if (lastType != TokenType.OPERATOR) {
+			return false;
+		}
+		return (lastChar == '.' && first == '.')
+				|| (lastChar == '-' && first == '-')
+				|| (lastChar == '[' && (first == '[' || first == '='))
+				|| (first == '=' && "=~<>".indexOf(lastChar) >= 0)
+				|| (lastChar == first && "<>/:".indexOf(first) >= 0);
+	}
+
+	private void skipComment() {
+		position += 2;
+		if (peek(0) == '[' && longBracketLevel() >= 0) {
+			readLongBracket();
+			return;
+		}
+		while (position < source.length() && source.charAt(position) != '\n') {
+			position++;
+		}
+	}
+
+	private String readQuotedString(char quote) {
+		int start = position;
+		position++;
+		while (position < source.length()) {
+			char c = source.charAt(position);
+			if (c == '\\') {
+				position += 2;
+				continue;
+			}
+			position++;
+			if (c == quote) {
+				return source.substring(start, position);
+			}
+			if (c == '\n') {
+				break;
+			}
+		}
+		throw new IllegalArgumentException("Unfinished string at " + start);
+	}
+
+	/**
+	 * @return level of long bracket at current position ([[ - 0, [=[ - 1, ...), -1 when it is not long bracket
+	 */
+	private int longBracketLevel() {
+		int level = 0;
+		while (peek(1 + level) == '=') {
+			level++;
+		}
+		return peek(1 + level) == '[' ? level : -1;
+	}
+
+	private String readLongBracket() {
+		int start = position;
+		int level = longBracketLevel();
+		StringBuilder close = new StringBuilder("]");
+		for (int i = 0; i < level; i++) {
+			close.append('=');
+		}
+		close.append(']');
+		int end = source.indexOf(close.toString(), position + level + 2);
+		if (end < 0) {
+			throw new IllegalArgumentException("Unfinished long string or comment at " + start);
+		}
+		position = end + close.length();
+		return source.substring(start, position);
+	}
+
+	private String readNumber() {
+		int start = position;
+		while (position < source.length()) {
+			char c = source.charAt(position);
+			boolean exponent = c == 'p' || c == 'P' || ((c == 'e' || c == 'E') && !isHex(start));
+			if (exponent && (peek(1) == '+' || peek(1) == '-')) {
+				position += 2;
+			} else if (c == '.' || isWordChar(c)) {
+				position++;
+			} else {
+				break;
+			}
+		}
+		return source.substring(start, position);
+	}
+
+	private boolean isHex(int start) {
+		return source.startsWith("0x", start) || source.startsWith("0X", start);
+	}
+
+	private String readOperator() {
+		for (String operator : LONG_OPERATORS) {
+			if (source.startsWith(operator, position)) {
+				position += operator.length();
+				return operator;
+			}
+		}
+		return String.valueOf(source.charAt(position++));
+	}
+
+	private char peek(int offset) {
+		int index = position + offset;
+		return index < source.length() ? source.charAt(index) : '\0';
+	}
+
+	private static boolean isWordChar(char c) {
+		return c == '_' || (c < 128 && Character.isLetterOrDigit(c)) || c >= 128;
+	}
+}
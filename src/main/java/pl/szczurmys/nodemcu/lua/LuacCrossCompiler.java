@@ -0,0 +1,83 @@
+package pl.szczurmys.nodemcu.lua;
+
+import pl.szczurmys.nodemcu.FileHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Run luac.cross built for the same firmware as device: {@code luac.cross -o OUT IN}.
+ *
+ * @author szczurmys
+ */
+public class LuacCrossCompiler implements LuaCompiler {
+	public static final int COMPILE_TIMEOUT = 60;
+
+	private final File executable;
+	private String id;
+
+	public LuacCrossCompiler(File executable) {
+		this.executable = executable;
+	}
+
+	@Override
+	public byte[] compile(String name, byte[] source) throws IOException {
+		File directory = Files.createTempDirectory("luac").toFile();
+		File input = new File(directory, new File(name).getName());
+		File output = new File(directory, "out.lc");
+		// output goes to file, so compiler which prints a lot or hangs cannot block reading of pipe before timeout
+		File messages = new File(directory, "messages.txt");
+		try {
+			Files.write(input.toPath(), source);
+			Process process = new ProcessBuilder(executable.getAbsolutePath(), "-o", output.getAbsolutePath(), input.getName())
+					.directory(directory)
+					.redirectErrorStream(true)
+					.redirectOutput(messages)
+					.start();
+			waitFor(process, name);
+			if (process.exitValue() != 0 || !output.isFile()) {
+				throw new IOException("Cannot compile " + name + ": " + readMessages(messages));
+			}
+			return Files.readAllBytes(output.toPath());
+		} finally {
+			input.delete();
+			output.delete();
+			messages.delete();
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Path and hash of executable, so bytecode is compiled again when luac.cross is replaced,
+	 * e.g. by build for other firmware.
+	 */
+	@Override
+	public synchronized String getId() throws IOException {
+		if (isNull(id)) {
+			id = executable.getAbsolutePath() + "|" + FileHelper.hash(executable);
+		}
+		return id;
+	}
+
+	private static void waitFor(Process process, String name) throws IOException {
+		try {
+			if (!process.waitFor(COMPILE_TIMEOUT, TimeUnit.SECONDS)) {
+				process.destroyForcibly().waitFor();
+				throw new IOException("Compiler timeout: " + name);
+			}
+		} catch (InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			throw new IOException("Compile interrupted: " + name);
+		}
+	}
+
+	private static String readMessages(File messages) throws IOException {
+		return messages.isFile() ? new String(Files.readAllBytes(messages.toPath()), Charset.defaultCharset()).trim() : "";
+	}
+}
@@ -0,0 +1,80 @@
+package pl.szczurmys.nodemcu.transport;
+
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortException;
+import jssc.SerialPortTimeoutException;
+
+/**
+ * Transport over serial port (jssc).
+ *
+ * @author szczurmys
+ */
+public class SerialTransport implements Transport {
+	private final SerialPort serialPort;
+	private final int timeout;
+
+	public SerialTransport(String port, int timeout) {
+		this.serialPort = new SerialPort(port);
+		this.timeout = timeout;
+	}
+
+	@Override
+	public String getName() {
+		return serialPort.getPortName();
+	}
+
+	@Override
+	public void open(int baudRate) throws SerialPortException {
+		serialPort.openPort();
+		setBaudRate(baudRate);
+	}
+
+	@Override
+	public void setBaudRate(int baudRate) throws SerialPortException {
+		serialPort.setParams(baudRate,
+				SerialPort.DATABITS_8,
+				SerialPort.STOPBITS_1,
+				SerialPort.PARITY_NONE);
+	}
+
+	@Override
+	public boolean write(byte[] data) throws SerialPortException {
+		return serialPort.writeBytes(data);
+	}
+
+	@Override
+	public void setListener(TransportListener listener) throws SerialPortException {
+		serialPort.addEventListener(event -> serialEvent(event, listener));
+	}
+
+	@Override
+	public void removeListener() throws SerialPortException {
+		serialPort.removeEventListener();
+	}
+
+	@Override
+	public void close() throws SerialPortException {
+		serialPort.closePort();
+	}
+
+	private void serialEvent(SerialPortEvent event, TransportListener listener) {
+		if (!serialPort.getPortName().equals(event.getPortName())) {
+			System.err.println("WARNING: serialEvent return wrong port name; Port: " + event.getPortName());
+		}
+		if (event.isRXCHAR() && event.getEventValue() > 0) {
+			byte[] buffer;
+			try {
+				buffer = serialPort.readBytes(event.getEventValue(), timeout);
+			} catch (SerialPortException | SerialPortTimeoutException e) {
+				e.printStackTrace();
+				return;
+			}
+			listener.dataReceived(buffer);
+		} else if (event.isBREAK()) {
+			System.err.println("WARNING: serialEvent return BREAK;");
+		} else if (event.isERR()) {
+			System.err.println("ERROR: serialEvent return BREAK;");
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package pl.szczurmys.nodemcu.transport;
+
+import jssc.SerialPortException;
+
+/**
+ * Byte channel to device. Received data is pushed to {@link TransportListener}.
+ *
+ * @author szczurmys
+ */
+public interface Transport {
+	/**
+	 * Name of port, used in messages and exceptions.
+	 */
+	String getName();
+
+	void open(int baudRate) throws SerialPortException;
+
+	void setBaudRate(int baudRate) throws SerialPortException;
+
+	/**
+	 * @return false when data was not written
+	 */
+	boolean write(byte[] data) throws SerialPortException;
+
+	void setListener(TransportListener listener) throws SerialPortException;
+
+	void removeListener() throws SerialPortException;
+
+	void close() throws SerialPortException;
+}
@@ -0,0 +1,12 @@
+package pl.szczurmys.nodemcu.transport;
+
+/**
+ * @author szczurmys
+ */
+@FunctionalInterface
+public interface TransportListener {
+	/**
+	 * Called from one receive thread, never concurrently.
+	 */
+	void dataReceived(byte[] data);
+}
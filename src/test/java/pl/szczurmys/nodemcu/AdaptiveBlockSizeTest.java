@@ -0,0 +1,77 @@
+package pl.szczurmys.nodemcu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Growth and shrink of {@link AdaptiveBlockSize}.
+ *
+ * @author szczurmys
+ */
+public class AdaptiveBlockSizeTest {
+	private static final long MILLISECOND = 1_000_000;
+
+	@Test
+	public void maxSizeIsBoundedByHeapOfDevice() {
+		assertEquals(AdaptiveBlockSize.MIN_SIZE, AdaptiveBlockSize.maxSize(0));
+		assertEquals(100, AdaptiveBlockSize.maxSize(AdaptiveBlockSize.HEAP_RESERVE + 100 * AdaptiveBlockSize.HEAP_PER_BYTE));
+		assertEquals(NodeMcuInterpreter.BLOCK_SIZE, AdaptiveBlockSize.maxSize(1024 * 1024));
+		assertEquals(32, new AdaptiveBlockSize(32).get());
+	}
+
+	@Test
+	public void sizeGrowsWhileThroughputGrows() {
+		AdaptiveBlockSize blockSize = new AdaptiveBlockSize(NodeMcuInterpreter.BLOCK_SIZE);
+		assertEquals(AdaptiveBlockSize.START_SIZE, blockSize.get());
+
+		acknowledge(blockSize, AdaptiveBlockSize.GROW_AFTER - 1, MILLISECOND);
+		assertEquals(AdaptiveBlockSize.START_SIZE, blockSize.get());
+		acknowledge(blockSize, 1, MILLISECOND);
+		assertEquals(2 * AdaptiveBlockSize.START_SIZE, blockSize.get());
+		acknowledge(blockSize, AdaptiveBlockSize.GROW_AFTER, MILLISECOND);
+		assertEquals(NodeMcuInterpreter.BLOCK_SIZE, blockSize.get());
+		acknowledge(blockSize, AdaptiveBlockSize.GROW_AFTER, MILLISECOND);
+		assertEquals(NodeMcuInterpreter.BLOCK_SIZE, blockSize.get());
+	}
+
+	@Test
+	public void slowerSizeIsLeftAndNotTriedAgain() {
+		AdaptiveBlockSize blockSize = new AdaptiveBlockSize(NodeMcuInterpreter.BLOCK_SIZE);
+		acknowledge(blockSize, AdaptiveBlockSize.GROW_AFTER, MILLISECOND);
+		acknowledge(blockSize, AdaptiveBlockSize.GROW_AFTER, 10 * MILLISECOND);
+		assertEquals(AdaptiveBlockSize.START_SIZE, blockSize.get());
+
+		acknowledge(blockSize, 2 * AdaptiveBlockSize.GROW_AFTER, MILLISECOND);
+		assertEquals(AdaptiveBlockSize.START_SIZE, blockSize.get());
+	}
+
+	@Test
+	public void sizeIsHalvedAfterEachError() {
+		AdaptiveBlockSize blockSize = new AdaptiveBlockSize(NodeMcuInterpreter.BLOCK_SIZE);
+		blockSize.failed(blockSize.get());
+		assertEquals(AdaptiveBlockSize.START_SIZE / 2, blockSize.get());
+		for (int i = 0; i < 10; i++) {
+			blockSize.failed(blockSize.get());
+		}
+		assertEquals(AdaptiveBlockSize.MIN_SIZE, blockSize.get());
+	}
+
+	@Test
+	public void blocksOfPreviousSizeDoNotCount() {
+		AdaptiveBlockSize blockSize = new AdaptiveBlockSize(NodeMcuInterpreter.BLOCK_SIZE);
+		for (int i = 0; i < 2 * AdaptiveBlockSize.GROW_AFTER; i++) {
+			blockSize.acknowledged(AdaptiveBlockSize.MIN_SIZE, MILLISECOND);
+		}
+		assertEquals(AdaptiveBlockSize.START_SIZE, blockSize.get());
+	}
+
+	/**
+	 * Acknowledge blocks of current size, each after given time.
+	 */
+	private static void acknowledge(AdaptiveBlockSize blockSize, int blocks, long nanos) {
+		for (int i = 0; i < blocks; i++) {
+			blockSize.acknowledged(blockSize.get(), nanos);
+		}
+	}
+}
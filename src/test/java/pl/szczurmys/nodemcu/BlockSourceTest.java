@@ -0,0 +1,146 @@
+package pl.szczurmys.nodemcu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Blocks read ahead by {@link BlockSource} from file, mapped file and stream.
+ *
+ * @author szczurmys
+ */
+public class BlockSourceTest {
+	private static final int BLOCK_SIZE = 255;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void smallFileIsReadInFullBlocks() throws Exception {
+		byte[] content = content(BLOCK_SIZE * 40 + 17);
+		try (BlockSource source = BlockSource.open(file(content), BLOCK_SIZE)) {
+			assertEquals(content.length, source.getLength());
+			assertArrayEquals(content, readAll(source));
+		}
+	}
+
+	@Test
+	public void bigFileIsMappedAndReadInFullBlocks() throws Exception {
+		byte[] content = content((int) BlockSource.MAP_THRESHOLD + 100);
+		try (BlockSource source = BlockSource.open(file(content), BLOCK_SIZE)) {
+			assertArrayEquals(content, readAll(source));
+		}
+	}
+
+	@Test
+	public void lastBlockIsFullWhenSizeIsMultipleOfBlock() throws Exception {
+		byte[] content = content(BLOCK_SIZE * 3);
+		try (BlockSource source = BlockSource.of(content, BLOCK_SIZE)) {
+			for (int i = 0; i < 3; i++) {
+				BlockSource.Block block = source.take();
+				assertEquals(BLOCK_SIZE, block.getLength());
+				source.release(block);
+			}
+			assertNull(source.take());
+			assertNull(source.take());
+		}
+	}
+
+	@Test
+	public void emptyFileHasNoBlocks() throws Exception {
+		try (BlockSource source = BlockSource.open(file(new byte[0]), BLOCK_SIZE)) {
+			assertNull(source.take());
+		}
+	}
+
+	@Test
+	public void readAheadStopsWhenAllBuffersAreTaken() throws Exception {
+		AtomicLong read = new AtomicLong();
+		InputStream inputStream = new ByteArrayInputStream(content(BLOCK_SIZE * 100)) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				int n = super.read(b, off, len);
+				read.addAndGet(Math.max(n, 0));
+				return n;
+			}
+		};
+		long full = (long) BlockSource.READ_AHEAD_BLOCKS * BLOCK_SIZE;
+		try (BlockSource source = BlockSource.of(inputStream, -1, BLOCK_SIZE)) {
+			waitFor(read, full);
+			Thread.sleep(100);
+			assertEquals("not released buffers are not read again", full, read.get());
+
+			source.release(source.take());
+			waitFor(read, full + BLOCK_SIZE);
+			Thread.sleep(100);
+			assertEquals(full + BLOCK_SIZE, read.get());
+		}
+	}
+
+	@Test
+	public void readErrorIsThrownAfterReadBlocks() throws Exception {
+		InputStream inputStream = new InputStream() {
+			private int position = 0;
+
+			@Override
+			public int read() throws IOException {
+				if (position == BLOCK_SIZE + 10) {
+					throw new IOException("disk error");
+				}
+				position++;
+				return 1;
+			}
+		};
+		try (BlockSource source = BlockSource.of(inputStream, -1, BLOCK_SIZE)) {
+			assertEquals(BLOCK_SIZE, source.take().getLength());
+			try {
+				source.take();
+				fail("error of producer is not thrown");
+			} catch (IOException e) {
+				assertEquals("disk error", e.getMessage());
+			}
+		}
+	}
+
+	private byte[] readAll(BlockSource source) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (BlockSource.Block block = source.take(); block != null; block = source.take()) {
+			out.write(block.getData(), 0, block.getLength());
+			source.release(block);
+		}
+		return out.toByteArray();
+	}
+
+	private File file(byte[] content) throws IOException {
+		File file = temporaryFolder.newFile();
+		Files.write(file.toPath(), content);
+		return file;
+	}
+
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		return content;
+	}
+
+	private static void waitFor(AtomicLong value, long expected) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while (value.get() < expected && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package pl.szczurmys.nodemcu;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pl.szczurmys.nodemcu.emulator.NodeMcuEmulator;
+import pl.szczurmys.nodemcu.transport.Transport;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Jobs of {@link DaemonServer} on connection kept open between them, their token and options.
+ *
+ * @author szczurmys
+ */
+public class DaemonServerTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static final String TOKEN = "0123456789abcdef";
+
+	private final DaemonServer server = new DaemonServer(TOKEN.getBytes(StandardCharsets.US_ASCII));
+	private final NodeMcuEmulator emulator = new NodeMcuEmulator();
+	private final AtomicInteger connections = new AtomicInteger();
+	private final Supplier<Transport> transport = () -> {
+		connections.incrementAndGet();
+		return emulator;
+	};
+	private File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = temporaryFolder.newFolder("project");
+	}
+
+	@After
+	public void tearDown() {
+		server.close(Collections.singleton(emulator.getName()));
+	}
+
+	@Test
+	public void connectionIsKeptBetweenJobs() throws Exception {
+		writeFile("init.lua", "print(1)");
+		assertEquals(ErrorCode.SUCCESS, runJob(NodeMcuInterpreter.DEFAULT_TIMEOUT));
+		writeFile("init.lua", "print(2)");
+		assertEquals(ErrorCode.SUCCESS, runJob(NodeMcuInterpreter.DEFAULT_TIMEOUT));
+
+		assertEquals(1, connections.get());
+		assertArrayEquals("print(2)".getBytes(StandardCharsets.UTF_8), emulator.getFiles().get("init.lua"));
+	}
+
+	@Test
+	public void connectionIsOpenedAgainWhenSettingsChange() throws Exception {
+		writeFile("init.lua", "print(1)");
+		assertEquals(ErrorCode.SUCCESS, runJob(NodeMcuInterpreter.DEFAULT_TIMEOUT));
+		assertEquals(ErrorCode.SUCCESS, runJob(NodeMcuInterpreter.DEFAULT_TIMEOUT + 1));
+
+		assertEquals(2, connections.get());
+	}
+
+	@Test
+	public void metricsAreOfOneJob() throws Exception {
+		File metricsFile = new File(directory, "metrics.json");
+		writeFile("init.lua", "print(1)");
+		assertEquals(ErrorCode.SUCCESS, runJob(metricsFile));
+		writeFile("init.lua", "print(22)");
+		assertEquals(ErrorCode.SUCCESS, runJob(metricsFile));
+
+		assertEquals(1, connections.get());
+		String json = new String(Files.readAllBytes(metricsFile.toPath()), StandardCharsets.UTF_8);
+		assertTrue(json, json.contains("\"bytesSent\": 9,"));
+		assertTrue(json, json.contains("\"detectionTimeMs\": 0,"));
+	}
+
+	@Test
+	public void jobWithWrongTokenIsRejected() throws Exception {
+		try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			 Socket client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort())) {
+			DataOutputStream out = new DataOutputStream(client.getOutputStream());
+			out.writeUTF("0123456789abcdee");
+			out.writeInt(0);
+			out.flush();
+			try (Socket socket = serverSocket.accept()) {
+				server.handle(socket);
+			}
+
+			DataInputStream in = new DataInputStream(client.getInputStream());
+			assertEquals(DaemonServer.FRAME_EXIT, in.readByte());
+			assertEquals(4, in.readInt());
+			assertEquals(ErrorCode.DAEMON_JOB_REJECTED.code(), in.readInt());
+		}
+		assertEquals(0, connections.get());
+	}
+
+	@Test
+	public void jobCannotRunProgramsOrWriteOutsideItsDirectory() throws Exception {
+		DeployOptions options = options();
+		assertNull(DaemonServer.checkJob(options));
+
+		options.outputLog = new File(directory, "logs/device.log");
+		options.metricsFile = new File(directory, "metrics.json");
+		assertNull(DaemonServer.checkJob(options));
+
+		options.metricsFile = new File(directory, "../metrics.json");
+		assertNotNull(DaemonServer.checkJob(options));
+
+		options = options();
+		options.outputLog = new File(directory.getPath() + "-other", "device.log");
+		assertNotNull(DaemonServer.checkJob(options));
+
+		options = options();
+		options.hostCompiler = new File(directory, "luac.cross");
+		assertNotNull(DaemonServer.checkJob(options));
+	}
+
+	@Test
+	public void tcpPortOfOption() {
+		assertEquals(DaemonServer.DEFAULT_TCP_PORT, DaemonServer.tcpPort("-daemon", DaemonServer.OPTION));
+		assertEquals(7700, DaemonServer.tcpPort("-daemon=7700", DaemonServer.OPTION));
+	}
+
+	private ErrorCode runJob(int timeout) {
+		return server.runJob(options(), emulator.getName(), transport, "\n", timeout, null);
+	}
+
+	private ErrorCode runJob(File metricsFile) {
+		DeployOptions options = options();
+		options.metricsFile = metricsFile;
+		options.excludeFiles.add(metricsFile.getName());
+		return server.runJob(options, emulator.getName(), transport, "\n", NodeMcuInterpreter.DEFAULT_TIMEOUT, null);
+	}
+
+	private DeployOptions options() {
+		DeployOptions options = new DeployOptions();
+		options.parentDirectory = directory;
+		options.fileToRunRelative = "init.lua";
+		options.notRunOnlySave = true;
+		options.excludeFiles = new HashSet<>();
+		options.ignoreCompileFiles = new HashSet<>();
+		options.baudRate = NodeMcuInterpreter.DEFAULT_BAUD_RATE;
+		return options;
+	}
+
+	private void writeFile(String path, String content) throws Exception {
+		Files.write(new File(directory, path).toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+}
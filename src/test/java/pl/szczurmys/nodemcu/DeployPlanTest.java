@@ -0,0 +1,89 @@
+package pl.szczurmys.nodemcu;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Space and time estimated by {@link DeployPlan}.
+ *
+ * @author szczurmys
+ */
+public class DeployPlanTest {
+	private static final int BLOCK_SIZE = NodeMcuInterpreter.BLOCK_SIZE;
+
+	@Test
+	public void spaceOnFlashHasPageHeadersAndIndexPage() {
+		assertEquals(256, DeployPlan.spaceOnFlash(0));
+		assertEquals(512, DeployPlan.spaceOnFlash(1));
+		assertEquals(512, DeployPlan.spaceOnFlash(251));
+		assertEquals(768, DeployPlan.spaceOnFlash(252));
+	}
+
+	@Test
+	public void onlyRemovedFilesPresentOnDeviceAreFreed() {
+		Map<String, Integer> files = new HashMap<>();
+		files.put("init.lua", 251);
+		files.put("old.lua", 1);
+		DeployPlan plan = new DeployPlan(new DeviceStorage(files, 1000, 1024, 2024), 115200, 0, BLOCK_SIZE)
+				.remove("init.lua").remove("absent.lua");
+
+		assertEquals(512, plan.getFreedBytes());
+		assertEquals(1512, plan.getAvailableBytes());
+	}
+
+	@Test
+	public void uploadsAndCompilesMustFit() {
+		DeviceStorage storage = new DeviceStorage(new HashMap<>(), 1024, 0, 1024);
+
+		DeployPlan plan = new DeployPlan(storage, 115200, 0, BLOCK_SIZE).upload("a.lua", 251).compile("a.lc", 251);
+		assertEquals(1024, plan.getRequiredBytes());
+		assertTrue(plan.fits());
+
+		plan.upload("b.txt", 0);
+		assertFalse(plan.fits());
+	}
+
+	@Test
+	public void estimatedTimeFollowsBaudRateAndWindow() {
+		DeviceStorage storage = new DeviceStorage(new HashMap<>(), 1 << 20, 0, 1 << 20);
+		double slow = new DeployPlan(storage, 9600, 0, BLOCK_SIZE).upload("a.bin", 20000).getEstimatedSeconds();
+		double fast = new DeployPlan(storage, 115200, 0, BLOCK_SIZE).upload("a.bin", 20000).getEstimatedSeconds();
+		double windowed = new DeployPlan(storage, 115200, 8, BLOCK_SIZE).upload("a.bin", 20000).getEstimatedSeconds();
+
+		assertTrue("20000 bytes at 9600 baud take at least 20 s: " + slow, slow > 20000 * 10.0 / 9600);
+		assertTrue(slow + " > " + fast, slow > fast);
+		assertTrue(fast + " > " + windowed, fast > windowed);
+	}
+
+	@Test
+	public void patchNeedsSpaceOnlyForGrowthOfFile() {
+		byte[] previous = new byte[3000];
+		byte[] content = Arrays.copyOf(previous, 3300);
+		content[10] = 1;
+		List<FileDelta.Region> regions = FileDelta.compare(FileDelta.blockHashes(previous), content).getRegions();
+		DeployPlan plan = new DeployPlan(new DeviceStorage(new HashMap<>(), 1000, 24, 1024), 115200, 0, BLOCK_SIZE)
+				.patch("asset.bin", previous.length, content.length, regions);
+
+		assertEquals(DeployPlan.spaceOnFlash(3300) - DeployPlan.spaceOnFlash(3000), plan.getRequiredBytes());
+		assertEquals(FileDelta.BLOCK_SIZE + 3300 - 11 * FileDelta.BLOCK_SIZE, plan.getPatchBytes());
+	}
+
+	@Test
+	public void summary() {
+		Map<String, Integer> files = new HashMap<>();
+		files.put("a.lua", 10);
+		DeployPlan plan = new DeployPlan(new DeviceStorage(files, 1000, 24, 1024), 115200, 0, BLOCK_SIZE)
+				.remove("a.lua").remove("a.lc").upload("a.lua", 10).compile("a.lc", 10);
+
+		assertTrue(plan.toString(), plan.toString().startsWith(String.format("Plan: remove 2, upload 1 (10 bytes), patch 0 (0 bytes), compile 1 files.%n" +
+				"Flash estimate: required 1024 bytes, available 1512 bytes (free 1000 + removed 512), total 1024.%n")));
+	}
+}
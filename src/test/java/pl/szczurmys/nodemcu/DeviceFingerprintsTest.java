@@ -0,0 +1,121 @@
+package pl.szczurmys.nodemcu;
+
+import jssc.SerialPortException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pl.szczurmys.nodemcu.emulator.NodeMcuEmulator;
+
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static pl.szczurmys.nodemcu.NodeMcuInterpreter.CHARSET;
+
+/**
+ * Detection of device by fingerprint cached from previous connection.
+ *
+ * @author szczurmys
+ */
+public class DeviceFingerprintsTest {
+	private static final String NODE_INFO = "majorVer, minorVer, devVer, chipid, flashid";
+	private static final String PROBE = "majorVer, minorVer, devVer = node.info()";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private final StringBuilder sent = new StringBuilder();
+	/**
+	 * Device receives probe with changed character, e.g. by noise on line.
+	 */
+	private volatile boolean garbleProbe;
+	private final NodeMcuEmulator emulator = new NodeMcuEmulator() {
+		@Override
+		public synchronized boolean write(byte[] data) throws SerialPortException {
+			String text = new String(data, CHARSET);
+			sent.append(text);
+			if (garbleProbe && text.startsWith(PROBE)) {
+				data = text.replace("node.chipid()", "node.chipid(]").getBytes(CHARSET);
+			}
+			return super.write(data);
+		}
+	};
+	private DeviceFingerprints fingerprints;
+
+	@Before
+	public void setUp() throws Exception {
+		fingerprints = new DeviceFingerprints(temporaryFolder.newFile("fingerprints.properties"));
+	}
+
+	@Test
+	public void unknownDeviceIsDetectedAndSaved() throws Exception {
+		connect().close();
+
+		assertEquals(1, nodeInfoQueries());
+		assertFingerprint(NodeMcuEmulator.CHIP_ID, NodeMcuEmulator.FIRMWARE_VERSION);
+	}
+
+	@Test
+	public void knownDeviceIsNotQueriedAgain() throws Exception {
+		connect().close();
+		NodeMcuInterpreter interpreter = connect();
+		interpreter.close();
+
+		assertEquals(1, nodeInfoQueries());
+		assertEquals(NodeMcuEmulator.CHIP_ID, interpreter.getChipId());
+		assertEquals(NodeMcuEmulator.FLASH_ID, interpreter.getFlashId());
+		assertEquals(NodeMcuEmulator.FIRMWARE_VERSION, interpreter.getFirmwareVersion());
+	}
+
+	@Test
+	public void otherDeviceOnPortIsReadFromProbe() throws Exception {
+		fingerprints.put(emulator.getName(), new DeviceFingerprints.Fingerprint("1", NodeMcuEmulator.FLASH_ID, "1.0.0"));
+
+		NodeMcuInterpreter interpreter = connect();
+		interpreter.close();
+
+		assertEquals(0, nodeInfoQueries());
+		assertEquals(1, probes());
+		assertEquals(NodeMcuEmulator.CHIP_ID, interpreter.getChipId());
+		assertFingerprint(NodeMcuEmulator.CHIP_ID, NodeMcuEmulator.FIRMWARE_VERSION);
+	}
+
+	@Test(expected = DetectedException.class)
+	public void probeWithWrongEchoIsNotAccepted() throws Exception {
+		connect().close();
+		garbleProbe = true;
+		connect();
+	}
+
+	@Test
+	public void versionOfReflashedDeviceIsReadByProbe() throws Exception {
+		connect().close();
+		emulator.setFirmwareVersion("3.0.0");
+		NodeMcuInterpreter interpreter = connect();
+		interpreter.close();
+
+		assertEquals(1, nodeInfoQueries());
+		assertEquals("3.0.0", interpreter.getFirmwareVersion());
+		assertFingerprint(NodeMcuEmulator.CHIP_ID, "3.0.0");
+	}
+
+	private NodeMcuInterpreter connect() throws Exception {
+		return new NodeMcuInterpreter(emulator, "\n", NodeMcuInterpreter.DEFAULT_BAUD_RATE,
+				NodeMcuInterpreter.DEFAULT_TIMEOUT, fingerprints);
+	}
+
+	private int nodeInfoQueries() {
+		return sent.toString().split(NODE_INFO, -1).length - 1;
+	}
+
+	private int probes() {
+		return sent.toString().split(Pattern.quote(PROBE), -1).length - 1;
+	}
+
+	private void assertFingerprint(String chipId, String firmwareVersion) {
+		DeviceFingerprints.Fingerprint fingerprint = fingerprints.get(emulator.getName());
+		assertEquals(chipId, fingerprint.getChipId());
+		assertEquals(NodeMcuEmulator.FLASH_ID, fingerprint.getFlashId());
+		assertEquals(firmwareVersion, fingerprint.getFirmwareVersion());
+	}
+}
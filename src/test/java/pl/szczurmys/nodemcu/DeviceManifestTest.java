@@ -0,0 +1,72 @@
+package pl.szczurmys.nodemcu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decision of {@link DeviceManifest} which files can be skipped.
+ *
+ * @author szczurmys
+ */
+public class DeviceManifestTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void unchangedOnlyWithSameHashAndMode() throws Exception {
+		DeviceManifest manifest = new DeviceManifest(temporaryFolder.newFile("manifest.properties"));
+		manifest.put("init.lua", "aa", DeviceManifest.MODE_RAW);
+
+		assertTrue(manifest.isUnchanged("init.lua", "aa", DeviceManifest.MODE_RAW));
+		assertFalse(manifest.isUnchanged("init.lua", "bb", DeviceManifest.MODE_RAW));
+		assertFalse(manifest.isUnchanged("init.lua", "aa", DeviceManifest.MODE_COMPILED));
+		assertFalse(manifest.isUnchanged("other.lua", "aa", DeviceManifest.MODE_RAW));
+
+		manifest.remove("init.lua");
+		assertFalse(manifest.isUnchanged("init.lua", "aa", DeviceManifest.MODE_RAW));
+	}
+
+	@Test
+	public void entriesSurviveSaveAndLoad() throws Exception {
+		File file = new File(temporaryFolder.getRoot(), "devices/manifest.properties");
+		DeviceManifest manifest = new DeviceManifest(file);
+		manifest.put("lib/a.lua", "aa", DeviceManifest.MODE_COMPILED_WITH_SOURCE);
+		manifest.save();
+
+		DeviceManifest loaded = new DeviceManifest(file);
+		loaded.load();
+		assertTrue(loaded.isUnchanged("lib/a.lua", "aa", DeviceManifest.MODE_COMPILED_WITH_SOURCE));
+
+		assertTrue(file.delete());
+		loaded.load();
+		assertFalse("missing file gives empty manifest", loaded.isUnchanged("lib/a.lua", "aa", DeviceManifest.MODE_COMPILED_WITH_SOURCE));
+	}
+
+	@Test
+	public void filesAreHashedByRelativePath() throws Exception {
+		File directory = temporaryFolder.newFolder("project");
+		File a = new File(directory, "a.lua");
+		File b = new File(directory, "lib/b.lua");
+		assertTrue(b.getParentFile().mkdirs());
+		Files.write(a.toPath(), "print(1)".getBytes(StandardCharsets.UTF_8));
+		Files.write(b.toPath(), "print(2)".getBytes(StandardCharsets.UTF_8));
+
+		Map<String, String> hashes = DeviceManifest.hashFilesAsync(directory, Arrays.asList(a, b)).get();
+
+		assertEquals(2, hashes.size());
+		assertEquals(FileHelper.hash(a), hashes.get("a.lua"));
+		assertEquals(FileHelper.hash(b), hashes.get("lib/b.lua"));
+		assertFalse(hashes.get("a.lua").equals(hashes.get("lib/b.lua")));
+	}
+}
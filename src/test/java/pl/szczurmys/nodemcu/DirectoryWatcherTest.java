@@ -0,0 +1,113 @@
+package pl.szczurmys.nodemcu;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Changes reported by {@link DirectoryWatcher}.
+ *
+ * @author szczurmys
+ */
+public class DirectoryWatcherTest {
+	private static final int DEBOUNCE = 300;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private File directory;
+	private DirectoryWatcher watcher;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = temporaryFolder.newFolder("project");
+		assertTrue(new File(directory, "lib").mkdir());
+		watcher = new DirectoryWatcher(directory, true, DEBOUNCE);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		watcher.close();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void burstOfChangesIsReportedOnce() throws Exception {
+		Future<List<File>> changes = executor.submit(watcher::awaitChanges);
+		write("a.lua");
+		Thread.sleep(DEBOUNCE / 3);
+		write("lib/b.lua");
+		Thread.sleep(DEBOUNCE / 3);
+		write("a.lua");
+
+		assertEquals(Arrays.asList(file("a.lua"), file("lib/b.lua")), changes.get(5, TimeUnit.SECONDS));
+
+		changes = executor.submit(watcher::awaitChanges);
+		write("c.lua");
+		assertEquals(Collections.singletonList(file("c.lua")), changes.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void hiddenAndBackupFilesAreIgnored() throws Exception {
+		assertTrue(new File(directory, ".git").mkdir());
+		Future<List<File>> changes = executor.submit(watcher::awaitChanges);
+		write(".init.lua.swp");
+		write("init.lua~");
+		write(".git/index");
+		Thread.sleep(2 * DEBOUNCE);
+		assertFalse("burst of ignored files only is not reported", changes.isDone());
+
+		write("init.lua");
+		assertEquals(Collections.singletonList(file("init.lua")), changes.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void filesOfNewDirectoryAreReported() throws Exception {
+		Future<List<File>> changes = executor.submit(watcher::awaitChanges);
+		File dir = new File(directory, "lib/new");
+		assertTrue(dir.mkdir());
+		write("lib/new/d.lua");
+
+		assertEquals(Collections.singletonList(file("lib/new/d.lua")), changes.get(5, TimeUnit.SECONDS));
+
+		changes = executor.submit(watcher::awaitChanges);
+		write("lib/new/d.lua");
+		assertEquals("new directory is watched", Collections.singletonList(file("lib/new/d.lua")), changes.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void closedWatcherReturnsNull() throws Exception {
+		Future<List<File>> changes = executor.submit(watcher::awaitChanges);
+		Thread.sleep(100);
+		watcher.close();
+		assertNull(changes.get(5, TimeUnit.SECONDS));
+	}
+
+	private void write(String path) throws IOException {
+		Files.write(file(path).toPath(), ("-- " + path).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private File file(String path) {
+		return new File(directory, path).getAbsoluteFile();
+	}
+}
@@ -0,0 +1,98 @@
+package pl.szczurmys.nodemcu;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Changed regions found by {@link FileDelta} from block hashes.
+ *
+ * @author szczurmys
+ */
+public class FileDeltaTest {
+	private static final int BLOCK = FileDelta.BLOCK_SIZE;
+
+	@Test
+	public void blockHashesHaveLengthAndOneHashPerBlock() {
+		assertEquals("0:", FileDelta.blockHashes(new byte[0]));
+		String hashes = FileDelta.blockHashes(content(BLOCK + 1));
+		assertTrue(hashes, hashes.matches((BLOCK + 1) + ":[0-9a-f]+,[0-9a-f]+"));
+		assertEquals(BLOCK + 1, FileDelta.length(hashes));
+	}
+
+	@Test
+	public void notValidHashesHaveNoLength() {
+		assertEquals(-1, FileDelta.length(null));
+		assertEquals(-1, FileDelta.length("abc"));
+		assertEquals(-1, FileDelta.length("x:1,2"));
+	}
+
+	@Test
+	public void unchangedFileHasNoRegions() {
+		byte[] content = content(10 * BLOCK + 7);
+		FileDelta delta = FileDelta.compare(FileDelta.blockHashes(content), content);
+		assertEquals(Collections.emptyList(), regions(delta));
+		assertEquals(0, delta.getChangedBytes());
+	}
+
+	@Test
+	public void changedBlocksAreRegionsAlignedToBlocks() {
+		byte[] previous = content(10 * BLOCK + 7);
+		byte[] content = previous.clone();
+		content[2 * BLOCK + 5] ^= 1;
+		content[3 * BLOCK] ^= 1;
+		content[7 * BLOCK - 1] ^= 1;
+		content[content.length - 1] ^= 1;
+
+		FileDelta delta = FileDelta.compare(FileDelta.blockHashes(previous), content);
+
+		assertEquals(Arrays.asList(2 * BLOCK + "+" + 2 * BLOCK, 6 * BLOCK + "+" + BLOCK, 10 * BLOCK + "+7"), regions(delta));
+		assertEquals(3 * BLOCK + 7, delta.getChangedBytes());
+	}
+
+	@Test
+	public void grownFileSendsChangedLastBlockAndNewBlocks() {
+		byte[] previous = content(BLOCK + 45);
+		byte[] content = Arrays.copyOf(previous, 3 * BLOCK + 1);
+
+		FileDelta delta = FileDelta.compare(FileDelta.blockHashes(previous), content);
+
+		assertEquals(Collections.singletonList(BLOCK + "+" + (2 * BLOCK + 1)), regions(delta));
+	}
+
+	@Test
+	public void emptyPreviousFileSendsWholeContent() {
+		FileDelta delta = FileDelta.compare(FileDelta.blockHashes(new byte[0]), content(BLOCK * 2));
+		assertEquals(Collections.singletonList("0+" + 2 * BLOCK), regions(delta));
+	}
+
+	@Test
+	public void fileCannotBePatched() {
+		byte[] previous = content(3 * BLOCK);
+		assertNull("shorter file", FileDelta.compare(FileDelta.blockHashes(previous), Arrays.copyOf(previous, BLOCK)));
+		assertNull("no hashes", FileDelta.compare(null, previous));
+		assertNull("wrong count of blocks", FileDelta.compare(3 * BLOCK + ":1,2", previous));
+	}
+
+	private static List<String> regions(FileDelta delta) {
+		List<String> regions = new ArrayList<>();
+		for (FileDelta.Region region : delta.getRegions()) {
+			regions.add(region.toString());
+		}
+		return regions;
+	}
+
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		return content;
+	}
+}
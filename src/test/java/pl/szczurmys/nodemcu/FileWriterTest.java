@@ -0,0 +1,402 @@
+package pl.szczurmys.nodemcu;
+
+import jssc.SerialPortException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pl.szczurmys.nodemcu.emulator.NodeMcuEmulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static java.util.Objects.isNull;
+
+/**
+ * Deploy of directory to {@link NodeMcuEmulator}.
+ *
+ * @author szczurmys
+ */
+public class FileWriterTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File directory;
+	private NodeMcuEmulator emulator;
+	private NodeMcuInterpreter interpreter;
+	private final Random random = new Random(1);
+	/**
+	 * Emulated device is disconnected after this count of bytes sent to it, 0 - never.
+	 */
+	private long failAfterBytes;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = temporaryFolder.newFolder("project");
+		emulator = new NodeMcuEmulator() {
+			private long written;
+
+			@Override
+			public synchronized boolean write(byte[] data) throws SerialPortException {
+				written += data.length;
+				if (failAfterBytes > 0 && written > failAfterBytes) {
+					throw new SerialPortException(getName(), "write", "Port disconnected");
+				}
+				return super.write(data);
+			}
+		};
+		interpreter = new NodeMcuInterpreter(emulator, "\n", NodeMcuInterpreter.DEFAULT_BAUD_RATE, NodeMcuInterpreter.DEFAULT_TIMEOUT);
+	}
+
+	@After
+	public void tearDown() {
+		interpreter.close();
+	}
+
+	@Test
+	public void plainUpload() throws Exception {
+		createFiles();
+		fileWriter().run();
+		assertDeviceHasFiles();
+	}
+
+	@Test
+	public void windowedUpload() throws Exception {
+		createFiles();
+		interpreter.setWindowSize(4);
+		fileWriter().run();
+		assertDeviceHasFiles();
+	}
+
+	@Test
+	public void checkedUploadSendsCorruptedBlocksAgain() throws Exception {
+		createFiles();
+		interpreter.setChecksum(true);
+		emulator.setCorruptionRate(0.0005);
+		fileWriter().run();
+		assertDeviceHasFiles();
+		assertTrue(interpreter.getMetrics().getBlockRetries() > 0);
+	}
+
+	@Test
+	public void incrementalSkipsUnchangedFiles() throws Exception {
+		createFiles();
+		DeviceManifest manifest = new DeviceManifest(temporaryFolder.newFile("manifest.properties"));
+		FileWriter fileWriter = fileWriter();
+		fileWriter.setIncremental(manifest, hashes());
+		fileWriter.run();
+		assertDeviceHasFiles();
+
+		// content of unchanged file is replaced on device only to see that it is not sent again
+		byte[] marker = new byte[3000];
+		emulator.putFile("lib/data.bin", marker);
+		byte[] changed = createFile("init.lua", 10);
+		fileWriter = fileWriter();
+		fileWriter.setIncremental(manifest, hashes());
+		fileWriter.run();
+
+		assertArrayEquals(marker, emulator.getFiles().get("lib/data.bin"));
+		assertArrayEquals(changed, emulator.getFiles().get("init.lua"));
+	}
+
+	@Test
+	public void incrementalSendsFileMissingOnDevice() throws Exception {
+		createFiles();
+		DeviceManifest manifest = new DeviceManifest(temporaryFolder.newFile("manifest.properties"));
+		FileWriter fileWriter = fileWriter();
+		fileWriter.setIncremental(manifest, hashes());
+		fileWriter.run();
+
+		interpreter.deleteFile("lib/data.bin");
+		fileWriter = fileWriter();
+		fileWriter.setIncremental(manifest, hashes());
+		fileWriter.run();
+
+		assertDeviceHasFiles();
+	}
+
+	@Test
+	public void adaptiveUpload() throws Exception {
+		createFiles();
+		interpreter.setAdaptive(true);
+		fileWriter().run();
+		assertDeviceHasFiles();
+		// first growth does not depend on timing, next ones do
+		assertTrue(interpreter.getMetrics().getBlockSizeCounts().containsKey(String.valueOf(2 * AdaptiveBlockSize.START_SIZE)));
+	}
+
+	@Test
+	public void bundleUpload() throws Exception {
+		createFiles();
+		FileWriter fileWriter = fileWriter();
+		fileWriter.setBundle(true);
+		fileWriter.run();
+		assertDeviceHasFiles();
+	}
+
+	@Test
+	public void resumeContinuesAfterAcknowledgedBytes() throws Exception {
+		byte[] content = createFile("asset.bin", 20000);
+		emulator.putFile("asset.bin", Arrays.copyOf(content, 5100));
+		UploadProgress progress = progress(content, 5100);
+
+		FileWriter fileWriter = fileWriter();
+		fileWriter.setResumable(progress);
+		fileWriter.run();
+
+		assertArrayEquals(content, emulator.getFiles().get("asset.bin"));
+		assertEquals(content.length - 5100, interpreter.getMetrics().getBytesSent());
+		assertTrue(isNull(progress.get("asset.bin")));
+	}
+
+	@Test
+	public void resumeSendsWholeFileWhenPartDiffers() throws Exception {
+		byte[] content = createFile("asset.bin", 20000);
+		byte[] part = Arrays.copyOf(content, 5100);
+		part[100] ^= 1;
+		emulator.putFile("asset.bin", part);
+
+		FileWriter fileWriter = fileWriter();
+		fileWriter.setResumable(progress(content, 5100));
+		fileWriter.run();
+
+		assertArrayEquals(content, emulator.getFiles().get("asset.bin"));
+		assertEquals(content.length, interpreter.getMetrics().getBytesSent());
+	}
+
+	@Test
+	public void resumeSendsWholeFileWhenDeviceHasOtherSize() throws Exception {
+		byte[] content = createFile("asset.bin", 20000);
+		emulator.putFile("asset.bin", Arrays.copyOf(content, 4000));
+
+		FileWriter fileWriter = fileWriter();
+		fileWriter.setResumable(progress(content, 5100));
+		fileWriter.run();
+
+		assertArrayEquals(content, emulator.getFiles().get("asset.bin"));
+		assertEquals(content.length, interpreter.getMetrics().getBytesSent());
+	}
+
+	@Test
+	public void deltaSendsOnlyChangedBlocks() throws Exception {
+		byte[] content = createFile("asset.bin", 20000);
+		DeviceManifest manifest = new DeviceManifest(temporaryFolder.newFile("manifest.properties"));
+		FileWriter fileWriter = fileWriter();
+		fileWriter.setIncremental(manifest, hashes());
+		fileWriter.setDelta(true);
+		fileWriter.run();
+		long firstRun = interpreter.getMetrics().getBytesSent();
+
+		content[10000] ^= 1;
+		Files.write(new File(directory, "asset.bin").toPath(), content);
+		fileWriter = fileWriter();
+		fileWriter.setIncremental(manifest, hashes());
+		fileWriter.setDelta(true);
+		fileWriter.run();
+
+		assertArrayEquals(content, emulator.getFiles().get("asset.bin"));
+		long secondRun = interpreter.getMetrics().getBytesSent() - firstRun;
+		assertTrue("sent " + secondRun, secondRun > 0 && secondRun < FileWriter.DELTA_MIN_SIZE);
+	}
+
+	@Test
+	public void nothingIsSentWhenFilesDoNotFit() throws Exception {
+		createFiles();
+		emulator.setFsSize(20000);
+		try {
+			fileWriter().run();
+			fail("deploy bigger than file system is not rejected");
+		} catch (NotEnoughSpaceException e) {
+			assertTrue(emulator.getFiles().isEmpty());
+		}
+	}
+
+	@Test
+	public void fileCacheFollowsChangesOnDevice() throws Exception {
+		createFiles();
+		emulator.putFile("old.lua", new byte[5]);
+		fileWriter().run();
+
+		Map<String, Integer> sizes = new HashMap<>();
+		for (Map.Entry<String, byte[]> e : emulator.getFiles().entrySet()) {
+			sizes.put(e.getKey(), e.getValue().length);
+		}
+		assertEquals(sizes, interpreter.getFileCache());
+		interpreter.deleteFile("old.lua");
+		assertFalse(interpreter.mayExist("old.lua"));
+		assertTrue(interpreter.mayExist("init.lua"));
+	}
+
+	@Test
+	public void compileOnDevice() throws Exception {
+		createLua("init.lua", 100);
+		createLua("lib/big.lua", 3000);
+		createLua("lib/small.lua", 200);
+
+		FileWriter fileWriter = new FileWriter(directory, interpreter, false, false,
+				new HashSet<>(), new HashSet<>(), true, true);
+		fileWriter.run();
+
+		assertEquals(Collections.emptyList(), fileWriter.getCompileFailures());
+		assertEquals(new HashSet<>(Arrays.asList("init.lc", "lib/big.lc", "lib/small.lc")), emulator.getFiles().keySet());
+	}
+
+	@Test
+	public void compileRestartsDeviceWithoutInit() throws Exception {
+		createLua("init.lua", 100);
+		for (int i = 0; i < 4; i++) {
+			createLua("lib/m" + i + ".lua", 9000);
+		}
+		emulator.setCompileFragmentation(1);
+
+		FileWriter fileWriter = new FileWriter(directory, interpreter, false, false,
+				new HashSet<>(), new HashSet<>(), true, false);
+		fileWriter.setRestartForCompile(true);
+		fileWriter.run();
+
+		assertEquals(Collections.emptyList(), fileWriter.getCompileFailures());
+		assertEquals(0, emulator.getInitRuns());
+		assertTrue(emulator.getFiles().containsKey("init.lua"));
+		assertFalse(emulator.getFiles().containsKey("init.lua.restart"));
+	}
+
+	@Test
+	public void compileWithoutRestartReportsFailure() throws Exception {
+		for (int i = 0; i < 4; i++) {
+			createLua("lib/m" + i + ".lua", 9000);
+		}
+		emulator.setCompileFragmentation(1);
+
+		FileWriter fileWriter = new FileWriter(directory, interpreter, false, false,
+				new HashSet<>(), new HashSet<>(), true, false);
+		fileWriter.run();
+
+		assertEquals(1, fileWriter.getCompileFailures().size());
+	}
+
+	@Test
+	public void planCountsOnlyRemovesWhichAreSent() throws Exception {
+		createFile("init.lua", 10);
+		createLua("lib/a.lua", 100);
+		createLua("lib/b.lua", 100);
+		emulator.putFile("init.lua", new byte[5]);
+		emulator.putFile("lib/a.lc", new byte[5]);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PrintStream systemOut = System.out;
+		System.setOut(new PrintStream(output, true));
+		try {
+			new FileWriter(directory, interpreter, false, false, new HashSet<>(), Collections.singleton("init.lua"), true, false).run();
+		} finally {
+			System.setOut(systemOut);
+		}
+
+		// init.lua is overwritten, old bytecode of lib/a.lua is removed
+		assertTrue(output.toString(), output.toString().contains("Plan: remove 1, upload 3 (210 bytes)"));
+		assertEquals(new HashSet<>(Arrays.asList("init.lua", "lib/a.lua", "lib/a.lc", "lib/b.lua", "lib/b.lc")), emulator.getFiles().keySet());
+	}
+
+	@Test
+	public void failedUploadKeepsOldVersionsOfFilesNotSentYet() throws Exception {
+		byte[] old = new byte[100];
+		Map<String, byte[]> contents = new HashMap<>();
+		for (String path : Arrays.asList("a.bin", "b.bin", "c.bin")) {
+			contents.put(path, createFile(path, 3000));
+			emulator.putFile(path, old);
+		}
+		failAfterBytes = 6000;
+
+		try {
+			fileWriter().run();
+			fail("upload did not fail");
+		} catch (SerialPortException e) {
+			// device disconnected
+		}
+
+		// first file is sent, second is broken by disconnect, third is not touched
+		int sent = 0;
+		int broken = 0;
+		int kept = 0;
+		for (Map.Entry<String, byte[]> file : emulator.getFiles().entrySet()) {
+			if (Arrays.equals(old, file.getValue())) {
+				kept++;
+			} else if (Arrays.equals(contents.get(file.getKey()), file.getValue())) {
+				sent++;
+			} else {
+				broken++;
+			}
+		}
+		assertEquals(1, sent);
+		assertEquals(1, broken);
+		assertEquals(1, kept);
+	}
+
+	private FileWriter fileWriter() {
+		return new FileWriter(directory, interpreter, false, false, new HashSet<>(), new HashSet<>(), false, false);
+	}
+
+	private void createFiles() throws IOException {
+		createFile("init.lua", 10);
+		createFile("empty.txt", 0);
+		createFile("one.bin", 1);
+		createFile("block.bin", NodeMcuInterpreter.BLOCK_SIZE);
+		createFile("lib/data.bin", 3000);
+		createFile("lib/big.bin", (int) FileWriter.BUNDLE_MAX_FILE_SIZE + 10);
+	}
+
+	private byte[] createFile(String path, int size) throws IOException {
+		byte[] content = new byte[size];
+		random.nextBytes(content);
+		File file = new File(directory, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content);
+		return content;
+	}
+
+	/**
+	 * Source of Lua comment only, size of source decides heap needed by compile in emulator.
+	 */
+	private void createLua(String path, int size) throws IOException {
+		char[] content = new char[size];
+		Arrays.fill(content, '-');
+		File file = new File(directory, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), new String(content).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private UploadProgress progress(byte[] content, long acknowledged) throws IOException {
+		UploadProgress progress = new UploadProgress(temporaryFolder.newFile("progress.properties"));
+		progress.update("asset.bin", content.length, FileHelper.hash(content), acknowledged);
+		return progress;
+	}
+
+	private CompletableFuture<Map<String, String>> hashes() {
+		return DeviceManifest.hashFilesAsync(directory, FileHelper.listFiles(directory, false));
+	}
+
+	private void assertDeviceHasFiles() throws IOException {
+		Map<String, byte[]> files = emulator.getFiles();
+		for (File file : FileHelper.listFiles(directory, false)) {
+			String path = FileHelper.getUnixRelativePath(directory, file);
+			assertArrayEquals(path, Files.readAllBytes(file.toPath()), files.get(path));
+		}
+		assertEquals(FileHelper.listFiles(directory, false).size(), files.size());
+	}
+}
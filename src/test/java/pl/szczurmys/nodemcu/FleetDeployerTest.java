@@ -0,0 +1,90 @@
+package pl.szczurmys.nodemcu;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Results and failures of {@link FleetDeployer}.
+ *
+ * @author szczurmys
+ */
+public class FleetDeployerTest {
+
+	@Test
+	public void resultsAreInOrderOfPortsNotOfCompletion() throws Exception {
+		List<String> ports = Arrays.asList("COM1", "COM2", "COM3");
+		CountDownLatch lastDone = new CountDownLatch(1);
+		List<String> completed = new ArrayList<>();
+
+		List<FleetDeployer.DeviceResult> results = new FleetDeployer(ports, 3, port -> {
+			if (!"COM3".equals(port)) {
+				assertTrue(lastDone.await(5, TimeUnit.SECONDS));
+			}
+			synchronized (completed) {
+				completed.add(port);
+			}
+			if ("COM3".equals(port)) {
+				lastDone.countDown();
+			}
+		}).run();
+
+		assertEquals("COM3", completed.get(0));
+		assertEquals(ports, portsOf(results));
+		assertTrue(FleetDeployer.allSuccess(results));
+	}
+
+	@Test
+	public void failureOfOneDeviceDoesNotStopOthers() throws Exception {
+		List<String> ports = Arrays.asList("COM1", "COM2", "COM3");
+
+		List<FleetDeployer.DeviceResult> results = new FleetDeployer(ports, 1, port -> {
+			if ("COM2".equals(port)) {
+				throw new IOException("port busy");
+			}
+		}).run();
+
+		assertEquals(ports, portsOf(results));
+		assertTrue(results.get(0).isSuccess());
+		assertNull(results.get(0).getMessage());
+		assertFalse(results.get(1).isSuccess());
+		assertEquals("IOException: port busy", results.get(1).getMessage());
+		assertTrue(results.get(2).isSuccess());
+		assertFalse(FleetDeployer.allSuccess(results));
+	}
+
+	@Test
+	public void atMostParallelismDevicesAtOnce() throws Exception {
+		List<String> ports = Arrays.asList("COM1", "COM2", "COM3", "COM4", "COM5");
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+
+		List<FleetDeployer.DeviceResult> results = new FleetDeployer(ports, 2, port -> {
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			Thread.sleep(50);
+			running.decrementAndGet();
+		}).run();
+
+		assertTrue(FleetDeployer.allSuccess(results));
+		assertEquals(2, maxRunning.get());
+	}
+
+	private static List<String> portsOf(List<FleetDeployer.DeviceResult> results) {
+		List<String> ports = new ArrayList<>();
+		for (FleetDeployer.DeviceResult result : results) {
+			ports.add(result.getPort());
+		}
+		return ports;
+	}
+}
@@ -0,0 +1,26 @@
+package pl.szczurmys.nodemcu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Validation of options by {@link Interpreter#execute(String[], DaemonServer)}, before any port is opened.
+ *
+ * @author szczurmys
+ */
+public class InterpreterTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void logSizeMustBeGreaterThan0() throws Exception {
+		String fileToRun = temporaryFolder.newFile("init.lua").getAbsolutePath();
+
+		assertEquals(ErrorCode.LOG_SIZE_MUST_BE_GREATER_THAN_0, Interpreter.execute(new String[]{"-Ls=0", fileToRun}, null));
+		assertEquals(ErrorCode.LOG_SIZE_MUST_BE_GREATER_THAN_0, Interpreter.execute(new String[]{"-Ls=-1", fileToRun}, null));
+		assertEquals(ErrorCode.LOG_SIZE_MUST_BE_GREATER_THAN_0, Interpreter.execute(new String[]{"-Ls=1M", fileToRun}, null));
+	}
+}
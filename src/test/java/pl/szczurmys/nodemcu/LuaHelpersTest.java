@@ -0,0 +1,285 @@
+package pl.szczurmys.nodemcu;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lua routines sent by {@link NodeMcuInterpreter} run by real Lua interpreter, with bit, file and uart modules
+ * of NodeMCU replaced by stubs.
+ *
+ * @author szczurmys
+ */
+public class LuaHelpersTest {
+	/**
+	 * bit module of NodeMCU on top of bit32 of Lua 5.2.
+	 */
+	private static final String BIT_STUB = "bit={bxor=bit32.bxor,band=bit32.band,lshift=bit32.lshift," +
+			"isset=function(v,n) return bit32.btest(v,bit32.lshift(1,n)) end}";
+
+	private Globals lua;
+	private final Map<String, byte[]> files = new LinkedHashMap<>();
+	private final List<String> printed = new ArrayList<>();
+	private final StringBuilder uartOutput = new StringBuilder();
+	private LuaValue uartHandler;
+
+	@Before
+	public void setUp() {
+		lua = JsePlatform.standardGlobals();
+		lua.load(BIT_STUB).call();
+		lua.set("print", new VarArgFunction() {
+			@Override
+			public Varargs invoke(Varargs args) {
+				StringBuilder sb = new StringBuilder();
+				for (int i = 1; i <= args.narg(); i++) {
+					sb.append(args.arg(i).tojstring());
+				}
+				printed.add(sb.toString());
+				return NONE;
+			}
+		});
+		lua.set("file", new FileStub());
+		LuaTable uart = new LuaTable();
+		uart.set("on", new VarArgFunction() {
+			@Override
+			public Varargs invoke(Varargs args) {
+				uartHandler = args.narg() >= 3 ? args.arg(3) : null;
+				return NONE;
+			}
+		});
+		uart.set("write", new VarArgFunction() {
+			@Override
+			public Varargs invoke(Varargs args) {
+				uartOutput.append(args.arg(2).tojstring());
+				return NONE;
+			}
+		});
+		lua.set("uart", uart);
+	}
+
+	@Test
+	public void crcHelperMatchesCrc16() {
+		run(NodeMcuInterpreter.CRC_HELPER);
+		Random random = new Random(1);
+		for (int size : new int[]{0, 1, 2, 17, 255}) {
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			int crc = lua.get("_crc").call(LuaString.valueOf(data)).checkint();
+			assertEquals("size " + size, Crc16.ccitt(data, 0, size), crc);
+		}
+		assertEquals(0x29B1, lua.get("_crc").call(LuaValue.valueOf("123456789")).checkint());
+	}
+
+	@Test
+	public void crcHelperContinuesPreviousCrc() {
+		run(NodeMcuInterpreter.CRC_HELPER);
+		byte[] data = new byte[600];
+		new Random(2).nextBytes(data);
+		LuaValue crc = LuaValue.valueOf(Crc16.INITIAL);
+		for (int offset = 0; offset < data.length; offset += 255) {
+			byte[] chunk = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + 255));
+			crc = lua.get("_crc").call(LuaString.valueOf(chunk), crc);
+		}
+		assertEquals(Crc16.ccitt(data, 0, data.length), crc.checkint());
+	}
+
+	@Test
+	public void fileCrcCommandReadsPrefixOfFile() {
+		byte[] content = new byte[1000];
+		new Random(3).nextBytes(content);
+		files.put("part.bin", content);
+		run(NodeMcuInterpreter.CRC_HELPER);
+
+		run(String.format(NodeMcuInterpreter.FILE_CRC_COMMAND, "part.bin", 700, NodeMcuInterpreter.BLOCK_SIZE));
+		run(String.format(NodeMcuInterpreter.FILE_CRC_COMMAND, "absent.bin", 700, NodeMcuInterpreter.BLOCK_SIZE));
+
+		assertEquals(Arrays.asList("CRC:" + Crc16.ccitt(content, 0, 700), "CRC:-1"), printed);
+	}
+
+	@Test
+	public void checkedHandlerWritesOnlyBlockWithRightCrc() {
+		byte[] block = new byte[NodeMcuInterpreter.BLOCK_SIZE];
+		new Random(4).nextBytes(block);
+		run(NodeMcuInterpreter.CRC_HELPER);
+		lua.get("file").get("open").call(LuaValue.valueOf("f.bin"), LuaValue.valueOf("w+"));
+
+		byte[] corrupted = block.clone();
+		corrupted[7] ^= 1;
+		run(String.format(NodeMcuInterpreter.CHECKED_HANDLER, block.length, Crc16.ccitt(block, 0, block.length),
+				NodeMcuInterpreter.FILE_WRITE));
+		uartHandler.call(LuaString.valueOf(corrupted));
+		run(String.format(NodeMcuInterpreter.CHECKED_HANDLER, block.length, Crc16.ccitt(block, 0, block.length),
+				NodeMcuInterpreter.FILE_WRITE));
+		uartHandler.call(LuaString.valueOf(block));
+
+		assertEquals("NACK\r\nACK\r\n", uartOutput.toString());
+		assertArrayEquals(block, files.get("f.bin"));
+	}
+
+	@Test
+	public void bundleUnpackerWritesFilesFromBlocks() throws Exception {
+		DeployBundle bundle = new DeployBundle();
+		Random random = new Random(5);
+		int[] sizes = {0, 1, 254, 255, 256, 3000};
+		for (int i = 0; i < sizes.length; i++) {
+			byte[] content = new byte[sizes[i]];
+			random.nextBytes(content);
+			bundle.add("dir/file" + i + ".bin", content);
+		}
+		for (String command : NodeMcuInterpreter.BUNDLE_UNPACKER) {
+			run(command);
+		}
+
+		byte[] stream = bundle.toBytes(NodeMcuInterpreter.BLOCK_SIZE);
+		for (int offset = 0; offset < stream.length; offset += NodeMcuInterpreter.BLOCK_SIZE) {
+			byte[] block = Arrays.copyOfRange(stream, offset, offset + NodeMcuInterpreter.BLOCK_SIZE);
+			lua.get("_uf").call(LuaString.valueOf(block));
+		}
+		run(NodeMcuInterpreter.BUNDLE_MANIFEST);
+
+		List<String> manifest = new ArrayList<>();
+		for (Map.Entry<String, Integer> e : bundle.getSizes().entrySet()) {
+			manifest.add(e.getKey() + ":" + e.getValue());
+		}
+		manifest.add("END_LIST");
+		assertEquals(manifest, printed);
+		random = new Random(5);
+		for (int i = 0; i < sizes.length; i++) {
+			byte[] content = new byte[sizes[i]];
+			random.nextBytes(content);
+			assertArrayEquals("file " + i, content, files.get("dir/file" + i + ".bin"));
+		}
+		assertTrue("unpacker is removed", lua.get("_uf").isnil());
+	}
+
+	@Test
+	public void batchHelperReportsResultOfEachOperation() {
+		files.put("a.lua", new byte[]{1});
+		files.put("c.lua", new byte[]{2});
+		CommandBatch batch = new CommandBatch().remove("a.lua").remove("b.lua").rename("c.lua", "d.lua").rename("x.lua", "y.lua");
+		StringBuilder command = new StringBuilder(NodeMcuInterpreter.BATCH_HELPER).append("print(\"BATCH:\"");
+		for (CommandBatch.Operation operation : batch.getOperations()) {
+			command.append("..").append(operation.toLua());
+		}
+		run(command.append(");").toString());
+
+		// remove of absent file is not an error on NodeMCU, rename is
+		assertEquals(Arrays.asList("BATCH:1110"), printed);
+		assertEquals(Arrays.asList("d.lua"), new ArrayList<>(files.keySet()));
+	}
+
+	private void run(String command) {
+		lua.load(command).call();
+	}
+
+	private static byte[] bytes(LuaValue value) {
+		LuaString s = value.checkstring();
+		byte[] bytes = new byte[s.rawlen()];
+		s.copyInto(0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * file module of NodeMCU: one open file, files kept in map.
+	 */
+	private class FileStub extends LuaTable {
+		private String openFile;
+		private int position;
+
+		FileStub() {
+			set("open", new VarArgFunction() {
+				@Override
+				public Varargs invoke(Varargs args) {
+					String name = args.checkjstring(1);
+					String mode = args.optjstring(2, "r");
+					if (mode.startsWith("r") && !files.containsKey(name)) {
+						return NIL;
+					}
+					if (mode.startsWith("w")) {
+						files.put(name, new byte[0]);
+					}
+					openFile = name;
+					position = 0;
+					return TRUE;
+				}
+			});
+			set("write", new OneArgFunction() {
+				@Override
+				public LuaValue call(LuaValue data) {
+					byte[] previous = files.get(openFile);
+					byte[] added = bytes(data);
+					byte[] content = Arrays.copyOf(previous, previous.length + added.length);
+					System.arraycopy(added, 0, content, previous.length, added.length);
+					files.put(openFile, content);
+					return TRUE;
+				}
+			});
+			set("read", new OneArgFunction() {
+				@Override
+				public LuaValue call(LuaValue size) {
+					byte[] content = files.get(openFile);
+					if (position >= content.length) {
+						return NIL;
+					}
+					int end = Math.min(content.length, position + size.optint(1024));
+					LuaValue chunk = LuaString.valueOf(Arrays.copyOfRange(content, position, end));
+					position = end;
+					return chunk;
+				}
+			});
+			set("close", new VarArgFunction() {
+				@Override
+				public Varargs invoke(Varargs args) {
+					openFile = null;
+					return NONE;
+				}
+			});
+			set("remove", new OneArgFunction() {
+				@Override
+				public LuaValue call(LuaValue name) {
+					files.remove(name.checkjstring());
+					return NIL;
+				}
+			});
+			set("rename", new VarArgFunction() {
+				@Override
+				public Varargs invoke(Varargs args) {
+					byte[] content = files.remove(args.checkjstring(1));
+					if (content == null) {
+						return FALSE;
+					}
+					files.put(args.checkjstring(2), content);
+					return TRUE;
+				}
+			});
+			set("list", new VarArgFunction() {
+				@Override
+				public Varargs invoke(Varargs args) {
+					LuaTable list = new LuaTable();
+					for (Map.Entry<String, byte[]> e : files.entrySet()) {
+						list.set(e.getKey(), e.getValue().length);
+					}
+					return list;
+				}
+			});
+		}
+	}
+}
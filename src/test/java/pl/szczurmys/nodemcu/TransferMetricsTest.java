@@ -0,0 +1,120 @@
+package pl.szczurmys.nodemcu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JSON summary of {@link TransferMetrics}.
+ *
+ * @author szczurmys
+ */
+public class TransferMetricsTest {
+	private static final String EMPTY_HISTOGRAM = "{\"<=1ms\": 0, \"<=2ms\": 0, \"<=5ms\": 0, \"<=10ms\": 0, \"<=20ms\": 0, " +
+			"\"<=50ms\": 0, \"<=100ms\": 0, \"<=200ms\": 0, \"<=500ms\": 0, \"<=1000ms\": 0, \"<=2000ms\": 0, " +
+			"\"<=5000ms\": 0, \">5000ms\": 0}";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void emptyMetrics() {
+		assertEquals("{\n" +
+				"    \"port\": \"COM1\",\n" +
+				"    \"detectionTimeMs\": 0,\n" +
+				"    \"commands\": {\"count\": 0, \"averageMs\": 0.000, \"maxMs\": 0.000, \"histogram\": " + EMPTY_HISTOGRAM + "},\n" +
+				"    \"blocks\": {\"count\": 0, \"averageMs\": 0.000, \"maxMs\": 0.000, \"histogram\": " + EMPTY_HISTOGRAM + "},\n" +
+				"    \"blockRetries\": 0,\n" +
+				"    \"blockSizes\": {},\n" +
+				"    \"bytesSent\": 0,\n" +
+				"    \"bytesPerSecond\": 0.000,\n" +
+				"    \"phasesMs\": {},\n" +
+				"    \"files\": []\n" +
+				"}", new TransferMetrics("COM1").toJson());
+	}
+
+	@Test
+	public void recordedValues() {
+		TransferMetrics metrics = new TransferMetrics("COM1");
+		metrics.detection(TimeUnit.MILLISECONDS.toNanos(120));
+		metrics.commandRoundTrip(TimeUnit.MILLISECONDS.toNanos(3));
+		metrics.commandRoundTrip(TimeUnit.MILLISECONDS.toNanos(7));
+		metrics.blockRoundTrip(TimeUnit.SECONDS.toNanos(6));
+		metrics.blockRetry();
+		metrics.blockSize(64, TimeUnit.MILLISECONDS.toNanos(10));
+		metrics.blockSize(128, TimeUnit.MILLISECONDS.toNanos(10));
+		metrics.blockSize(128, TimeUnit.MILLISECONDS.toNanos(10));
+		metrics.phase(TransferMetrics.PHASE_UPLOAD, TimeUnit.MILLISECONDS.toNanos(500));
+		metrics.phase(TransferMetrics.PHASE_UPLOAD, TimeUnit.MILLISECONDS.toNanos(250));
+		metrics.phase(TransferMetrics.PHASE_REMOVE, TimeUnit.MILLISECONDS.toNanos(10));
+		metrics.fileSent("init.lua", 1000, TimeUnit.MILLISECONDS.toNanos(500));
+		metrics.fileSent("lib/a.lua", 3000, TimeUnit.MILLISECONDS.toNanos(500));
+
+		String json = metrics.toJson();
+
+		assertTrue(json, json.contains("\"detectionTimeMs\": 120,"));
+		assertTrue(json, json.contains("\"commands\": {\"count\": 2, \"averageMs\": 5.000, \"maxMs\": 7.000, " +
+				"\"histogram\": {\"<=1ms\": 0, \"<=2ms\": 0, \"<=5ms\": 1, \"<=10ms\": 1, \"<=20ms\": 0,"));
+		assertTrue(json, json.contains("\"blocks\": {\"count\": 1, \"averageMs\": 6000.000, \"maxMs\": 6000.000, "));
+		assertTrue(json, json.contains("\"<=5000ms\": 0, \">5000ms\": 1}},"));
+		assertTrue(json, json.contains("\"blockRetries\": 1,"));
+		assertTrue(json, json.contains("\"blockSizes\": {\"64\": {\"blocks\": 1, \"bytesPerSecond\": 6400.000}, " +
+				"\"128\": {\"blocks\": 2, \"bytesPerSecond\": 12800.000}},"));
+		assertTrue(json, json.contains("\"bytesSent\": 4000,"));
+		assertTrue(json, json.contains("\"bytesPerSecond\": 4000.000,"));
+		assertTrue(json, json.contains("\"phasesMs\": {\"upload\": 750, \"remove\": 10},"));
+		assertTrue(json, json.endsWith("\"files\": [\n" +
+				"        {\"path\": \"init.lua\", \"bytes\": 1000, \"timeMs\": 500.000, \"bytesPerSecond\": 2000.000},\n" +
+				"        {\"path\": \"lib/a.lua\", \"bytes\": 3000, \"timeMs\": 500.000, \"bytesPerSecond\": 6000.000}\n" +
+				"    ]\n" +
+				"}"));
+	}
+
+	@Test
+	public void resetMetricsAreEmpty() {
+		TransferMetrics metrics = new TransferMetrics("COM1");
+		metrics.detection(TimeUnit.MILLISECONDS.toNanos(120));
+		metrics.commandRoundTrip(TimeUnit.MILLISECONDS.toNanos(3));
+		metrics.blockRoundTrip(TimeUnit.SECONDS.toNanos(6));
+		metrics.blockRetry();
+		metrics.blockSize(64, TimeUnit.MILLISECONDS.toNanos(10));
+		metrics.phase(TransferMetrics.PHASE_UPLOAD, TimeUnit.MILLISECONDS.toNanos(500));
+		metrics.fileSent("init.lua", 1000, TimeUnit.MILLISECONDS.toNanos(500));
+
+		metrics.reset();
+
+		assertEquals(new TransferMetrics("COM1").toJson(), metrics.toJson());
+	}
+
+	@Test
+	public void stringsAreEscaped() {
+		TransferMetrics metrics = new TransferMetrics("C:\\dev\\\"port\"\t");
+		metrics.fileSent("a\nb.lua", 1, 1);
+
+		String json = metrics.toJson();
+
+		assertTrue(json, json.contains("\"port\": \"C:\\\\dev\\\\\\\"port\\\"\\u0009\","));
+		assertTrue(json, json.contains("{\"path\": \"a\\u000ab.lua\","));
+	}
+
+	@Test
+	public void summaryOfManyDevices() throws Exception {
+		File file = new File(temporaryFolder.getRoot(), "reports/metrics.json");
+		TransferMetrics first = new TransferMetrics("COM1");
+		TransferMetrics second = new TransferMetrics("COM2");
+
+		TransferMetrics.writeJson(file, Arrays.asList(first, second));
+
+		String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		assertEquals("{\"devices\": [\n" + first.toJson() + ",\n" + second.toJson() + "\n]}\n", json);
+	}
+}
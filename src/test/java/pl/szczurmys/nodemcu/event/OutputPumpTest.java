@@ -0,0 +1,69 @@
+package pl.szczurmys.nodemcu.event;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Log of {@link OutputPump} replaced while device output arrives.
+ *
+ * @author szczurmys
+ */
+public class OutputPumpTest {
+	private final PrintStream systemOut = System.out;
+
+	@Before
+	public void setUp() {
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+	}
+
+	@After
+	public void tearDown() {
+		System.setOut(systemOut);
+	}
+
+	@Test
+	public void outputReceivedBeforeLogIsRemovedIsInLog() throws Exception {
+		byte[] data = new byte[10 * OutputPump.CHUNK_SIZE + 7];
+		new Random(1).nextBytes(data);
+		try (OutputPump pump = new OutputPump("test")) {
+			for (int i = 0; i < 20; i++) {
+				ByteArrayOutputStream log = new ByteArrayOutputStream();
+				pump.setLog(log);
+				pump.write(data);
+				pump.setLog(null);
+				// caller closes log after it is removed
+				byte[] logged = log.toByteArray();
+				pump.write(data);
+				pump.flush();
+
+				assertArrayEquals("run " + i, data, logged);
+				assertArrayEquals("run " + i, data, log.toByteArray());
+			}
+		}
+	}
+
+	@Test
+	public void outputIsWrittenToNewLogAfterReplace() throws Exception {
+		byte[] first = {'a', '\n'};
+		byte[] second = {'b', '\n'};
+		try (OutputPump pump = new OutputPump("test")) {
+			ByteArrayOutputStream firstLog = new ByteArrayOutputStream();
+			ByteArrayOutputStream secondLog = new ByteArrayOutputStream();
+			pump.setLog(firstLog);
+			pump.write(first);
+			pump.setLog(secondLog);
+			pump.write(second);
+			pump.flush();
+
+			assertArrayEquals(first, firstLog.toByteArray());
+			assertArrayEquals(second, secondLog.toByteArray());
+		}
+	}
+}
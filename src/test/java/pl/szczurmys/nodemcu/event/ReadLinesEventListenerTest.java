@@ -0,0 +1,92 @@
+package pl.szczurmys.nodemcu.event;
+
+import org.junit.Before;
+import org.junit.Test;
+import pl.szczurmys.nodemcu.LineQueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static pl.szczurmys.nodemcu.NodeMcuInterpreter.CHARSET;
+
+/**
+ * Lines framed by {@link ReadLinesEventListener} do not depend on how data was split into events.
+ *
+ * @author szczurmys
+ */
+public class ReadLinesEventListenerTest {
+	private LineQueue lineQueue;
+	private ReadLinesEventListener listener;
+
+	@Before
+	public void setUp() {
+		lineQueue = new LineQueue();
+		listener = new ReadLinesEventListener(lineQueue);
+	}
+
+	@Test
+	public void lineSplitBetweenEvents() {
+		receive("pri", "nt(1)\r", "\n");
+		assertEquals(Collections.singletonList("print(1)\r\n"), lines());
+	}
+
+	@Test
+	public void manyLinesInOneEvent() {
+		receive("a\r\nb\r\n> ");
+		assertEquals(Arrays.asList("a\r\n", "b\r\n"), lines());
+
+		receive("\r\n");
+		assertEquals(Collections.singletonList("> \r\n"), lines());
+	}
+
+	@Test
+	public void endOfLineAndBeginningOfNextInOneEvent() {
+		receive("first li", "ne\r\nsecond ", "line\r\nthi", "rd\r\n");
+		assertEquals(Arrays.asList("first line\r\n", "second line\r\n", "third\r\n"), lines());
+	}
+
+	@Test
+	public void emptyEventsAndEmptyLines() {
+		receive("", "\r\n", "", "\n\n", "");
+		assertEquals(Arrays.asList("\r\n", "\n", "\n"), lines());
+	}
+
+	@Test
+	public void longLineSplitIntoManyEvents() {
+		char[] chars = new char[3000];
+		Arrays.fill(chars, 'x');
+		String line = new String(chars) + "\r\n";
+		List<String> parts = new ArrayList<>();
+		for (int i = 0; i < line.length(); i += 7) {
+			parts.add(line.substring(i, Math.min(line.length(), i + 7)));
+		}
+		receive(parts.toArray(new String[0]));
+		assertEquals(Collections.singletonList(line), lines());
+	}
+
+	@Test
+	public void multiByteCharacterSplitBetweenEvents() {
+		byte[] line = "za\u017c\u00f3\u0142\u0107\r\n".getBytes(CHARSET);
+		for (int i = 0; i < line.length; i++) {
+			listener.dataReceived(new byte[]{line[i]});
+		}
+		assertEquals(Collections.singletonList("za\u017c\u00f3\u0142\u0107\r\n"), lines());
+	}
+
+	private void receive(String... events) {
+		for (String event : events) {
+			listener.dataReceived(event.getBytes(CHARSET));
+		}
+	}
+
+	private List<String> lines() {
+		List<String> lines = new ArrayList<>();
+		for (String line = lineQueue.getLine(); line != null; line = lineQueue.getLine()) {
+			lines.add(line);
+		}
+		return lines;
+	}
+}
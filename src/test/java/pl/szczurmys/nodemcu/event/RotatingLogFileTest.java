@@ -0,0 +1,60 @@
+package pl.szczurmys.nodemcu.event;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Rotation of {@link RotatingLogFile} by size.
+ *
+ * @author szczurmys
+ */
+public class RotatingLogFileTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void outputIsAppendedToExistingLog() throws Exception {
+		File file = new File(temporaryFolder.getRoot(), "logs/device.log");
+		try (RotatingLogFile log = new RotatingLogFile(file, 100)) {
+			log.write(bytes("first\n"));
+		}
+		try (RotatingLogFile log = new RotatingLogFile(file, 100)) {
+			log.write(bytes("second\n"));
+		}
+		assertEquals("first\nsecond\n", read(file));
+	}
+
+	@Test
+	public void logIsRotatedAtMaxSizeAndOldestBackupIsDropped() throws Exception {
+		File file = new File(temporaryFolder.getRoot(), "device.log");
+		try (RotatingLogFile log = new RotatingLogFile(file, 4)) {
+			log.write(bytes("aaaabbbbccccddddeeeeff"));
+		}
+		assertEquals("ff", read(file));
+		assertEquals("eeee", read(new File(file.getPath() + ".1")));
+		assertEquals("dddd", read(new File(file.getPath() + ".2")));
+		assertEquals("cccc", read(new File(file.getPath() + "." + RotatingLogFile.BACKUPS)));
+		assertFalse(new File(file.getPath() + "." + (RotatingLogFile.BACKUPS + 1)).exists());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void maxSizeMustBeGreaterThan0() throws Exception {
+		new RotatingLogFile(new File(temporaryFolder.getRoot(), "device.log"), 0);
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String read(File file) throws Exception {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,79 @@
+package pl.szczurmys.nodemcu.lua;
+
+import org.junit.Test;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Minified source has to keep tokens apart where joining them changes meaning.
+ * Both sources are run by real Lua interpreter and have to return the same value.
+ *
+ * @author szczurmys
+ */
+public class LuaMinifierTest {
+
+	@Test
+	public void minusBeforeNegativeNumberIsNotComment() {
+		assertSameMeaning("local a = 3 return a - -1", "local a=3 return a- -1");
+		assertSameMeaning("return 1 - -1", "return 1- -1");
+	}
+
+	@Test
+	public void concatenationNextToNumberAndName() {
+		assertSameMeaning("local x = 'x' return 1 ..x", "local x='x'return 1 ..x");
+		assertSameMeaning("local a = 'a' return a.. 'b'", "local a='a'return a..'b'");
+		assertSameMeaning("local a, b = 'a', 'b' return a.. b", "local a,b='a','b'return a..b");
+	}
+
+	@Test
+	public void longStringsAreCopied() {
+		assertSameMeaning("return [[a  --b\n  c]]", "return[[a  --b\n  c]]");
+		assertSameMeaning("return [==[x]] ]=] y]==]", "return[==[x]] ]=] y]==]");
+		assertSameMeaning("local t = {x = 1} return t[ [[x]] ]", "local t={x=1}return t[ [[x]]]");
+	}
+
+	@Test
+	public void longCommentsAreRemoved() {
+		assertSameMeaning("--[==[ comment ]] still ]==] return 1", "return 1");
+		assertSameMeaning("local a = 1 --[[ multi\nline ]] return a", "local a=1 return a");
+		assertSameMeaning("-- line comment\nreturn 2 -- end", "return 2");
+	}
+
+	@Test
+	public void escapedQuotesStayInString() {
+		assertSameMeaning("return \"a\\\" -- b\"", "return\"a\\\" -- b\"");
+		assertSameMeaning("return 'it\\'s  ' .. \"\\\\\"", "return'it\\'s  '..\"\\\\\"");
+	}
+
+	@Test
+	public void newLineBeforeParenthesisSeparatesStatements() {
+		String source = "local r, f = {}\nf = function() r[#r + 1] = 1 return f end\nlocal g = f\n(f)()\nreturn #r";
+		assertSameMeaning(source, "local r,f={}f=function()r[#r+1]=1 return f end local g=f\n(f)()return#r");
+	}
+
+	@Test
+	public void bytesOutsideAsciiArePreserved() {
+		byte[] source = "print(\"za\u017c\u00f3\u0142\u0107\")  -- ok".getBytes(StandardCharsets.UTF_8);
+		assertArrayEquals("print(\"za\u017c\u00f3\u0142\u0107\")".getBytes(StandardCharsets.UTF_8), LuaMinifier.minify(source));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unfinishedLongStringIsRejected() {
+		LuaMinifier.minify("return [[a");
+	}
+
+	private static void assertSameMeaning(String source, String expected) {
+		String minified = LuaMinifier.minify(source);
+		assertEquals(expected, minified);
+		assertEquals(run(source), run(minified));
+	}
+
+	private static LuaValue run(String source) {
+		return JsePlatform.standardGlobals().load(source).call();
+	}
+}
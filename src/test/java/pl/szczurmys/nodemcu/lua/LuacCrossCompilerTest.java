@@ -0,0 +1,70 @@
+package pl.szczurmys.nodemcu.lua;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * {@link LuacCrossCompiler} run with shell scripts in place of luac.cross, not on Windows.
+ *
+ * @author szczurmys
+ */
+public class LuacCrossCompilerTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Before
+	public void setUp() {
+		assumeFalse(System.getProperty("os.name").toLowerCase().startsWith("windows"));
+	}
+
+	@Test
+	public void outputOfCompilerIsReturned() throws Exception {
+		// luac.cross -o OUT IN
+		LuacCrossCompiler compiler = new LuacCrossCompiler(script("cp \"$3\" \"$2\""));
+		byte[] source = "print(1)".getBytes(StandardCharsets.UTF_8);
+		assertArrayEquals(source, compiler.compile("lib/a.lua", source));
+	}
+
+	@Test
+	public void messagesOfCompilerAreInError() throws Exception {
+		LuacCrossCompiler compiler = new LuacCrossCompiler(script("echo \"a.lua:1: syntax error\"; exit 1"));
+		try {
+			compiler.compile("a.lua", new byte[]{'('});
+			fail("compiled");
+		} catch (IOException e) {
+			assertEquals("Cannot compile a.lua: a.lua:1: syntax error", e.getMessage());
+		}
+	}
+
+	@Test
+	public void idChangesWhenCompilerIsReplaced() throws Exception {
+		File executable = script("exit 0");
+		String id = new LuacCrossCompiler(executable).getId();
+		assertTrue(id, id.startsWith(executable.getAbsolutePath()));
+		assertEquals(id, new LuacCrossCompiler(executable).getId());
+
+		Files.write(executable.toPath(), "#!/bin/sh\nexit 1\n".getBytes(StandardCharsets.US_ASCII));
+		assertNotEquals(id, new LuacCrossCompiler(executable).getId());
+	}
+
+	private File script(String body) throws IOException {
+		File file = temporaryFolder.newFile("luac.cross");
+		Files.write(file.toPath(), ("#!/bin/sh\n" + body + "\n").getBytes(StandardCharsets.US_ASCII));
+		assertTrue(file.setExecutable(true));
+		return file;
+	}
+}